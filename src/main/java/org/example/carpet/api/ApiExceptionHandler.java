@@ -1,6 +1,8 @@
 package org.example.carpet.api;
 
 import org.example.carpet.exception.InsufficientStockException;
+import org.example.carpet.exception.InvalidCursorException;
+import org.example.carpet.exception.StockNotWrittenException;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.*;
 
@@ -16,5 +18,18 @@ public class ApiExceptionHandler {
                 "sku",ex.getSku(),"requested",ex.getRequested(),"available",ex.getAvailable(),
                 "timestamp",Instant.now().toString());
     }
-}
 
+    @ExceptionHandler(InvalidCursorException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public Map<String,Object> handleInvalidCursor(InvalidCursorException ex){
+        return Map.of("error","INVALID_CURSOR","message",ex.getMessage(),
+                "timestamp",Instant.now().toString());
+    }
+
+    @ExceptionHandler(StockNotWrittenException.class)
+    @ResponseStatus(HttpStatus.CONFLICT)
+    public Map<String,Object> handleStockNotWritten(StockNotWrittenException ex){
+        return Map.of("error","STOCK_NOT_WRITTEN","message",ex.getMessage(),
+                "sku",ex.getItem().getSku(),"timestamp",Instant.now().toString());
+    }
+}
@@ -0,0 +1,187 @@
+package org.example.carpet.cassandra;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.BatchStatement;
+import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;
+import com.datastax.oss.driver.api.core.cql.DefaultBatchType;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.Row;
+import org.springframework.stereotype.Component;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 手写 CQL 的预编译语句注册表
+ *
+ * - 启动时每条语句 prepare 一次，之后只 bind 参数（包括 LIMIT），不再每次发送/解析 CQL 字符串
+ * - 对外是带类型的方法：调用方不拼字符串，也不关心绑定顺序
+ * - 可空列（price）为空时不绑定（unset），不会写出 null 墓碑
+ * - 写入都交给 CassandraWritePipeline（executeAsync + 在途上限）：
+ *   订单事件 / 预留记录是副作用写，不等结果；购物车写入等待完成，保证用户紧接着的读能看到
+ */
+@Component
+public class CassandraStatements {
+
+    private final CqlSession session;
+    private final CassandraWritePipeline writes;
+
+    // ===== 购物车 =====
+    private final PreparedStatement cartSet;
+    private final PreparedStatement cartDelta;
+    private final PreparedStatement cartRemoveBase;
+    private final PreparedStatement cartRemoveDeltas;
+    private final PreparedStatement cartList;
+    private final PreparedStatement cartClearBase;
+    private final PreparedStatement cartClearDeltas;
+
+    // ===== 库存预留 =====
+    private final PreparedStatement reservationBySkuInsert;
+    private final PreparedStatement reservationByOrderInsert;
+    private final PreparedStatement reservationBySkuDelete;
+    private final PreparedStatement reservationsBySku;
+    private final PreparedStatement reservationsByOrder;
+    private final PreparedStatement reservationsScan;
+
+    // ===== 订单事件 =====
+    private final PreparedStatement orderEventInsert;
+    private final PreparedStatement orderEvents;
+
+    public CassandraStatements(CqlSession session, CassandraWritePipeline writes) {
+        this.session = session;
+        this.writes = writes;
+        this.cartSet = session.prepare(
+                "INSERT INTO cart_items_by_user (user_email, sku, qty, price, updated_at_ts) " +
+                        "VALUES (:user_email, :sku, :qty, :price, :updated_at_ts) USING TTL :ttl");
+        this.cartDelta = session.prepare(
+                "INSERT INTO cart_item_deltas_by_user (user_email, sku, op_id, delta, price) " +
+                        "VALUES (:user_email, :sku, :op_id, :delta, :price) USING TTL :ttl");
+        this.cartRemoveBase = session.prepare(
+                "DELETE FROM cart_items_by_user WHERE user_email = ? AND sku = ?");
+        this.cartRemoveDeltas = session.prepare(
+                "DELETE FROM cart_item_deltas_by_user WHERE user_email = ? AND sku = ?");
+        this.cartList = session.prepare(
+                "SELECT user_email, sku, qty, price, updated_at_ts FROM cart_items_by_user WHERE user_email = ?");
+        this.cartClearBase = session.prepare(
+                "DELETE FROM cart_items_by_user WHERE user_email = ?");
+        this.cartClearDeltas = session.prepare(
+                "DELETE FROM cart_item_deltas_by_user WHERE user_email = ?");
+
+        this.reservationBySkuInsert = session.prepare(
+                "INSERT INTO inventory_reservations_by_sku (sku, reserved_at_ts, order_id, qty) " +
+                        "VALUES (?, ?, ?, ?) USING TTL ?");
+        this.reservationByOrderInsert = session.prepare(
+                "INSERT INTO inventory_reservations_by_order (order_id, reserved_at_ts, sku, qty) " +
+                        "VALUES (?, ?, ?, ?) USING TTL ?");
+        this.reservationBySkuDelete = session.prepare(
+                "DELETE FROM inventory_reservations_by_sku WHERE sku = ? AND reserved_at_ts = ?");
+        this.reservationsBySku = session.prepare(
+                "SELECT sku, reserved_at_ts, order_id, qty FROM inventory_reservations_by_sku WHERE sku = ? LIMIT ?");
+        this.reservationsByOrder = session.prepare(
+                "SELECT order_id, reserved_at_ts, sku, qty FROM inventory_reservations_by_order WHERE order_id = ? LIMIT ?");
+        this.reservationsScan = session.prepare(
+                "SELECT order_id, reserved_at_ts FROM inventory_reservations_by_order");
+
+        this.orderEventInsert = session.prepare(
+                "INSERT INTO order_events_by_order (order_id, ts, type, payload_json) VALUES (?, ?, ?, ?)");
+        this.orderEvents = session.prepare(
+                "SELECT order_id, ts, type, payload_json FROM order_events_by_order WHERE order_id = ? LIMIT ?");
+    }
+
+    // ------------------------------------------------------------
+    // 购物车
+    // ------------------------------------------------------------
+
+    /** 覆盖购物车基础行；price 为空时不写该列（保留旧单价） */
+    public void cartSet(String userEmail, String sku, int qty, BigDecimal price, long updatedAtTs, int ttlSeconds) {
+        BoundStatementBuilder b = cartSet.boundStatementBuilder()
+                .setString("user_email", userEmail)
+                .setString("sku", sku)
+                .setInt("qty", qty)
+                .setLong("updated_at_ts", updatedAtTs)
+                .setInt("ttl", ttlSeconds);
+        if (price != null) b.setBigDecimal("price", price);
+        writes.submit("cart.set", b.setIdempotence(true).build()).join();
+    }
+
+    /** 追加一条数量增量 */
+    public void cartAddDelta(String userEmail, String sku, UUID opId, int delta, BigDecimal price, int ttlSeconds) {
+        BoundStatementBuilder b = cartDelta.boundStatementBuilder()
+                .setString("user_email", userEmail)
+                .setString("sku", sku)
+                .setUuid("op_id", opId)
+                .setInt("delta", delta)
+                .setInt("ttl", ttlSeconds);
+        if (price != null) b.setBigDecimal("price", price);
+        writes.submit("cart.delta", b.setIdempotence(true).build()).join();
+    }
+
+    /** 删除一个 sku 的基础行和全部增量（同一分区，一个 BATCH） */
+    public void cartRemove(String userEmail, String sku) {
+        writes.submit("cart.remove", BatchStatement.newInstance(DefaultBatchType.LOGGED,
+                cartRemoveBase.bind(userEmail, sku),
+                cartRemoveDeltas.bind(userEmail, sku)).setIdempotent(true)).join();
+    }
+
+    /**
+     * 清空购物车：两张表各删整个 user_email 分区（每张表一个分区墓碑，而不是每个 sku 一个行墓碑），
+     * 同一个 LOGGED BATCH，要么都删要么都不删
+     */
+    public void cartClear(String userEmail) {
+        writes.submit("cart.clear", BatchStatement.newInstance(DefaultBatchType.LOGGED,
+                cartClearBase.bind(userEmail),
+                cartClearDeltas.bind(userEmail)).setIdempotent(true)).join();
+    }
+
+    public List<Row> cartList(String userEmail) {
+        return session.execute(cartList.bind(userEmail)).all();
+    }
+
+    // ------------------------------------------------------------
+    // 库存预留
+    // ------------------------------------------------------------
+
+    /** 双写两张查询模型表（异步，不等结果） */
+    public CompletableFuture<Void> recordReservation(String orderId, String sku, int qty, long reservedAtTs, int ttlSeconds) {
+        return CompletableFuture.allOf(
+                writes.submit("reservation.by_sku",
+                        reservationBySkuInsert.bind(sku, reservedAtTs, orderId, qty, ttlSeconds).setIdempotent(true)),
+                writes.submit("reservation.by_order",
+                        reservationByOrderInsert.bind(orderId, reservedAtTs, sku, qty, ttlSeconds).setIdempotent(true)));
+    }
+
+    public CompletableFuture<Void> deleteReservationBySku(String sku, long reservedAtTs) {
+        return writes.submit("reservation.delete", reservationBySkuDelete.bind(sku, reservedAtTs).setIdempotent(true));
+    }
+
+    public List<Row> reservationsBySku(String sku, int limit) {
+        return session.execute(reservationsBySku.bind(sku, Math.max(1, limit))).all();
+    }
+
+    public List<Row> reservationsByOrder(String orderId, int limit) {
+        return session.execute(reservationsByOrder.bind(orderId, Math.max(1, limit))).all();
+    }
+
+    /**
+     * 全表扫描仍未过期的预留（按 token 范围分页拉取，边迭代边翻页，不一次性物化）。
+     * 同一订单的行在结果里是连续的；只在启动重建预留到期时间轮时使用。
+     */
+    public Iterable<Row> scanReservationsByOrder(int pageSize) {
+        return session.execute(reservationsScan.bind().setPageSize(Math.max(1, pageSize)));
+    }
+
+    // ------------------------------------------------------------
+    // 订单事件
+    // ------------------------------------------------------------
+
+    /** 追加订单事件（异步，不等结果） */
+    public CompletableFuture<Void> appendOrderEvent(String orderId, long ts, String type, String payloadJson) {
+        return writes.submit("order.event", orderEventInsert.bind(orderId, ts, type, payloadJson));
+    }
+
+    public List<Row> orderEvents(String orderId, int limit) {
+        return session.execute(orderEvents.bind(orderId, Math.max(1, limit))).all();
+    }
+}
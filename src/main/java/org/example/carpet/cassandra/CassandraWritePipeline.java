@@ -0,0 +1,127 @@
+package org.example.carpet.cassandra;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cassandra 异步写管道（订单事件、预留记录、购物车写入）
+ *
+ * - 写入走 CqlSession.executeAsync，请求线程不等 Cassandra 返回
+ * - 同时在途的写最多 app.cassandra.writes.max-in-flight 条（信号量）；超出的进有界队列，
+ *   有写完成时再从队列补发；队列也满了直接拒绝（计入 rejected），不阻塞请求线程
+ * - 指标：在途数、队列深度、提交/完成/失败/拒绝计数、平均/最大延迟（提交到完成）
+ */
+@Slf4j
+@Component
+public class CassandraWritePipeline {
+
+    private record Pending(String op, Statement<?> statement, long submittedAt, CompletableFuture<Void> result) {}
+
+    /** 指标快照 */
+    public record Stats(int inFlight, int queued, long submitted, long completed, long failed, long rejected,
+                        double avgLatencyMs, double maxLatencyMs) {}
+
+    private final CqlSession session;
+    private final int maxInFlight;
+    private final Semaphore permits;
+    private final BlockingQueue<Pending> queue;
+
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final ThreadLocal<Boolean> draining = ThreadLocal.withInitial(() -> false);
+
+    public CassandraWritePipeline(CqlSession session,
+                                  @Value("${app.cassandra.writes.max-in-flight:256}") int maxInFlight,
+                                  @Value("${app.cassandra.writes.queue-capacity:10000}") int queueCapacity) {
+        this.session = session;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.permits = new Semaphore(this.maxInFlight);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * 提交一条写入；op 只用于日志。返回的 future 在写入完成（或失败/被拒绝）时结束，调用方可以不等。
+     */
+    public CompletableFuture<Void> submit(String op, Statement<?> statement) {
+        submitted.increment();
+        Pending p = new Pending(op, statement, System.nanoTime(), new CompletableFuture<>());
+        if (permits.tryAcquire()) {
+            dispatch(p);
+        } else if (queue.offer(p)) {
+            drain();   // 入队期间可能刚好有写完成，避免队列无人消费
+        } else {
+            rejected.increment();
+            log.warn("Cassandra write rejected, pipeline full (op={}, inFlight={}, queued={})",
+                    op, maxInFlight, queue.size());
+            p.result().completeExceptionally(new RejectedExecutionException("Cassandra write pipeline full"));
+        }
+        return p.result();
+    }
+
+    public Stats stats() {
+        long done = completed.sum() + failed.sum();
+        double avg = done == 0 ? 0 : latencyNanos.sum() / (double) done / 1e6;
+        return new Stats(maxInFlight - permits.availablePermits(), queue.size(),
+                submitted.sum(), completed.sum(), failed.sum(), rejected.sum(),
+                avg, maxLatencyNanos.get() / 1e6);
+    }
+
+    private void dispatch(Pending p) {
+        CompletableFuture<?> f;
+        try {
+            f = session.executeAsync(p.statement()).toCompletableFuture();
+        } catch (RuntimeException e) {
+            f = CompletableFuture.failedFuture(e);
+        }
+        f.whenComplete((rs, err) -> {
+            long took = System.nanoTime() - p.submittedAt();
+            latencyNanos.add(took);
+            maxLatencyNanos.accumulateAndGet(took, Math::max);
+            permits.release();
+            if (err == null) {
+                completed.increment();
+                p.result().complete(null);
+            } else {
+                failed.increment();
+                log.warn("Cassandra write failed (op={}, latencyMs={}): {}",
+                        p.op(), TimeUnit.NANOSECONDS.toMillis(took), err.toString());
+                p.result().completeExceptionally(err);
+            }
+            drain();
+        });
+    }
+
+    private void drain() {
+        // 同步完成的写（会话已关闭等）会在 dispatch 里回调 drain，由外层循环接着补发，避免递归
+        if (draining.get()) return;
+        draining.set(true);
+        try {
+            while (!queue.isEmpty() && permits.tryAcquire()) {
+                Pending next = queue.poll();
+                if (next == null) {
+                    permits.release();
+                    return;
+                }
+                dispatch(next);
+            }
+        } finally {
+            draining.set(false);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.example.carpet.cassandra.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.example.carpet.cassandra.keys.CartItemDeltaKey;
+import org.springframework.data.cassandra.core.mapping.Column;
+import org.springframework.data.cassandra.core.mapping.PrimaryKey;
+import org.springframework.data.cassandra.core.mapping.Table;
+
+import java.math.BigDecimal;
+
+/**
+ * Cassandra 表：cart_item_deltas_by_user（购物车数量增量，只追加）
+ * 主键复合：user_email + sku + op_id
+ *
+ * "+1" 之类的增量不读旧值，直接追加一行；读购物车时与 cart_items_by_user 合并：
+ * qty = 基础行 qty + 基础行 updated_at_ts 之后的所有 delta 之和。
+ *
+ * 对应 CQL：
+ * CREATE TABLE IF NOT EXISTS cart_item_deltas_by_user (
+ *   user_email text,
+ *   sku text,
+ *   op_id timeuuid,
+ *   delta int,
+ *   price decimal,
+ *   PRIMARY KEY (user_email, sku, op_id)
+ * );
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@Table("cart_item_deltas_by_user")
+public class CartItemDelta {
+
+    @PrimaryKey
+    private CartItemDeltaKey key;
+
+    /** 数量增量（可为负） */
+    @Column("delta")
+    private Integer delta;
+
+    /** 写入时的单价（可空） */
+    @Column("price")
+    private BigDecimal price;
+}
@@ -0,0 +1,32 @@
+package org.example.carpet.cassandra.keys;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.cassandra.core.cql.Ordering;
+import org.springframework.data.cassandra.core.cql.PrimaryKeyType;
+import org.springframework.data.cassandra.core.mapping.PrimaryKeyClass;
+import org.springframework.data.cassandra.core.mapping.PrimaryKeyColumn;
+
+import java.util.UUID;
+
+/**
+ * 复合主键：user_email + sku + op_id（timeuuid，每次增量一行，互不覆盖）
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@PrimaryKeyClass
+public class CartItemDeltaKey {
+
+    @PrimaryKeyColumn(name = "user_email", ordinal = 0, type = PrimaryKeyType.PARTITIONED)
+    private String userEmail;
+
+    @PrimaryKeyColumn(name = "sku", ordinal = 1, type = PrimaryKeyType.CLUSTERED)
+    private String sku;
+
+    @PrimaryKeyColumn(name = "op_id", ordinal = 2, type = PrimaryKeyType.CLUSTERED, ordering = Ordering.ASCENDING)
+    private UUID opId;
+}
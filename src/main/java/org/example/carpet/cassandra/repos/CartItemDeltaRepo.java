@@ -0,0 +1,29 @@
+package org.example.carpet.cassandra.repos;
+
+import org.example.carpet.cassandra.entities.CartItemDelta;
+import org.example.carpet.cassandra.keys.CartItemDeltaKey;
+import org.springframework.data.cassandra.repository.CassandraRepository;
+import org.springframework.data.cassandra.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+/**
+ * Cassandra repository for cart quantity deltas (append-only, merged with cart_items_by_user at read time).
+ */
+@Repository
+public interface CartItemDeltaRepo extends CassandraRepository<CartItemDelta, CartItemDeltaKey> {
+
+    /** 查找指定用户的全部增量 */
+    @Query("SELECT * FROM cart_item_deltas_by_user WHERE user_email = :email")
+    List<CartItemDelta> findByUserEmail(@Param("email") String email);
+
+    /** 删除指定用户某个 SKU 的全部增量 */
+    @Query("DELETE FROM cart_item_deltas_by_user WHERE user_email = :email AND sku = :sku")
+    void deleteByUserAndSku(@Param("email") String email, @Param("sku") String sku);
+
+    /** 删除该用户的全部增量 */
+    @Query("DELETE FROM cart_item_deltas_by_user WHERE user_email = :email")
+    void deleteAllByUser(@Param("email") String email);
+}
@@ -0,0 +1,232 @@
+package org.example.carpet.catalog;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.messaging.ChangeStreamRequest;
+import org.springframework.data.mongodb.core.messaging.DefaultMessageListenerContainer;
+import org.springframework.data.mongodb.core.messaging.Message;
+import org.springframework.data.mongodb.core.messaging.MessageListenerContainer;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 进程内商品目录缓存（CatalogSnapshot 的持有者）
+ *
+ * - 读：current() / find(sku) 只读一个 AtomicReference，无锁
+ * - 写：apply / reloadAll 在 writeLock 下生成新快照并原子替换，随后按顺序通知 CatalogListener
+ * - 刷新触发：
+ *     1) ItemService.upsertItem 保存后直接 apply（同步，读己之写）
+ *     2) refresh(sku)：库存等旁路写入后异步回源（后台线程批量 $in 读取）
+ *     3) Mongo change stream（items 集合；单机 Mongo 不支持时仅打日志）
+ *     4) 定时全量重建兜底（app.catalog.full-refresh-interval）；内容没变时跳过通知
+ */
+@Component
+@Slf4j
+public class CatalogCache {
+
+    private final ItemDocumentRepository itemRepository;
+    private final MongoTemplate mongoTemplate;
+    private final List<CatalogListener> listeners;
+
+    @Value("${app.catalog.full-refresh-interval:PT5M}")
+    private Duration fullRefreshInterval = Duration.ofMinutes(5);
+
+    @Value("${app.catalog.change-stream.enabled:true}")
+    private boolean changeStreamEnabled = true;
+
+    private final AtomicReference<CatalogSnapshot> current = new AtomicReference<>(CatalogSnapshot.EMPTY);
+    private final Object writeLock = new Object();
+    private volatile boolean loaded;
+
+    // 待回源的 sku（refresh 合并到一次 $in 查询）
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "catalog-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+    private MessageListenerContainer changeStreamContainer;
+
+    public CatalogCache(ItemDocumentRepository itemRepository, MongoTemplate mongoTemplate,
+                        List<CatalogListener> listeners) {
+        this.itemRepository = itemRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.listeners = listeners == null ? List.of() : List.copyOf(listeners);
+    }
+
+    // ------------------------------------------------------------
+    // 读
+    // ------------------------------------------------------------
+
+    /** 当前快照；首次访问时同步全量加载一次 */
+    public CatalogSnapshot current() {
+        ensureLoaded();
+        return current.get();
+    }
+
+    /** 确保已完成首次全量加载（派生索引随之构建）；之后是一次 volatile 读 */
+    public void ensureLoaded() {
+        if (!loaded) {
+            synchronized (writeLock) {
+                if (!loaded) reloadAll();
+            }
+        }
+    }
+
+    public Optional<ItemDocument> find(String sku) {
+        return current().find(sku);
+    }
+
+    // ------------------------------------------------------------
+    // 写
+    // ------------------------------------------------------------
+
+    /** 已知最新文档（例如刚 save 完）直接合入快照 */
+    public void apply(ItemDocument doc) {
+        if (doc == null) return;
+        apply(List.of(doc), List.of());
+    }
+
+    public void apply(Collection<ItemDocument> upserts, Collection<String> removedSkus) {
+        synchronized (writeLock) {
+            Set<String> changed = new LinkedHashSet<>();
+            CatalogSnapshot prev = current.get();
+            CatalogSnapshot next = prev.apply(upserts, removedSkus, changed);
+            if (next == prev) return;
+            current.set(next);
+            notifyListeners(next, changed, false);
+        }
+    }
+
+    /** 旁路写入（如库存扣减）后，异步从 Mongo 回源这些 sku */
+    public void refresh(String sku) {
+        if (sku == null) return;
+        pending.add(sku);
+        if (drainScheduled.compareAndSet(false, true)) {
+            refresher.execute(this::drainPending);
+        }
+    }
+
+    /** 全量重建（同步）；内容与当前快照完全相同时（定时兜底的常见情况）不换版本、不通知 */
+    public void reloadAll() {
+        List<ItemDocument> all = itemRepository.findAll();
+        synchronized (writeLock) {
+            CatalogSnapshot prev = current.get();
+            CatalogSnapshot next = prev.replaceAll(all);
+            if (next == prev && loaded) {
+                log.debug("Catalog snapshot v{} unchanged after full reload", prev.version());
+                return;
+            }
+            current.set(next);
+            loaded = true;
+            Set<String> skus = new LinkedHashSet<>();
+            for (ItemDocument d : next.items()) skus.add(d.getSku());
+            notifyListeners(next, skus, true);
+        }
+        log.info("Catalog snapshot v{} loaded: {} items", current.get().version(), current.get().size());
+    }
+
+    // ------------------------------------------------------------
+    // 生命周期
+    // ------------------------------------------------------------
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        long periodMs = Math.max(1000L, fullRefreshInterval.toMillis());
+        refresher.execute(this::safeReloadAll);
+        refresher.scheduleWithFixedDelay(this::safeReloadAll, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        if (changeStreamEnabled) startChangeStream();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (changeStreamContainer != null) changeStreamContainer.stop();
+        refresher.shutdownNow();
+    }
+
+    // ------------------------------------------------------------
+    // internals
+    // ------------------------------------------------------------
+
+    private void drainPending() {
+        drainScheduled.set(false);
+        List<String> skus = new ArrayList<>(pending);
+        pending.removeAll(skus);
+        if (skus.isEmpty()) return;
+        try {
+            List<ItemDocument> found = mongoTemplate.find(
+                    Query.query(Criteria.where("sku").in(skus)), ItemDocument.class);
+            Set<String> missing = new HashSet<>(skus);
+            for (ItemDocument d : found) missing.remove(d.getSku());
+            apply(found, missing);
+        } catch (Exception e) {
+            log.warn("Catalog refresh failed for {} skus: {}", skus.size(), e.toString());
+        }
+    }
+
+    private void safeReloadAll() {
+        try {
+            reloadAll();
+        } catch (Exception e) {
+            log.warn("Catalog full reload failed: {}", e.toString());
+        }
+    }
+
+    private void startChangeStream() {
+        try {
+            DefaultMessageListenerContainer container = new DefaultMessageListenerContainer(mongoTemplate);
+            ChangeStreamRequest<ItemDocument> request = ChangeStreamRequest.builder(this::onChange)
+                    .collection("items")
+                    .fullDocumentLookup(FullDocument.UPDATE_LOOKUP)
+                    .build();
+            container.register(request, ItemDocument.class,
+                    t -> log.warn("Catalog change stream stopped (standalone Mongo?): {}", t.toString()));
+            container.start();
+            changeStreamContainer = container;
+        } catch (Exception e) {
+            log.warn("Catalog change stream unavailable, relying on explicit/periodic refresh: {}", e.toString());
+        }
+    }
+
+    private void onChange(Message<ChangeStreamDocument<Document>, ItemDocument> message) {
+        ChangeStreamDocument<Document> raw = message.getRaw();
+        OperationType op = raw == null ? null : raw.getOperationType();
+        ItemDocument body = message.getBody();
+        if (body != null && body.getSku() != null
+                && (op == OperationType.INSERT || op == OperationType.UPDATE || op == OperationType.REPLACE)) {
+            apply(body);
+        } else {
+            // delete / drop 等事件拿不到 sku，直接全量重建
+            refresher.execute(this::safeReloadAll);
+        }
+    }
+
+    private void notifyListeners(CatalogSnapshot snapshot, Set<String> changed, boolean full) {
+        for (CatalogListener l : listeners) {
+            try {
+                l.onCatalogChanged(snapshot, changed, full);
+            } catch (Exception e) {
+                log.warn("Catalog listener {} failed: {}", l.getClass().getSimpleName(), e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.example.carpet.catalog;
+
+import java.util.Set;
+
+/**
+ * 目录快照替换后的回调（在 CatalogCache 的写线程上按版本顺序调用）。
+ * 用于让派生索引（搜索、推荐等）跟随快照增量更新。
+ * 多个监听器按 @Order 顺序依次调用（依赖其它索引的监听器，如搜索结果缓存，要排在后面）。
+ */
+public interface CatalogListener {
+
+    /**
+     * @param snapshot     新快照
+     * @param changedSkus  本次变化（新增/修改/删除）的 sku；fullReload 时为全部 sku
+     * @param fullReload   是否为全量重建
+     */
+    void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedSkus, boolean fullReload);
+}
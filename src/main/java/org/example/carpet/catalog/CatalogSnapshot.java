@@ -0,0 +1,124 @@
+package org.example.carpet.catalog;
+
+import org.example.carpet.model.ItemDocument;
+
+import java.util.*;
+
+/**
+ * 不可变的目录快照：sku -> ItemDocument，带单调递增的版本号。
+ *
+ * 存储为 base（大 map，多个版本共享）+ overlay（最近的单 sku 变化，null 值表示已删除）：
+ * 增量 apply 只复制 overlay，overlay 超过 sqrt(N) 条时才合并成新的 base，单次变更均摊 O(sqrt(N))。
+ * 读取方拿到引用后无需加锁。
+ * 注意：ItemDocument 本身是可变 POJO，读取方只能当作只读对象使用。
+ */
+public final class CatalogSnapshot {
+
+    private static final int MIN_OVERLAY = 32;
+
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(0L, Map.of(), Map.of(), 0);
+
+    private final long version;
+    private final Map<String, ItemDocument> base;
+    private final Map<String, ItemDocument> overlay;
+    private final int size;
+    private volatile Collection<ItemDocument> items;   // 合并视图，首次 items() 时生成
+
+    private CatalogSnapshot(long version, Map<String, ItemDocument> base, Map<String, ItemDocument> overlay, int size) {
+        this.version = version;
+        this.base = base;
+        this.overlay = overlay;
+        this.size = size;
+    }
+
+    public long version() { return version; }
+
+    public int size() { return size; }
+
+    public Optional<ItemDocument> find(String sku) {
+        return Optional.ofNullable(get(sku));
+    }
+
+    public ItemDocument get(String sku) {
+        if (sku == null) return null;
+        return overlay.containsKey(sku) ? overlay.get(sku) : base.get(sku);
+    }
+
+    /** 全部商品（base 的顺序，新增的排在后面） */
+    public Collection<ItemDocument> items() {
+        if (overlay.isEmpty()) return base.values();
+        Collection<ItemDocument> v = items;
+        if (v == null) {
+            v = Collections.unmodifiableCollection(merged().values());
+            items = v;
+        }
+        return v;
+    }
+
+    /**
+     * 全量快照；加载期间被 apply 进来的更新版本（@Version 更大）保留。
+     * 与当前内容完全相同时返回 this（调用方据此跳过通知）。
+     */
+    CatalogSnapshot replaceAll(Collection<ItemDocument> items) {
+        Map<String, ItemDocument> m = new LinkedHashMap<>(items.size() * 2);
+        boolean same = true;
+        for (ItemDocument d : items) {
+            if (d == null || d.getSku() == null) continue;
+            ItemDocument cur = get(d.getSku());
+            ItemDocument next = cur != null && isOlder(d, cur) ? cur : d;
+            if (!next.equals(cur)) same = false;
+            m.put(d.getSku(), next);
+        }
+        if (same && m.size() == size) return this;
+        return new CatalogSnapshot(version + 1, Collections.unmodifiableMap(m), Map.of(), m.size());
+    }
+
+    /**
+     * 增量快照：upserts 覆盖、removed 删除。
+     * 若 upsert 的 @Version 比当前旧（后台刷新读到的旧数据晚到），跳过该条。
+     * 返回实际发生变化的 sku 集合写入 changed。
+     */
+    CatalogSnapshot apply(Collection<ItemDocument> upserts, Collection<String> removed, Set<String> changed) {
+        Map<String, ItemDocument> o = new LinkedHashMap<>(overlay);
+        int n = size;
+        for (ItemDocument d : upserts) {
+            if (d == null || d.getSku() == null) continue;
+            ItemDocument cur = o.containsKey(d.getSku()) ? o.get(d.getSku()) : base.get(d.getSku());
+            if (cur != null && isOlder(d, cur)) continue;
+            if (cur == null) n++;
+            o.put(d.getSku(), d);
+            changed.add(d.getSku());
+        }
+        for (String sku : removed) {
+            ItemDocument cur = o.containsKey(sku) ? o.get(sku) : base.get(sku);
+            if (cur == null) continue;
+            o.put(sku, null);
+            n--;
+            changed.add(sku);
+        }
+        if (changed.isEmpty()) return this;
+        if (o.size() <= Math.max(MIN_OVERLAY, (int) Math.sqrt(base.size()))) {
+            return new CatalogSnapshot(version + 1, base, o, n);
+        }
+        CatalogSnapshot folded = new CatalogSnapshot(version + 1, base, o, n);
+        return new CatalogSnapshot(version + 1, Collections.unmodifiableMap(folded.merged()), Map.of(), n);
+    }
+
+    /** base 与 overlay 合并成一个新 map（保持 base 顺序，overlay 里的新增追加在后） */
+    private Map<String, ItemDocument> merged() {
+        Map<String, ItemDocument> m = new LinkedHashMap<>(size * 2);
+        for (Map.Entry<String, ItemDocument> e : base.entrySet()) {
+            ItemDocument d = overlay.containsKey(e.getKey()) ? overlay.get(e.getKey()) : e.getValue();
+            if (d != null) m.put(e.getKey(), d);
+        }
+        for (Map.Entry<String, ItemDocument> e : overlay.entrySet()) {
+            if (e.getValue() != null && !base.containsKey(e.getKey())) m.put(e.getKey(), e.getValue());
+        }
+        return m;
+    }
+
+    private static boolean isOlder(ItemDocument candidate, ItemDocument current) {
+        return candidate.getVersion() != null && current.getVersion() != null
+                && candidate.getVersion() < current.getVersion();
+    }
+}
@@ -6,6 +6,7 @@ import com.datastax.oss.driver.api.core.CqlSession;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
+import org.springframework.data.cassandra.core.AsyncCassandraTemplate;
 import org.springframework.data.cassandra.core.CassandraOperations;
 import org.springframework.data.cassandra.core.CassandraTemplate;
 import org.springframework.data.cassandra.core.convert.CassandraConverter;
@@ -13,7 +14,7 @@ import org.springframework.data.cassandra.core.convert.MappingCassandraConverter
 import org.springframework.data.cassandra.core.mapping.CassandraMappingContext;
 
 /**
- * 手动注入 Cassandra 必要 Bean，确保有 cassandraTemplate / cassandraOperations 可注入
+ * 手动注入 Cassandra 必要 Bean，确保有 cassandraTemplate / cassandraOperations / asyncCassandraTemplate 可注入
  * Only active when NOT in test profile
  */
 @Configuration
@@ -45,4 +46,10 @@ public class CassandraBeansConfig {
         return new CassandraTemplate(session, converter);
     }
 
+    // 异步读写（购物车读取时两张表并行查询等）
+    @Bean
+    public AsyncCassandraTemplate asyncCassandraTemplate(CqlSession session, CassandraConverter converter) {
+        return new AsyncCassandraTemplate(session, converter);
+    }
+
 }
@@ -1,8 +1,9 @@
 package org.example.carpet.controller;
 
 import lombok.RequiredArgsConstructor;
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.cassandra.CassandraWritePipeline;
 import org.example.carpet.service.InventoryService;
-import org.springframework.data.cassandra.core.CassandraTemplate;
 import org.springframework.web.bind.annotation.*;
 
 import java.time.Duration;
@@ -16,10 +17,11 @@ import java.util.Map;
  * - POST /inventory/reserve?sku=...&quantity=.. 扣减(本地)
  * - POST /inventory/release?sku=...&quantity=.. 回补(本地)
  *
- * 下面三个是 Cassandra 相关的辅助接口，便于课堂演示/自测：
+ * 下面几个是 Cassandra 相关的辅助接口，便于课堂演示/自测：
  * - POST /inventory/reservations/record         // Cassandra 记录一条预留（行级 TTL）
  * - GET  /inventory/reservations/by-sku         // Cassandra 按 SKU 查看最近预留
  * - GET  /inventory/reservations/by-order       // Cassandra 按订单查看预留
+ * - GET  /inventory/cassandra/write-stats        // Cassandra 异步写管道指标（在途/队列/延迟/错误）
  */
 @RestController
 @RequestMapping("/inventory")
@@ -28,8 +30,9 @@ public class InventoryController {
 
     private final InventoryService inventoryService;
 
-    // 为了少改 Service，这里直接注入 Template 用于查询预留列表（写入仍走 Service）
-    private final CassandraTemplate cassandraTemplate;
+    // 为了少改 Service，这里直接用预编译语句查询预留列表（写入仍走 Service）
+    private final CassandraStatements cassandraStatements;
+    private final CassandraWritePipeline cassandraWrites;
 
     @GetMapping("/check")
     public InventoryService.InventoryStatus check(@RequestParam String sku) {
@@ -66,14 +69,12 @@ public class InventoryController {
             @RequestParam String sku,
             @RequestParam(required = false, defaultValue = "20") int limit
     ) {
-        String cql = "SELECT sku, reserved_at_ts, order_id, qty FROM inventory_reservations_by_sku " +
-                "WHERE sku = ? LIMIT " + Math.max(1, limit);
-        return cassandraTemplate.getCqlOperations().query(cql, ps -> ps.bind(sku), (row, i) -> Map.of(
+        return cassandraStatements.reservationsBySku(sku, limit).stream().map(row -> Map.<String, Object>of(
                 "sku", row.getString("sku"),
                 "reservedAtTs", row.getLong("reserved_at_ts"),
                 "orderId", row.getString("order_id"),
                 "qty", row.getInt("qty")
-        ));
+        )).toList();
     }
 
     /** Cassandra：按订单查看最近 N 条预留（用于演示）。表：inventory_reservations_by_order */
@@ -82,13 +83,17 @@ public class InventoryController {
             @RequestParam String orderId,
             @RequestParam(required = false, defaultValue = "20") int limit
     ) {
-        String cql = "SELECT order_id, reserved_at_ts, sku, qty FROM inventory_reservations_by_order " +
-                "WHERE order_id = ? LIMIT " + Math.max(1, limit);
-        return cassandraTemplate.getCqlOperations().query(cql, ps -> ps.bind(orderId), (row, i) -> Map.of(
+        return cassandraStatements.reservationsByOrder(orderId, limit).stream().map(row -> Map.<String, Object>of(
                 "orderId", row.getString("order_id"),
                 "reservedAtTs", row.getLong("reserved_at_ts"),
                 "sku", row.getString("sku"),
                 "qty", row.getInt("qty")
-        ));
+        )).toList();
+    }
+
+    /** Cassandra 异步写管道指标：在途数、队列深度、提交/完成/失败/拒绝、平均/最大延迟 */
+    @GetMapping("/cassandra/write-stats")
+    public CassandraWritePipeline.Stats cassandraWriteStats() {
+        return cassandraWrites.stats();
     }
 }
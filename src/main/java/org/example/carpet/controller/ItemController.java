@@ -1,12 +1,24 @@
 package org.example.carpet.controller;
 
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.http.HttpServletRequest;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import org.example.carpet.dto.BulkUpsertResponse;
+import org.example.carpet.dto.ItemPage;
+import org.example.carpet.dto.ItemSummary;
 import org.example.carpet.model.ItemDocument;
 import org.example.carpet.service.ItemService;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
 
+import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/items")
@@ -14,6 +26,7 @@ import java.util.List;
 public class ItemController {
 
     private final ItemService itemService;
+    private final ObjectMapper objectMapper;
 
     // ---- 管理员：新增/更新商品（演示可暂时对外开放） ----
     @PostMapping
@@ -21,11 +34,56 @@ public class ItemController {
         return itemService.upsertItem(doc);
     }
 
-    // ---- 列表（简单返回全部；如果你有分页，可换成分页返回） ----
+    // ---- 管理员：批量导入（供应商 feed）----
+    // 请求体可以是 JSON 数组，也可以是 NDJSON（每行一个商品）；边解析边分批写入，不整体读进内存
+    // 返回 { created, updated, partial, failed, items: [{ index, sku, status, error }] }（PARTIAL：库存字段没写）
+    @PostMapping(value = "/bulk", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public BulkUpsertResponse bulkUpsert(HttpServletRequest request) throws IOException {
+        try (MappingIterator<ItemDocument> it = objectMapper.readerFor(ItemDocument.class)
+                .readValues(request.getInputStream())) {
+            // 单条字段类型不对时记为失败并跳到下一条；JSON 语法错误无法继续，返回 400（之前的批次已写入）
+            Iterator<ItemDocument> docs = new Iterator<>() {
+                @Override
+                public boolean hasNext() {
+                    try {
+                        return it.hasNextValue();
+                    } catch (IOException e) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "malformed payload: " + e.getMessage());
+                    }
+                }
+
+                @Override
+                public ItemDocument next() {
+                    try {
+                        return it.nextValue();
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            };
+            return itemService.bulkUpsert(docs);
+        }
+    }
+
+    // ---- 列表（按 sku 游标分页，只返回列表页字段） ----
+    // 例：/items?limit=24  ->  { items: [...], nextCursor: "cnVnMTI" }
+    //     /items?limit=24&cursor=cnVnMTI  取下一页；nextCursor 为 null 表示没有更多
     @GetMapping
-    public List<ItemDocument> list() {
-        // 你也可以在 service 里做分页/排序，这里简化为 findAll
-        return itemService.search(null, null, null, null);
+    public ItemPage list(
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "24") int limit
+    ) {
+        return itemService.listSummaries(cursor, limit);
+    }
+
+    // ---- 批量取列表页字段 ----
+    // 例：POST /items/batch  ["rug1","rug2","nope"]  ->  { "rug1": {...}, "rug2": {...} }
+    @PostMapping("/batch")
+    public Map<String, ItemSummary> batch(@RequestBody List<String> skus) {
+        if (skus.size() > 500) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "at most 500 skus per request");
+        }
+        return itemService.getSummaries(skus);
     }
 
     // ---- 详情 ----
@@ -35,15 +93,42 @@ public class ItemController {
     }
 
     // ---- 搜索/过滤 ----
-    // 例：/items/search?q=wool&category=rug&color=blue&roomType=living room
+    // 例：/items/search?q=wool&category=rug&color=blue&roomType=living room&limit=20&offset=0
+    //     有 q 时按相关度排序（name > keywords > description）
     @GetMapping("/search")
     public List<ItemDocument> search(
             @RequestParam(required = false) String q,
             @RequestParam(required = false) String category,
             @RequestParam(required = false) String color,
-            @RequestParam(required = false, name = "roomType") String roomType
+            @RequestParam(required = false, name = "roomType") String roomType,
+            @RequestParam(required = false) String material,
+            @RequestParam(defaultValue = "0") int offset,
+            @RequestParam(defaultValue = "20") int limit
+    ) {
+        return itemService.search(q, category, color, roomType, material, offset, limit);
+    }
+
+    // ---- 搜索框自动补全 ----
+    // 例：/items/suggest?prefix=per&limit=8  ->  ["persian", "Handmade Silk Persian Rug", ...]
+    @GetMapping("/suggest")
+    public List<String> suggest(
+            @RequestParam(defaultValue = "") String prefix,
+            @RequestParam(defaultValue = "8") int limit
+    ) {
+        return itemService.suggest(prefix, limit);
+    }
+
+    // ---- 分面计数（侧边栏筛选项 + 数量），参数与 /search 相同 ----
+    // 例：/items/facets?q=rug&color=blue  ->  { "category": {...}, "color": {"light blue": 2, ...}, ... }
+    @GetMapping("/facets")
+    public Map<String, Map<String, Integer>> facets(
+            @RequestParam(required = false) String q,
+            @RequestParam(required = false) String category,
+            @RequestParam(required = false) String color,
+            @RequestParam(required = false, name = "roomType") String roomType,
+            @RequestParam(required = false) String material
     ) {
-        return itemService.search(q, category, color, roomType);
+        return itemService.facets(q, category, color, roomType, material);
     }
 
     // ---- 推荐（基于某个 SKU 的相似项）----
@@ -1,15 +1,13 @@
 package org.example.carpet.controller;
 
 import lombok.RequiredArgsConstructor;
+import org.example.carpet.cassandra.CassandraStatements;
 import org.example.carpet.dto.AddressUpdateRequest;
 import org.example.carpet.dto.CreateOrderRequest;
 import org.example.carpet.dto.OrderUpdateRequest;
-import org.example.carpet.exception.InvalidOrderStateException;
-import org.example.carpet.exception.UnauthorizedAccessException;
 import org.example.carpet.model.Address;
 import org.example.carpet.model.OrderDocument;
 import org.example.carpet.service.OrderService;
-import org.springframework.data.cassandra.core.CassandraTemplate;
 import org.springframework.data.domain.Page;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
@@ -34,8 +32,8 @@ public class OrderController {
 
     private final OrderService orderService;
 
-    // 为了少改 Service 的读取面，这里直接用 Template 读取事件表
-    private final CassandraTemplate cassandraTemplate;
+    // 为了少改 Service 的读取面，这里直接用预编译语句读取事件表
+    private final CassandraStatements cassandraStatements;
 
     // ====== 新增：订单历史 ======
     // GET /orders/history?page=0&size=20   （需登录）
@@ -54,7 +52,8 @@ public class OrderController {
     public OrderDocument createOrder(@RequestBody CreateOrderRequest request) {
         return orderService.createOrder(
                 request.getCustomerEmail(),
-                request.getItems()
+                request.getItems(),
+                request.isClearCart()
         );
     }
 
@@ -78,19 +77,7 @@ public class OrderController {
             Authentication auth
     ) {
         String callerEmail = auth.getName();
-        OrderDocument order = orderService.getOrderByOrderId(orderId);
-
-        if (!order.getCustomerEmail().equalsIgnoreCase(callerEmail)) {
-            throw new UnauthorizedAccessException(callerEmail, "order " + orderId);
-        }
-        if (!"RESERVED".equalsIgnoreCase(order.getStatus())) {
-            throw new InvalidOrderStateException(orderId, order.getStatus(), "RESERVED");
-        }
-        if (request.getCustomerEmailOverride() != null &&
-                !request.getCustomerEmailOverride().isBlank()) {
-            order.setCustomerEmail(request.getCustomerEmailOverride());
-        }
-        return orderService.saveDirect(order);
+        return orderService.updateCustomerEmail(orderId, callerEmail, request.getCustomerEmailOverride());
     }
 
     // ----- Update Shipping Address -----
@@ -121,14 +108,12 @@ public class OrderController {
     @GetMapping("/{orderId}/events")
     public List<Map<String, Object>> listOrderEvents(@PathVariable String orderId,
                                                      @RequestParam(required = false, defaultValue = "50") int limit) {
-        String cql = "SELECT order_id, ts, type, payload_json FROM order_events_by_order " +
-                "WHERE order_id = ? LIMIT " + Math.max(1, limit);
-        return cassandraTemplate.getCqlOperations().query(cql, ps -> ps.bind(orderId), (row, i) -> Map.of(
+        return cassandraStatements.orderEvents(orderId, limit).stream().map(row -> Map.<String, Object>of(
                 "orderId", row.getString("order_id"),
                 "ts", row.getLong("ts"),
                 "type", row.getString("type"),
                 "payload", row.getString("payload_json")
-        ));
+        )).toList();
     }
 
 }
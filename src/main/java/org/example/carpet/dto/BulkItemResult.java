@@ -0,0 +1,26 @@
+package org.example.carpet.dto;
+
+import lombok.*;
+
+/**
+ * 批量导入中单个商品的结果；index 是它在请求体里的位置（从 0 开始）
+ */
+@Data @Builder @NoArgsConstructor @AllArgsConstructor
+public class BulkItemResult {
+
+    /** PARTIAL：其它字段已更新，库存字段没写（原因见 error） */
+    public enum Status { CREATED, UPDATED, PARTIAL, FAILED }
+
+    private int index;
+    private String sku;
+    private Status status;
+    private String error;   // 仅 FAILED / PARTIAL 时有值
+
+    public static BulkItemResult failed(int index, String sku, String error) {
+        return BulkItemResult.builder().index(index).sku(sku).status(Status.FAILED).error(error).build();
+    }
+
+    public static BulkItemResult partial(int index, String sku, String error) {
+        return BulkItemResult.builder().index(index).sku(sku).status(Status.PARTIAL).error(error).build();
+    }
+}
@@ -0,0 +1,28 @@
+package org.example.carpet.dto;
+
+import lombok.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * POST /items/bulk 的返回：汇总计数 + 每个商品的结果（顺序同请求体）
+ */
+@Data @NoArgsConstructor @AllArgsConstructor
+public class BulkUpsertResponse {
+    private int created;
+    private int updated;
+    private int partial;
+    private int failed;
+    private List<BulkItemResult> items = new ArrayList<>();
+
+    public void add(BulkItemResult r) {
+        items.add(r);
+        switch (r.getStatus()) {
+            case CREATED -> created++;
+            case UPDATED -> updated++;
+            case PARTIAL -> partial++;
+            case FAILED -> failed++;
+        }
+    }
+}
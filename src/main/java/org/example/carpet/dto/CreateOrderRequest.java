@@ -9,4 +9,6 @@ import java.util.List;
 public class CreateOrderRequest {
     private String customerEmail;
     private List<OrderLineItem> items;
+    /** 下单成功后清空该用户的购物车（整分区删除） */
+    private boolean clearCart;
 }
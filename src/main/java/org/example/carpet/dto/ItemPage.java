@@ -0,0 +1,14 @@
+package org.example.carpet.dto;
+
+import lombok.*;
+
+import java.util.List;
+
+/**
+ * 游标分页结果：nextCursor 为 null 表示已到最后一页；下一页把它原样传回 ?cursor=
+ */
+@Data @Builder @NoArgsConstructor @AllArgsConstructor
+public class ItemPage {
+    private List<ItemSummary> items;
+    private String nextCursor;
+}
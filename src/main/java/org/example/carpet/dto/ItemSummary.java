@@ -0,0 +1,22 @@
+package org.example.carpet.dto;
+
+import lombok.*;
+import org.example.carpet.model.ItemDocument;
+
+import java.math.BigDecimal;
+
+/**
+ * 列表页用的精简商品视图（Mongo 字段投影直接映射，不带描述/尺寸/关键词等大字段）
+ */
+@Data @Builder @NoArgsConstructor @AllArgsConstructor
+public class ItemSummary {
+    private String sku;
+    private String name;
+    private BigDecimal unitPrice;
+    private String imageUrl;
+    private Boolean stockAvailable;
+
+    public static ItemSummary of(ItemDocument d) {
+        return new ItemSummary(d.getSku(), d.getName(), d.getUnitPrice(), d.getImageUrl(), d.getStockAvailable());
+    }
+}
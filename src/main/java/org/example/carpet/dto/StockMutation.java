@@ -0,0 +1,24 @@
+package org.example.carpet.dto;
+
+import lombok.*;
+
+/**
+ * 一次库存扣减/回补的结果（与数量变化同一次往返返回）
+ *
+ * - applied = true：quantity 是变更后的库存（post-image）
+ * - applied = false：quantity 是当前可用库存（库存不足时用于 409 的 available；sku 不存在时为 0）
+ */
+@Data @Builder @NoArgsConstructor @AllArgsConstructor
+public class StockMutation {
+    private String sku;
+    private boolean applied;
+    private int quantity;
+
+    public static StockMutation applied(String sku, int quantityAfter) {
+        return new StockMutation(sku, true, quantityAfter);
+    }
+
+    public static StockMutation rejected(String sku, int available) {
+        return new StockMutation(sku, false, available);
+    }
+}
@@ -0,0 +1,16 @@
+package org.example.carpet.exception;
+
+import org.example.carpet.model.ItemDocument;
+
+/**
+ * 管理员写商品时库存字段被跳过（其它字段已经写入）：比如还有未完成的预留、库存已拆分到分片
+ */
+public class StockNotWrittenException extends RuntimeException {
+    private final ItemDocument item;
+
+    public StockNotWrittenException(ItemDocument item, String reason) {
+        super(String.format("Item %s saved, %s", item == null ? null : item.getSku(), reason));
+        this.item = item;
+    }
+    public ItemDocument getItem() { return item; }
+}
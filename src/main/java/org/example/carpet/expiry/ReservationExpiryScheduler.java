@@ -0,0 +1,231 @@
+package org.example.carpet.expiry;
+
+import com.datastax.oss.driver.api.core.cql.Row;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.kafka.InventoryEventProducer;
+import org.example.carpet.model.OrderDocument;
+import org.example.carpet.model.OrderLineItem;
+import org.example.carpet.repository.mongo.OrderRepository;
+import org.example.carpet.service.InventoryService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 预留到期：RESERVED 订单超过预留时长（app.orders.reservation.ttl）仍未支付，就取消订单并回补库存
+ *
+ * - 到期时间放在分层时间轮里（TimerWheel），登记 O(1)：请求线程只往无锁队列里丢一条，
+ *   由单个后台线程每个 tick 收进时间轮并推进时钟
+ * - 启动重建：先从 Mongo 清掉停机期间已经超时的订单（它们在 Cassandra 里的预留行已经 TTL 过期），
+ *   再分页扫描 inventory_reservations_by_order 把仍在预留中的订单放回时间轮
+ * - 到期批处理（batch-size 个订单一批）：一次 updateMulti 把 RESERVED 认领成 EXPIRING（已支付 / 已取消的不会被认领），
+ *   按 token 回补库存（items 部分一次 bulkWrite），再一次 updateMulti 改成 CANCELLED
+ * - 订单支付 / 取消时不从时间轮里摘除（惰性取消），到期时认领条件会把它们过滤掉
+ * - 兜底：每隔 sweep-interval 扫一次 Mongo 里已超时的 RESERVED / 卡住的 EXPIRING（比如预留记录写 Cassandra 失败）
+ *
+ * 回补按 token 幂等，多实例同时处理同一批订单也不会多加库存。
+ */
+@Slf4j
+@Component
+public class ReservationExpiryScheduler {
+
+    private static final int WHEEL_LEVELS = 4;
+    private static final int SCAN_PAGE_SIZE = 5000;
+
+    private record Pending(String orderId, long expireAt) {}
+
+    private final OrderRepository orderRepository;
+    private final InventoryService inventoryService;
+    private final CassandraStatements cassandraStatements;
+    private final InventoryEventProducer inventoryEventProducer;
+
+    private final boolean enabled;
+    private final Duration ttl;
+    private final Duration tick;
+    private final int batchSize;
+    private final Duration sweepInterval;
+
+    private final TimerWheel<String> wheel;   // 只在 ticker 线程上访问
+    private final ConcurrentLinkedQueue<Pending> inbox = new ConcurrentLinkedQueue<>();
+    private final AtomicLong expired = new AtomicLong();
+
+    private final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "reservation-expiry");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ReservationExpiryScheduler(OrderRepository orderRepository,
+                                      InventoryService inventoryService,
+                                      CassandraStatements cassandraStatements,
+                                      InventoryEventProducer inventoryEventProducer,
+                                      @Value("${app.orders.reservation.expiry.enabled:true}") boolean enabled,
+                                      @Value("${app.orders.reservation.ttl:PT15M}") Duration ttl,
+                                      @Value("${app.orders.reservation.expiry.tick:PT1S}") Duration tick,
+                                      @Value("${app.orders.reservation.expiry.wheel-size:64}") int wheelSize,
+                                      @Value("${app.orders.reservation.expiry.batch-size:500}") int batchSize,
+                                      @Value("${app.orders.reservation.expiry.sweep-interval:PT5M}") Duration sweepInterval) {
+        this.orderRepository = orderRepository;
+        this.inventoryService = inventoryService;
+        this.cassandraStatements = cassandraStatements;
+        this.inventoryEventProducer = inventoryEventProducer;
+        this.enabled = enabled;
+        this.ttl = ttl;
+        this.tick = tick;
+        this.batchSize = Math.max(1, batchSize);
+        this.sweepInterval = sweepInterval;
+        this.wheel = new TimerWheel<>(tick.toMillis(), wheelSize, WHEEL_LEVELS, System.currentTimeMillis());
+    }
+
+    /** 登记一个订单的预留到期时间（请求线程调用，O(1)、不加锁） */
+    public void schedule(String orderId, long expireAtMillis) {
+        if (enabled) inbox.add(new Pending(orderId, expireAtMillis));
+    }
+
+    /** 已经因预留到期取消的订单数（本实例） */
+    public long expiredCount() {
+        return expired.get();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) return;
+        // 单线程：重建跑完之后才开始 tick，时间轮始终只有这一个线程在动
+        ticker.execute(this::safeRebuild);
+        long tickMs = Math.max(10L, tick.toMillis());
+        ticker.scheduleWithFixedDelay(this::safeTick, tickMs, tickMs, TimeUnit.MILLISECONDS);
+        long sweepMs = Math.max(tickMs, sweepInterval.toMillis());
+        ticker.scheduleWithFixedDelay(this::safeSweep, sweepMs, sweepMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        ticker.shutdownNow();
+    }
+
+    /** 收进新登记的到期时间，推进时钟，到期的订单分批处理；返回本次取消的订单数 */
+    int tick() {
+        Pending p;
+        while ((p = inbox.poll()) != null) wheel.add(p.orderId(), p.expireAt());
+        List<String> due = new ArrayList<>();
+        wheel.advance(System.currentTimeMillis(), due::add);
+        int cancelled = 0;
+        for (int i = 0; i < due.size(); i += batchSize) {
+            cancelled += expire(due.subList(i, Math.min(due.size(), i + batchSize)));
+        }
+        return cancelled;
+    }
+
+    /** 启动重建：先清 Mongo 里已超时的，再从 Cassandra 预留表恢复时间轮；返回放回时间轮的订单数 */
+    int rebuild() {
+        int swept = sweep();
+        int restored = 0;
+        String lastOrder = null;
+        long lastExpireAt = 0;
+        // 同一订单的多行预留是连续的，取最晚的一条
+        for (Row row : cassandraStatements.scanReservationsByOrder(SCAN_PAGE_SIZE)) {
+            String orderId = row.getString("order_id");
+            long expireAt = row.getLong("reserved_at_ts") + ttl.toMillis();
+            if (orderId.equals(lastOrder)) {
+                lastExpireAt = Math.max(lastExpireAt, expireAt);
+                continue;
+            }
+            if (lastOrder != null) {
+                wheel.add(lastOrder, lastExpireAt);
+                restored++;
+            }
+            lastOrder = orderId;
+            lastExpireAt = expireAt;
+        }
+        if (lastOrder != null) {
+            wheel.add(lastOrder, lastExpireAt);
+            restored++;
+        }
+        log.info("Reservation expiry rebuilt: {} overdue orders cancelled, {} pending reservations scheduled", swept, restored);
+        return restored;
+    }
+
+    /** 兜底：Mongo 里已超时仍未处理的订单，分批处理到没有为止；返回取消的订单数 */
+    int sweep() {
+        int total = 0;
+        while (true) {
+            List<String> ids = orderRepository.findExpirableOrderIds(cutoff(), batchSize);
+            if (ids.isEmpty()) break;
+            int n = expire(ids);
+            total += n;
+            if (n == 0 || ids.size() < batchSize) break;
+        }
+        return total;
+    }
+
+    /** 一批到期订单：认领 -> 回补库存 -> 标记取消；返回取消的订单数 */
+    int expire(List<String> orderIds) {
+        List<OrderDocument> claimed = orderRepository.claimForExpiry(orderIds, cutoff());
+        if (claimed.isEmpty()) return 0;
+
+        Map<String, List<OrderLineItem>> byToken = new LinkedHashMap<>();
+        List<String> ids = new ArrayList<>(claimed.size());
+        for (OrderDocument order : claimed) {
+            ids.add(order.getOrderId());
+            if (order.getReservationToken() != null) byToken.put(order.getReservationToken(), order.getItems());
+        }
+        if (!byToken.isEmpty()) inventoryService.releaseAll(byToken);
+        long cancelled = orderRepository.completeExpiry(ids);
+
+        long now = System.currentTimeMillis();
+        for (OrderDocument order : claimed) {
+            cassandraStatements.appendOrderEvent(order.getOrderId(), now, "ReservationExpired", "{}");
+            for (OrderLineItem line : order.getItems()) {
+                try { inventoryEventProducer.publishInventoryReleased(order.getOrderId(), line.getSku(), line.getQuantity()); }
+                catch (Exception ignore) {}
+            }
+        }
+        expired.addAndGet(cancelled);
+        log.info("Reservation expired: {} orders cancelled, stock released", cancelled);
+        return (int) cancelled;
+    }
+
+    /** createdAt 早于这个时间的 RESERVED 订单已超过预留时长 */
+    private LocalDateTime cutoff() {
+        return LocalDateTime.now().minus(ttl);
+    }
+
+    private void safeRebuild() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.warn("Reservation expiry rebuild failed (sweep will catch overdue orders): {}", e.toString());
+        }
+    }
+
+    private void safeTick() {
+        try {
+            tick();
+        } catch (Exception e) {
+            log.warn("Reservation expiry tick failed: {}", e.toString());
+        }
+    }
+
+    private void safeSweep() {
+        try {
+            sweep();
+        } catch (Exception e) {
+            log.warn("Reservation expiry sweep failed: {}", e.toString());
+        }
+    }
+}
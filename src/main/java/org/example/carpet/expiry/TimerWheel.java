@@ -0,0 +1,114 @@
+package org.example.carpet.expiry;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * 分层时间轮（毫秒时间戳，非线程安全，由单个线程驱动）
+ *
+ * - 第 L 层每格跨度 tick * size^L，一层 size 格；add 只算层号和格号，O(1)
+ * - advance 每走一格触发第 0 层当前格；第 0 层转完一圈时把上一层对应的格子降级重新放入（级联）
+ * - 超出最高层范围的放进最高层最远的一格，级联时再重新定位
+ *
+ * 到期的条目在时钟走过它所在的那一格之后触发，不会提前。
+ */
+public class TimerWheel<T> {
+
+    private record Entry<T>(T item, long expireAt) {}
+
+    private final long tick;
+    private final int size;
+    private final long[] spans;                 // 每层一格的跨度
+    private final List<Entry<T>>[][] buckets;   // [层][格]
+    private final List<T> overdue = new ArrayList<>();
+
+    private long current;   // 已经处理到的时间（tick 对齐）：expireAt < current 的都已触发
+    private int count;
+
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int size, int levels, long startMillis) {
+        this.tick = Math.max(1, tickMillis);
+        this.size = Math.max(2, size);
+        int n = Math.max(1, levels);
+        this.spans = new long[n];
+        this.buckets = new List[n][this.size];
+        long span = this.tick;
+        for (int l = 0; l < n; l++) {
+            spans[l] = span;
+            span = Math.multiplyExact(span, this.size);
+        }
+        this.current = startMillis - Math.floorMod(startMillis, this.tick);
+    }
+
+    public void add(T item, long expireAtMillis) {
+        count++;
+        place(new Entry<>(item, expireAtMillis));
+    }
+
+    /** 把时钟推进到 nowMillis，期间到期的条目交给 onExpire；返回触发的个数 */
+    public int advance(long nowMillis, Consumer<T> onExpire) {
+        int fired = overdue.size();
+        overdue.forEach(onExpire);
+        overdue.clear();
+        while (current + tick <= nowMillis) {
+            cascade(1);
+            List<Entry<T>> due = buckets[0][slot(current, 0)];
+            if (due != null) {
+                buckets[0][slot(current, 0)] = null;
+                for (Entry<T> e : due) onExpire.accept(e.item());
+                fired += due.size();
+            }
+            current += tick;
+        }
+        count -= fired;
+        return fired;
+    }
+
+    /** 尚未触发的条目数 */
+    public int size() {
+        return count;
+    }
+
+    /** 当前格是第 level 层一格的起点时，把该格（先递归处理更高层）降级放回 */
+    private void cascade(int level) {
+        if (level >= spans.length || Math.floorMod(current, spans[level]) != 0) return;
+        cascade(level + 1);
+        int s = slot(current, level);
+        List<Entry<T>> moving = buckets[level][s];
+        if (moving == null) return;
+        buckets[level][s] = null;
+        for (Entry<T> e : moving) place(e);
+    }
+
+    private void place(Entry<T> e) {
+        if (e.expireAt() < current) {
+            overdue.add(e.item());
+            return;
+        }
+        int top = spans.length - 1;
+        for (int l = 0; l <= top; l++) {
+            long base = current - Math.floorMod(current, spans[l]);
+            if (e.expireAt() < base + spans[l] * size) {
+                bucket(l, slot(e.expireAt(), l)).add(e);
+                return;
+            }
+        }
+        // 超出最高层范围：先放在最高层最远的一格，转到时再重新定位
+        long base = current - Math.floorMod(current, spans[top]);
+        bucket(top, slot(base + spans[top] * (size - 1), top)).add(e);
+    }
+
+    private int slot(long time, int level) {
+        return (int) Math.floorMod(Math.floorDiv(time, spans[level]), (long) size);
+    }
+
+    private List<Entry<T>> bucket(int level, int slot) {
+        List<Entry<T>> b = buckets[level][slot];
+        if (b == null) {
+            b = new ArrayList<>();
+            buckets[level][slot] = b;
+        }
+        return b;
+    }
+}
@@ -0,0 +1,27 @@
+package org.example.carpet.model;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+import java.util.Map;
+
+/**
+ * 热门 sku 托管（InventoryRepository）里的多行预留记录：_id = 预留 token。
+ * 落在 Mongo 里而不是进程内存，重启或由另一个实例处理支付 / 取消 / 到期时也能按 token 回补。
+ */
+@Document(collection = "inventory_escrow_holds")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class EscrowHold {
+
+    @Id
+    private String token;
+
+    private Map<String, Integer> quantities;   // sku -> qty
+
+    private LocalDateTime createdAt;
+}
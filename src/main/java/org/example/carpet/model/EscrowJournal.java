@@ -0,0 +1,38 @@
+package org.example.carpet.model;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.LocalDateTime;
+
+/**
+ * 托管余额的持久下限（durability=journal）：_id = instanceId#sku。
+ * floor 始终不大于该实例该 sku 的实际托管余额；进程崩溃后由同一 instance-id 的下一次启动把 floor 还回 items。
+ */
+@Document(collection = "inventory_escrow_journal")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class EscrowJournal {
+
+    @Id
+    private String id;          // instanceId#sku
+
+    @Indexed
+    private String instanceId;
+
+    private String runId;       // 写入它的那次进程启动
+
+    private String sku;
+
+    private long floor;
+
+    private LocalDateTime updatedAt;
+
+    public static String idOf(String instanceId, String sku) {
+        return instanceId + "#" + sku;
+    }
+}
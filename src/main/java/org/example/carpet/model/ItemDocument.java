@@ -2,9 +2,11 @@ package org.example.carpet.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.*;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.math.BigDecimal;
@@ -20,6 +22,7 @@ public class ItemDocument {
     @Id
     private String id;
 
+    @Indexed(unique = true)   // 详情 / 游标分页 / 扣库存都按 sku 查
     private String sku;
     private String name;
 
@@ -48,9 +51,22 @@ public class ItemDocument {
 
     private Integer stockQuantity; // 扣减这个
     private Boolean stockAvailable; // 可由 stockQuantity > 0 推导更新
+    private String warehouse;       // 发货仓（来自 inventory.json，例如 CN_SHANGHAI）
+
+    // 尚未确认/回补的多行预留 token（InventoryService.reserveAll），只在库存写路径上维护，不对外输出
+    @JsonIgnore
+    private List<String> reservationTokens;
+
+    // 库存是否已拆到 item_stock_shards（ShardedStockRepository 维护；为 true 时 stockQuantity 不再是可售库存）
+    @JsonIgnore
+    private Boolean stockSharded;
 
     private List<String> keywords;
 
+    // 归一化小写标签（roomType/keywords/name/material/color 分词），写入时自动维护；多键索引供推荐 $in 查询
+    @Indexed
+    private List<String> tags;
+
     private Boolean contactSalesRequired;
     private String salesContactInfo;
 }
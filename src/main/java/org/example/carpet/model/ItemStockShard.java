@@ -0,0 +1,45 @@
+package org.example.carpet.model;
+
+import lombok.*;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.List;
+
+/**
+ * 高并发 sku 的库存分片：一个 sku 的库存拆到 N 个子文档上（_id = sku#shard），
+ * 扣减随机落在某个分片，不再全部挤在同一个 items 文档上。
+ */
+@Document(collection = "item_stock_shards")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class ItemStockShard {
+
+    @Id
+    private String id;          // sku#shard
+
+    @Indexed
+    private String sku;
+
+    private int shard;
+
+    private int quantity;
+
+    // 多行预留（reserveAll）在这个分片上扣走的数量，按 token 回补 / 确认
+    private List<Hold> holds;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Hold {
+        private String token;
+        private int qty;
+    }
+
+    public static String idOf(String sku, int shard) {
+        return sku + "#" + shard;
+    }
+}
@@ -27,7 +27,9 @@ public class OrderDocument {
 
     private double totalAmount;
 
-    private String status; // CREATED / RESERVED / PAID / CANCELLED
+    private String status; // CREATED / RESERVED / PAID / CANCELLED（EXPIRING：预留到期、正在回补库存）
+
+    private String reservationToken; // 库存预留 token（reserveAll）；支付确认后清空
 
     private LocalDateTime createdAt;
 
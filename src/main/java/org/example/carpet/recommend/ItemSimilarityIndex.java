@@ -0,0 +1,291 @@
+package org.example.carpet.recommend;
+
+import org.example.carpet.catalog.CatalogListener;
+import org.example.carpet.catalog.CatalogSnapshot;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.search.TextTokenizer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 预计算的商品相似度表（item -> top-K 邻居），供 /items/{sku}/recommendations 直接查表。
+ *
+ * 相似度：对 roomType / keywords / material / color 四个属性分别求 Jaccard，再加权求和。
+ * keywords 按 TextTokenizer 分词后比较（中文关键词按二字切分，"手工编织" 与 "手工" 也能有重合）。
+ * 存储：邻居 ordinal 与分数放在两个按行展开的原始数组里（row = ordinal，每行 K 个槽，-1 表示空）。
+ * 更新：某个商品变化时只整行重算它自己；与它（新旧特征）有共同特征的其它行只算一次和它的相似度，
+ * 在该行的 top-K 里插入 / 调整它。只有它原本在某行 top-K 里、分数又下降（或被删除）且该行是满的，
+ * 才需要整行重算（K 以外可能有人补上来）。
+ *
+ * 数据来源是 CatalogCache（CatalogListener）。
+ */
+@Component
+public class ItemSimilarityIndex implements CatalogListener {
+
+    /** 属性及权重（和为 1） */
+    enum Attr {
+        ROOM_TYPE(0.35f), KEYWORDS(0.35f), MATERIAL(0.15f), COLOR(0.15f);
+        final float weight;
+        Attr(float weight) { this.weight = weight; }
+    }
+    private static final Attr[] ATTRS = Attr.values();
+
+    private final int k;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ordinalBySku = new HashMap<>();
+    private final List<String> skus = new ArrayList<>();            // ordinal -> sku（null = 已删除）
+    private final List<int[][]> features = new ArrayList<>();       // ordinal -> [attr][有序特征 id]
+    private final Map<String, Integer> featureIds = new HashMap<>(); // "attr|value" -> id
+    private final List<BitSet> featurePostings = new ArrayList<>();  // 特征 id -> 拥有该特征的 ordinal
+    private int[] neighbours = new int[0];
+    private float[] scores = new float[0];
+    private long rowsRecomputed;                                     // 累计重算的行数（测试 / 观测用）
+
+    public ItemSimilarityIndex(@Value("${app.recommend.top-k:16}") int k) {
+        this.k = Math.max(1, k);
+    }
+
+    /** 最相似的至多 limit 个 sku（分数降序）；未收录或没有相似商品时返回空列表 */
+    public List<String> neighbours(String sku, int limit) {
+        lock.readLock().lock();
+        try {
+            Integer ord = ordinalBySku.get(sku);
+            if (ord == null) return List.of();
+            int n = Math.min(Math.max(limit, 0), k);
+            List<String> out = new ArrayList<>(n);
+            int base = ord * k;
+            for (int i = 0; i < n; i++) {
+                int nb = neighbours[base + i];
+                if (nb < 0) break;
+                out.add(skus.get(nb));
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    long rowsRecomputed() {
+        lock.readLock().lock();
+        try {
+            return rowsRecomputed;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedSkus, boolean fullReload) {
+        lock.writeLock().lock();
+        try {
+            if (fullReload) rebuildLocked(snapshot.items());
+            else for (String sku : changedSkus) updateLocked(sku, snapshot.get(sku));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------
+    // 写入内部（调用方持有写锁）
+    // ------------------------------------------------------------
+
+    private void rebuildLocked(Collection<ItemDocument> items) {
+        ordinalBySku.clear();
+        skus.clear();
+        features.clear();
+        featureIds.clear();
+        featurePostings.clear();
+        for (ItemDocument d : items) {
+            if (d == null || d.getSku() == null || ordinalBySku.containsKey(d.getSku())) continue;
+            int ord = skus.size();
+            ordinalBySku.put(d.getSku(), ord);
+            skus.add(d.getSku());
+            int[][] f = extract(d);
+            features.add(f);
+            post(ord, f, true);
+        }
+        ensureCapacity(skus.size());
+        for (int ord = 0; ord < skus.size(); ord++) recomputeRow(ord);
+    }
+
+    /** doc 为 null 表示删除 */
+    private void updateLocked(String sku, ItemDocument doc) {
+        Integer existing = ordinalBySku.get(sku);
+        int[][] f = doc == null ? null : extract(doc);
+        // 只改了库存 / 价格等非相似度属性：特征不变，不用重算
+        if (existing != null && f != null && Arrays.deepEquals(f, features.get(existing))) return;
+        BitSet affected = new BitSet();
+        int ord;
+        if (existing != null) {
+            ord = existing;
+            int[][] old = features.get(ord);
+            collectSharing(old, affected);
+            post(ord, old, false);
+        } else {
+            if (doc == null) return;
+            ord = skus.size();
+            ordinalBySku.put(sku, ord);
+            skus.add(sku);
+            features.add(new int[ATTRS.length][0]);
+            ensureCapacity(skus.size());
+        }
+
+        if (doc == null) {
+            ordinalBySku.remove(sku);
+            skus.set(ord, null);
+            features.set(ord, new int[ATTRS.length][0]);
+            Arrays.fill(neighbours, ord * k, ord * k + k, -1);
+        } else {
+            features.set(ord, f);
+            post(ord, f, true);
+            collectSharing(f, affected);
+            recomputeRow(ord);
+        }
+        affected.clear(ord);
+        for (int r = affected.nextSetBit(0); r >= 0; r = affected.nextSetBit(r + 1)) {
+            if (skus.get(r) == null) continue;
+            float s = doc == null ? 0f : similarity(features.get(r), f);
+            adjustRow(r, ord, s);
+        }
+    }
+
+    /** 行 row 里商品 c 的分数变成 s（0 表示不再相似）：增量调整 top-K，必要时整行重算 */
+    private void adjustRow(int row, int c, float s) {
+        int base = row * k;
+        int filled = 0, pos = -1;
+        while (filled < k && neighbours[base + filled] >= 0) {
+            if (neighbours[base + filled] == c) pos = filled;
+            filled++;
+        }
+        if (pos >= 0) {
+            float old = scores[base + pos];
+            if (s == old) return;
+            if (s < old && filled == k) {   // 满行里掉分：K 以外的候选可能排上来
+                recomputeRow(row);
+                return;
+            }
+            System.arraycopy(neighbours, base + pos + 1, neighbours, base + pos, filled - pos - 1);
+            System.arraycopy(scores, base + pos + 1, scores, base + pos, filled - pos - 1);
+            filled--;
+            neighbours[base + filled] = -1;
+            scores[base + filled] = 0f;
+        }
+        if (s > 0f) insert(base, filled, c, s);
+    }
+
+    /** 把 (c, s) 插入一行（已有 filled 个）：分数降序、同分 ordinal 小的在前，与 recomputeRow 的结果一致 */
+    private void insert(int base, int filled, int c, float s) {
+        int pos = filled;
+        while (pos > 0 && (scores[base + pos - 1] < s
+                || (scores[base + pos - 1] == s && neighbours[base + pos - 1] > c))) {
+            pos--;
+        }
+        if (pos >= k) return;
+        int last = Math.min(filled, k - 1);
+        System.arraycopy(neighbours, base + pos, neighbours, base + pos + 1, last - pos);
+        System.arraycopy(scores, base + pos, scores, base + pos + 1, last - pos);
+        neighbours[base + pos] = c;
+        scores[base + pos] = s;
+    }
+
+    /** 重算一行：候选 = 与该商品至少共享一个特征的商品；K 很小，直接插入排序维护 top-K */
+    private void recomputeRow(int ord) {
+        rowsRecomputed++;
+        int base = ord * k;
+        Arrays.fill(neighbours, base, base + k, -1);
+        Arrays.fill(scores, base, base + k, 0f);
+        int[][] mine = features.get(ord);
+        BitSet candidates = new BitSet();
+        collectSharing(mine, candidates);
+        candidates.clear(ord);
+
+        int filled = 0;
+        for (int c = candidates.nextSetBit(0); c >= 0; c = candidates.nextSetBit(c + 1)) {
+            float s = similarity(mine, features.get(c));
+            if (s <= 0f) continue;
+            if (filled == k && s <= scores[base + k - 1]) continue;   // 同分保留 ordinal 小的
+            int pos = Math.min(filled, k - 1);
+            while (pos > 0 && scores[base + pos - 1] < s) {
+                scores[base + pos] = scores[base + pos - 1];
+                neighbours[base + pos] = neighbours[base + pos - 1];
+                pos--;
+            }
+            scores[base + pos] = s;
+            neighbours[base + pos] = c;
+            if (filled < k) filled++;
+        }
+    }
+
+    private static float similarity(int[][] a, int[][] b) {
+        float s = 0f;
+        for (Attr attr : ATTRS) {
+            int[] x = a[attr.ordinal()], y = b[attr.ordinal()];
+            if (x.length == 0 || y.length == 0) continue;
+            int inter = 0, i = 0, j = 0;
+            while (i < x.length && j < y.length) {
+                if (x[i] < y[j]) i++;
+                else if (x[i] > y[j]) j++;
+                else { inter++; i++; j++; }
+            }
+            s += attr.weight * inter / (float) (x.length + y.length - inter);
+        }
+        return s;
+    }
+
+    private void collectSharing(int[][] f, BitSet out) {
+        for (int[] ids : f) for (int id : ids) out.or(featurePostings.get(id));
+    }
+
+    private void post(int ord, int[][] f, boolean add) {
+        for (int[] ids : f) {
+            for (int id : ids) {
+                if (add) featurePostings.get(id).set(ord);
+                else featurePostings.get(id).clear(ord);
+            }
+        }
+    }
+
+    private int[][] extract(ItemDocument d) {
+        int[][] f = new int[ATTRS.length][];
+        f[Attr.ROOM_TYPE.ordinal()] = ids(Attr.ROOM_TYPE, d.getRoomType());
+        f[Attr.KEYWORDS.ordinal()] = ids(Attr.KEYWORDS, TextTokenizer.tokenize(
+                d.getKeywords() == null ? null : String.join(" ", d.getKeywords())));
+        f[Attr.MATERIAL.ordinal()] = ids(Attr.MATERIAL, d.getMaterial());
+        f[Attr.COLOR.ordinal()] = ids(Attr.COLOR, d.getColor());
+        return f;
+    }
+
+    /** String 字段按逗号拆分，List 字段逐项；统一小写后映射为特征 id（有序去重） */
+    private int[] ids(Attr attr, Object field) {
+        List<String> raw = new ArrayList<>();
+        if (field instanceof Collection<?>) {
+            for (Object o : (Collection<?>) field) if (o != null) raw.add(String.valueOf(o));
+        } else if (field != null) {
+            raw.addAll(Arrays.asList(String.valueOf(field).split(",")));
+        }
+        TreeSet<Integer> out = new TreeSet<>();
+        for (String r : raw) {
+            String v = r.trim().toLowerCase(Locale.ROOT);
+            if (v.isEmpty()) continue;
+            out.add(featureIds.computeIfAbsent(attr.name() + '|' + v, key -> {
+                featurePostings.add(new BitSet());
+                return featurePostings.size() - 1;
+            }));
+        }
+        return out.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private void ensureCapacity(int rows) {
+        int need = rows * k;
+        if (neighbours.length >= need) return;
+        int cap = Math.max(need, neighbours.length * 2);
+        int old = neighbours.length;
+        neighbours = Arrays.copyOf(neighbours, cap);
+        scores = Arrays.copyOf(scores, cap);
+        Arrays.fill(neighbours, old, cap, -1);
+    }
+}
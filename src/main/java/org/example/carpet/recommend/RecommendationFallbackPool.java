@@ -0,0 +1,125 @@
+package org.example.carpet.recommend;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.catalog.CatalogSnapshot;
+import org.example.carpet.model.ItemDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 推荐兜底候选池（无标签 / 标签无命中时使用）
+ *
+ * - 池子：Mongo $sample 随机抽取的一批在售商品 sku，后台定时刷新（app.recommend.fallback-refresh-interval）
+ * - 抽取：每次请求对池子做蓄水池抽样取 limit 个，再从目录快照取最新文档
+ * 不再 findAll + shuffle 整个目录。
+ */
+@Component
+@Slf4j
+public class RecommendationFallbackPool {
+
+    private final MongoTemplate mongoTemplate;
+    private final CatalogCache catalog;
+
+    @Value("${app.recommend.fallback-pool-size:200}")
+    private int poolSize = 200;
+
+    @Value("${app.recommend.fallback-refresh-interval:PT10M}")
+    private Duration refreshInterval = Duration.ofMinutes(10);
+
+    private volatile List<String> pool = List.of();
+    private volatile boolean loaded;
+
+    private final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "recommend-pool-refresher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public RecommendationFallbackPool(MongoTemplate mongoTemplate, CatalogCache catalog) {
+        this.mongoTemplate = mongoTemplate;
+        this.catalog = catalog;
+    }
+
+    /** 从池中随机抽取至多 limit 个（排除 excludeSku） */
+    public List<ItemDocument> draw(String excludeSku, int limit) {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) refresh();
+            }
+        }
+        List<String> candidates = pool;
+        int n = Math.max(0, limit);
+        List<String> picked = new ArrayList<>(n);
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        int seen = 0;
+        for (String sku : candidates) {
+            if (Objects.equals(sku, excludeSku)) continue;
+            seen++;
+            if (picked.size() < n) {
+                picked.add(sku);
+            } else {
+                int j = rnd.nextInt(seen);
+                if (j < n) picked.set(j, sku);
+            }
+        }
+
+        CatalogSnapshot snapshot = catalog.current();
+        List<ItemDocument> out = new ArrayList<>(picked.size());
+        for (String sku : picked) {
+            ItemDocument d = snapshot.get(sku);
+            if (d != null) out.add(d);
+        }
+        return out;
+    }
+
+    /** 重新 $sample 一批在售商品（stockAvailable 不为 false） */
+    public void refresh() {
+        Aggregation agg = Aggregation.newAggregation(
+                Aggregation.match(Criteria.where("stockAvailable").ne(false)),
+                Aggregation.sample(Math.max(1, poolSize)),
+                Aggregation.project("sku").andExclude("_id")
+        );
+        List<String> next = new ArrayList<>();
+        for (ItemDocument d : mongoTemplate.aggregate(agg, ItemDocument.class, ItemDocument.class).getMappedResults()) {
+            if (d.getSku() != null) next.add(d.getSku());
+        }
+        pool = List.copyOf(next);
+        loaded = true;
+        log.debug("Recommendation fallback pool refreshed: {} skus", next.size());
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        long periodMs = Math.max(1000L, refreshInterval.toMillis());
+        refresher.scheduleWithFixedDelay(this::safeRefresh, 0, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        refresher.shutdownNow();
+    }
+
+    private void safeRefresh() {
+        try {
+            refresh();
+        } catch (Exception e) {
+            log.warn("Recommendation fallback pool refresh failed: {}", e.toString());
+        }
+    }
+}
@@ -1,47 +1,376 @@
 package org.example.carpet.repository;
 
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.model.EscrowHold;
+import org.example.carpet.model.EscrowJournal;
+import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Repository;
 
-import java.util.Map;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
- * Simple in-memory inventory store.
- * Later this can be replaced by a MongoDB collection like:
- * { sku: "RUG-12345", availableQuantity: 18 }
+ * 热门 SKU 的内存库存托管（escrow），挡在 Mongo items.stockQuantity 前面
+ *
+ * - 租约：从 Mongo 一次扣走一块库存（lease-size，走 tryDeduct 原子扣减），放进本机托管
+ * - 预留 / 释放：只对托管余额做 CAS，余额按 stripes 分段（每段独占缓存行），不同线程落在不同分段上，
+ *   热门 sku 的吞吐随核数扩展，而不是受单文档写延迟限制；单段不够时加锁合并分段 / 续租
+ * - 对账：后台定时把长时间没有续租的余额还回 Mongo（tryRestock）；停机时全部归还
+ *
+ * 持久性（durability）：租走的库存在 Mongo 里已经扣掉，所以进程崩溃只会"少卖"，不会超卖。
+ *  - lease（默认）：托管余额只在内存里，崩溃时每个 sku 最多丢 max-leased，需人工回补
+ *  - journal：余额分成可无锁扣减的部分（不超过 journal-chunk）和持久下限 floor 两段，
+ *    floor 写在 inventory_escrow_journal（instance-id#sku）里，每扣完一块才写一次；
+ *    同一 instance-id 的下一次启动把上次留下的 floor 还回 items。崩溃时每个 sku 最多丢 journal-chunk（加上正在续租的那一块）
+ *  要更强的持久性也可以调小 lease-size / max-leased / idle-return，或者不把该 sku 配成热门（enabled=false 时全部直接走 Mongo）。
+ *
+ * 多行订单（reserveAll）的预留按 token 记在 inventory_escrow_holds 里（不在进程内存），
+ * releaseAll / commitAll 按 token 幂等处理，重启后或由别的实例处理也能正确回补。
  */
+@Slf4j
 @Repository
 public class InventoryRepository {
 
-    // 模拟库存：key=sku, value=库存数量
-    private final Map<String, Integer> inventory = new ConcurrentHashMap<>();
+    private static final int PAD = 8;   // 每段占 8 个 long（64 字节），避免伪共享
 
-    public InventoryRepository() {
-        // 你可以预置一些SKU库存，demo用
-        inventory.put("RUG-12345", 18);
-        inventory.put("RUG-RED-001", 12);
-        inventory.put("HOTEL-WALL2WALL", 0); // 这个可能是 contact sales only
+    /** 单个 sku 的托管余额 */
+    private static final class Escrow {
+        final String sku;
+        final AtomicLongArray cells;
+        final int stripes;
+        volatile long lastLeaseAt = System.nanoTime();
+        volatile long floor;   // journal 模式的持久下限（不在分段里，只在持锁时改）
+
+        Escrow(String sku, int stripes) {
+            this.sku = sku;
+            this.stripes = stripes;
+            this.cells = new AtomicLongArray(stripes * PAD);
+        }
+
+        /** 无锁：从当前线程的分段开始找一个余额够的分段 CAS 扣减 */
+        boolean tryTake(int qty) {
+            int start = ThreadLocalRandom.current().nextInt(stripes);
+            for (int k = 0; k < stripes; k++) {
+                int idx = ((start + k) % stripes) * PAD;
+                long v;
+                while ((v = cells.get(idx)) >= qty) {
+                    if (cells.compareAndSet(idx, v, v - qty)) return true;
+                }
+            }
+            return false;
+        }
+
+        void put(long qty) {
+            cells.getAndAdd(ThreadLocalRandom.current().nextInt(stripes) * PAD, qty);
+        }
+
+        long balance() {
+            long sum = 0;
+            for (int i = 0; i < stripes; i++) sum += cells.get(i * PAD);
+            return sum;
+        }
+
+        /** 清空所有分段，返回清出的总量（需持有 this 锁，与续租/对账互斥） */
+        long drain() {
+            long sum = 0;
+            for (int i = 0; i < stripes; i++) sum += cells.getAndSet(i * PAD, 0);
+            return sum;
+        }
+    }
+
+    /** 托管余额的持久性 */
+    public enum Durability { LEASE, JOURNAL }
+
+    private final ItemDocumentRepository itemRepository;
+    private final MongoTemplate mongoTemplate;
+    private final boolean enabled;
+    private final Set<String> hotSkus;
+    private final int stripes;
+    private final int leaseSize;
+    private final int maxLeased;
+    private final Duration idleReturn;
+    private final Duration reconcileInterval;
+    private final Durability durability;
+    private final int journalChunk;
+    private final String instanceId;
+    private final String runId = UUID.randomUUID().toString();
+
+    private final ConcurrentHashMap<String, Escrow> escrows = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "inventory-escrow-reconciler");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public InventoryRepository(ItemDocumentRepository itemRepository,
+                               MongoTemplate mongoTemplate,
+                               @Value("${app.inventory.escrow.enabled:false}") boolean enabled,
+                               @Value("${app.inventory.escrow.skus:}") List<String> hotSkus,
+                               @Value("${app.inventory.escrow.stripes:0}") int stripes,
+                               @Value("${app.inventory.escrow.lease-size:50}") int leaseSize,
+                               @Value("${app.inventory.escrow.max-leased:200}") int maxLeased,
+                               @Value("${app.inventory.escrow.idle-return:PT30S}") Duration idleReturn,
+                               @Value("${app.inventory.escrow.reconcile-interval:PT5S}") Duration reconcileInterval,
+                               @Value("${app.inventory.escrow.durability:lease}") String durability,
+                               @Value("${app.inventory.escrow.journal-chunk:10}") int journalChunk,
+                               @Value("${app.inventory.escrow.instance-id:${HOSTNAME:local}}") String instanceId) {
+        this.itemRepository = itemRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.enabled = enabled;
+        this.hotSkus = new HashSet<>();
+        if (hotSkus != null) hotSkus.stream().map(String::trim).filter(s -> !s.isEmpty()).forEach(this.hotSkus::add);
+        this.stripes = stripes > 0 ? stripes : Runtime.getRuntime().availableProcessors();
+        this.leaseSize = Math.max(1, leaseSize);
+        this.maxLeased = Math.max(this.leaseSize, maxLeased);
+        this.idleReturn = idleReturn;
+        this.reconcileInterval = reconcileInterval;
+        this.durability = Durability.valueOf(durability.trim().toUpperCase(Locale.ROOT));
+        this.journalChunk = Math.max(1, journalChunk);
+        this.instanceId = instanceId;
+    }
+
+    /** 该 sku 是否由托管处理（否则调用方直接走 Mongo） */
+    public boolean handles(String sku) {
+        return enabled && hotSkus.contains(sku);
     }
 
-    // 返回可售数量
+    /** 托管中的可售余额（含 journal 下限；未托管的 sku 为 0） */
     public int getAvailableQuantity(String sku) {
-        return inventory.getOrDefault(sku, 0);
+        Escrow e = escrows.get(sku);
+        return e == null ? 0 : (int) (e.balance() + e.floor);
     }
 
-    // 尝试锁库存（下单前reserve）
-    // 返回true代表锁定成功
-    public boolean reserve(String sku, int quantity) {
-        int current = inventory.getOrDefault(sku, 0);
-        if (current >= quantity) {
-            inventory.put(sku, current - quantity);
-            return true;
+    /**
+     * 锁库存：先无锁扣托管余额；不够时加锁合并分段并向 Mongo 续租。
+     * 成功返回扣后的托管余额；失败返回托管余额 + Mongo 剩余（即整体可用量）。
+     */
+    public StockMutation reserve(String sku, int quantity) {
+        Escrow e = escrow(sku);
+        if (e.tryTake(quantity)) return StockMutation.applied(sku, available(e));
+        synchronized (e) {
+            long merged = e.drain();   // 余额可能分散在多个分段里，合并成一段再试
+            e.put(merged);
+            if (e.tryTake(quantity)) return StockMutation.applied(sku, available(e));
+
+            // journal：先把持久下限挪一块出来（先降下限再放进分段）
+            if (e.floor > 0) {
+                long move = Math.min(e.floor, Math.max(journalChunk, quantity - e.balance()));
+                journal(e, e.floor - move);
+                e.put(move);
+                if (e.tryTake(quantity)) return StockMutation.applied(sku, available(e));
+            }
+
+            long need = quantity - e.balance();
+            int lease = (int) Math.max(need, Math.min(leaseSize, maxLeased - e.balance()));
+            StockMutation leased = itemRepository.tryDeduct(sku, lease);
+            if (!leased.isApplied() && leased.getQuantity() >= need) {
+                // 不够一整块，但剩余量够这次：把 Mongo 剩下的全部租过来
+                lease = leased.getQuantity();
+                leased = itemRepository.tryDeduct(sku, lease);
+            }
+            if (!leased.isApplied()) {
+                return StockMutation.rejected(sku, available(e) + leased.getQuantity());
+            }
+            e.put(lease - protect(e, lease - Math.max(quantity, journalChunk)));
+            e.lastLeaseAt = System.nanoTime();
+            if (e.tryTake(quantity)) return StockMutation.applied(sku, available(e));
+            return StockMutation.rejected(sku, available(e));
         }
-        return false;
     }
 
-    // 释放库存（订单取消 / 支付失败）
+    /** 释放库存：加回托管余额（多出来的由对账还给 Mongo） */
     public void release(String sku, int quantity) {
-        int current = inventory.getOrDefault(sku, 0);
-        inventory.put(sku, current + quantity);
+        escrow(sku).put(quantity);
+    }
+
+    /**
+     * 多行预留（只含托管的 sku，按 sku 顺序）：任一失败则已扣的退回托管，返回失败的 sku；
+     * 成功时按 token 写一条 inventory_escrow_holds。
+     */
+    public Optional<StockMutation> reserveAll(String token, SortedMap<String, Integer> quantities) {
+        Map<String, Integer> taken = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> line : quantities.entrySet()) {
+            StockMutation m = reserve(line.getKey(), line.getValue());
+            if (!m.isApplied()) {
+                taken.forEach(this::release);
+                return Optional.of(m);
+            }
+            taken.put(line.getKey(), line.getValue());
+        }
+        if (taken.isEmpty()) return Optional.empty();
+        try {
+            mongoTemplate.insert(EscrowHold.builder().token(token).quantities(taken).createdAt(LocalDateTime.now()).build());
+        } catch (RuntimeException ex) {
+            taken.forEach(this::release);
+            throw ex;
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * 按 token 回补（幂等，哪个实例都可以处理）：摘掉预留记录，本机托管的 sku 放回托管，
+     * 本机没托管的（比如该实例没开 escrow）直接还给 items。返回回补的 sku 数。
+     */
+    public int releaseAll(String token) {
+        if (hotSkus.isEmpty()) return 0;   // 没配置过热门 sku，不会有预留记录
+        EscrowHold hold = mongoTemplate.findAndRemove(byToken(token), EscrowHold.class);
+        if (hold == null || hold.getQuantities() == null) return 0;
+        hold.getQuantities().forEach((sku, qty) -> {
+            if (handles(sku)) release(sku, qty);
+            else giveBack(sku, qty);
+        });
+        return hold.getQuantities().size();
+    }
+
+    /** 确认 token 的预留（支付成功）：库存保持扣减，只删预留记录 */
+    public void commitAll(String token) {
+        if (hotSkus.isEmpty()) return;
+        mongoTemplate.remove(byToken(token), EscrowHold.class);
+    }
+
+    /**
+     * 对账：长时间没有续租的 sku，把托管余额还给 Mongo；余额超过 max-leased 的把多余部分还回去。
+     */
+    public void reconcile() {
+        long now = System.nanoTime();
+        for (Escrow e : escrows.values()) {
+            synchronized (e) {
+                long free = e.drain();
+                long total = free + e.floor;
+                long keep = now - e.lastLeaseAt >= idleReturn.toNanos() ? 0 : Math.min(total, maxLeased);
+                long floor = durability == Durability.JOURNAL ? Math.max(0, keep - journalChunk) : 0;
+                if (floor != e.floor) {
+                    try {
+                        journal(e, floor);   // 先改下限再还库存：崩溃后不会把还过的部分再还一次
+                    } catch (RuntimeException ex) {
+                        e.put(free);
+                        throw ex;
+                    }
+                }
+                e.put(keep - floor);
+                if (total > keep) giveBack(e, total - keep);
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) return;
+        if (durability == Durability.JOURNAL) recover();
+        long periodMs = Math.max(100L, reconcileInterval.toMillis());
+        reconciler.scheduleWithFixedDelay(this::safeReconcile, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /** 停机：全部余额还给 Mongo（journal 记录先清掉，清不掉的那部分留给下次启动 recover） */
+    @PreDestroy
+    public void stop() {
+        reconciler.shutdownNow();
+        for (Escrow e : escrows.values()) {
+            synchronized (e) {
+                long balance = e.drain();
+                long floor = e.floor; // journal(e, 0) 会把 e.floor 清零，先记下来
+                if (floor > 0) {
+                    try {
+                        journal(e, 0);
+                        balance += floor;
+                    } catch (RuntimeException ex) {
+                        log.warn("Escrow journal not cleared for sku={}, floor={} left for recovery: {}",
+                                e.sku, floor, ex.toString());
+                    }
+                }
+                if (balance > 0) giveBack(e, balance);
+            }
+        }
+    }
+
+    /** journal 模式启动：上一次运行（同一 instance-id）留下的持久下限还回 items */
+    int recover() {
+        int recovered = 0;
+        Query mine = Query.query(Criteria.where("instanceId").is(instanceId).and("runId").ne(runId));
+        for (EscrowJournal j : mongoTemplate.find(mine, EscrowJournal.class)) {
+            EscrowJournal claimed = mongoTemplate.findAndRemove(
+                    Query.query(Criteria.where("_id").is(j.getId()).and("runId").is(j.getRunId())), EscrowJournal.class);
+            if (claimed == null || claimed.getFloor() <= 0) continue;
+            giveBack(claimed.getSku(), claimed.getFloor());
+            recovered++;
+        }
+        if (recovered > 0) log.info("Escrow journal recovered: {} skus returned to items", recovered);
+        return recovered;
+    }
+
+    /** 刚租到 amount 件：journal 模式下把超出可无锁部分的量记进持久下限，返回记进去的量 */
+    private long protect(Escrow e, long amount) {
+        if (durability != Durability.JOURNAL || amount <= 0) return 0;
+        try {
+            journal(e, e.floor + amount);
+            return amount;
+        } catch (RuntimeException ex) {
+            // 记不下来就整块放进分段（退化成 lease 模式），库存已经从 Mongo 扣掉了，不能丢
+            log.warn("Escrow journal write failed for sku={}: {}", e.sku, ex.toString());
+            return 0;
+        }
+    }
+
+    /** 写持久下限（持有 e 的锁）；成功后才改内存里的 floor */
+    private void journal(Escrow e, long floor) {
+        Query q = Query.query(Criteria.where("_id").is(EscrowJournal.idOf(instanceId, e.sku)));
+        if (floor <= 0) {
+            mongoTemplate.remove(q, EscrowJournal.class);
+        } else {
+            mongoTemplate.upsert(q, new Update().set("instanceId", instanceId).set("runId", runId)
+                    .set("sku", e.sku).set("floor", floor).set("updatedAt", LocalDateTime.now()), EscrowJournal.class);
+        }
+        e.floor = Math.max(0, floor);
+    }
+
+    private static int available(Escrow e) {
+        return (int) (e.balance() + e.floor);
+    }
+
+    private static Query byToken(String token) {
+        return Query.query(Criteria.where("_id").is(token));
+    }
+
+    private void giveBack(Escrow e, long qty) {
+        StockMutation r = itemRepository.tryRestock(e.sku, (int) qty);
+        if (!r.isApplied()) {
+            // 文档不存在（已下架）：留在托管里，下次再试
+            e.put(qty);
+            log.warn("Escrow return failed for sku={} qty={}", e.sku, qty);
+        }
+    }
+
+    private void giveBack(String sku, long qty) {
+        StockMutation r = itemRepository.tryRestock(sku, (int) qty);
+        if (!r.isApplied()) log.warn("Escrow return failed for sku={} qty={}", sku, qty);
+    }
+
+    private void safeReconcile() {
+        try {
+            reconcile();
+        } catch (Exception ex) {
+            log.warn("Inventory escrow reconcile failed: {}", ex.toString());
+        }
+    }
+
+    private Escrow escrow(String sku) {
+        return escrows.computeIfAbsent(sku, s -> new Escrow(s, stripes));
     }
 }
@@ -1,10 +1,11 @@
 package org.example.carpet.repository.mongo;
 
 import org.example.carpet.model.ItemDocument;
-import org.springframework.data.domain.Pageable;
 import org.springframework.data.mongodb.repository.MongoRepository;
-import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.mongodb.repository.Aggregation;
+import org.springframework.data.mongodb.repository.Hint;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -13,18 +14,19 @@ public interface ItemDocumentRepository
 
     Optional<ItemDocument> findBySku(String sku);
 
-    // 相关推荐：按 roomType / keywords 命中任一项，且排除本 sku
-    @Query("""
-      { $and: [
-        { "sku": { $ne: ?2 } },
-        { $or: [
-            { "roomType": { $in: ?0 } },
-            { "keywords": { $in: ?1 } }
-        ] }
-      ] }
-    """)
-    List<ItemDocument> findRelated(List<String> roomTypes, List<String> keywords,
-                                   String excludeSku, Pageable pageable);
+    // 多个 sku 一次 $in 读取；强制走 sku 唯一索引
+    @Hint("sku")
+    List<ItemDocument> findBySkuIn(Collection<String> skus);
+
+    // 相关推荐：tags 命中任一即入选（走 tags 多键索引），按命中个数降序；excludeSku 为 null 时不排除
+    @Aggregation(pipeline = {
+            "{ $match: { tags: { $in: ?0 }, sku: { $ne: ?1 } } }",
+            "{ $addFields: { _overlap: { $size: { $setIntersection: [ '$tags', ?0 ] } } } }",
+            "{ $sort: { _overlap: -1, sku: 1 } }",
+            "{ $limit: ?2 }",
+            "{ $project: { _overlap: 0 } }"
+    })
+    List<ItemDocument> findRelated(List<String> tags, String excludeSku, int limit);
 
     // 注意：tryDeduct / tryRestock 的实现放在自定义 fragment 里（见下）
 }
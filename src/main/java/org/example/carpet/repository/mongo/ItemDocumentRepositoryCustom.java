@@ -1,14 +1,73 @@
 package org.example.carpet.repository.mongo;
 
+import org.example.carpet.dto.BulkItemResult;
+import org.example.carpet.dto.ItemSummary;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.model.ItemDocument;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+
 public interface ItemDocumentRepositoryCustom {
 
     /**
-     * 尝试扣减库存：仅当 stockQuantity >= qty 时成功，成功返回 1，失败返回 0。
+     * 尝试扣减库存：仅当 stockQuantity >= qty 时成功。数量与 stockAvailable 一次原子更新，
+     * 成功返回扣减后的库存；失败返回当前可用库存（sku 不存在为 0）。
+     */
+    StockMutation tryDeduct(String sku, int qty);
+
+    /**
+     * 回补库存（只要文档存在就 +qty，stockAvailable 同步更新）。成功返回回补后的库存，未找到返回 rejected。
+     */
+    StockMutation tryRestock(String sku, int qty);
+
+    /**
+     * 全有或全无地预留多个 sku（quantities 按 sku 排序，bulkWrite 按此顺序执行）。
+     * 成功的文档记下 token（reservationTokens），之后用同一个 token 回补 / 确认。
+     * 全部成功返回 empty；否则已扣的已回补，返回第一个失败 sku 的当前库存。
+     */
+    Optional<StockMutation> reserveAll(String token, SortedMap<String, Integer> quantities);
+
+    /**
+     * 按 token 回补（只处理仍带着该 token 的文档，可重复调用）。返回实际回补的 sku 数。
+     */
+    int releaseAll(String token, SortedMap<String, Integer> quantities);
+
+    /**
+     * 批量按 token 回补（多个订单一次 bulkWrite）：byToken 为 token -> (sku -> qty)，语义同上。
+     */
+    int releaseAll(Map<String, SortedMap<String, Integer>> byToken);
+
+    /**
+     * 确认预留（支付成功）：摘掉 token，库存保持扣减。
+     */
+    void commitAll(String token, Collection<String> skus);
+
+    /**
+     * 游标分页（keyset）：按 sku 升序取 afterSku 之后的 limit 条，只投影列表页字段。
+     * afterSku 为 null 表示第一页。走 sku 索引，深翻页与首页成本相同。
+     */
+    List<ItemSummary> findSummariesAfter(String afterSku, int limit);
+
+    /**
+     * 批量按 sku 取列表页字段：一次 $in 查询（hint sku 索引），返回 sku -> summary（不存在的 sku 不出现）。
+     */
+    Map<String, ItemSummary> findSummariesBySkuIn(Collection<String> skus);
+
+    /**
+     * 批量按 sku upsert（unordered bulkWrite）：效果等同整文档覆盖（未给出的字段被清掉），
+     * _id 保持不变，version +1。返回每个文档的结果（顺序同入参，index 为入参下标）。
+     * 例外：reservationTokens 从不覆盖；已存在文档的 stockQuantity / stockAvailable 只在没有未完成预留、
+     * 库存也没有拆分（stockSharded）时覆盖（第二次 bulkWrite），没覆盖的报 PARTIAL（error 里是原因）。docs 内的 sku 必须互不相同。
      */
-    int tryDeduct(String sku, int qty);
+    List<BulkItemResult> bulkUpsertBySku(List<ItemDocument> docs);
 
     /**
-     * 回补库存（只要文档存在就 +qty）。成功返回 1，未找到返回 0。
+     * 单个商品按 sku upsert（管理员 POST /items），语义同 bulkUpsertBySku；返回写入后的文档。
+     * 库存字段没写进去时抛 StockNotWrittenException（其它字段已经写入，异常里带着写入后的文档）。
      */
-    int tryRestock(String sku, int qty);
+    ItemDocument upsertBySku(ItemDocument doc);
 }
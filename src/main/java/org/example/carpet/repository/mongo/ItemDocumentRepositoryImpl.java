@@ -1,60 +1,330 @@
 package org.example.carpet.repository.mongo;
 
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import org.bson.Document;
+import org.example.carpet.dto.BulkItemResult;
+import org.example.carpet.dto.ItemSummary;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.exception.StockNotWrittenException;
 import org.example.carpet.model.ItemDocument;
+import org.example.carpet.search.ItemTags;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mapping.PropertyHandler;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.AggregationExpression;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.aggregation.ArithmeticOperators;
+import org.springframework.data.mongodb.core.aggregation.ComparisonOperators;
+import org.springframework.data.mongodb.core.aggregation.ConditionalOperators;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Repository;
 
+import java.util.*;
+
 /**
- * Implementation of atomic stock operations using MongoTemplate.
+ * Implementation of atomic stock operations and projection queries using MongoTemplate.
  */
 @Repository
 public class ItemDocumentRepositoryImpl implements ItemDocumentRepositoryCustom {
 
+    private static final String RESERVATION_TOKENS = "reservationTokens";
+    private static final String STOCK_SHARDED = "stockSharded";
+    private static final Set<String> STOCK_FIELDS = Set.of("stockQuantity", "stockAvailable");
+
     private final MongoTemplate mongoTemplate;
 
     public ItemDocumentRepositoryImpl(MongoTemplate mongoTemplate) {
         this.mongoTemplate = mongoTemplate;
     }
 
+    /**
+     * 扣减：条件 stockQuantity >= qty，数量和 stockAvailable 在同一个 pipeline 更新里算出（一次往返、原子），
+     * 返回更新后的文档；条件不满足时才额外读一次当前库存用于报错。
+     */
     @Override
-    public int tryDeduct(String sku, int qty) {
+    public StockMutation tryDeduct(String sku, int qty) {
         Query q = Query.query(
                 Criteria.where("sku").is(sku)
                         .and("stockQuantity").gte(qty)
         );
-        Update u = new Update().inc("stockQuantity", -qty);
-        ItemDocument before = mongoTemplate.findAndModify(q, u, ItemDocument.class);
-        if (before == null) {
-            return 0; // 库存不足或不存在
+        ItemDocument after = mutateStock(q, deducted(qty));
+        if (after == null) {
+            return StockMutation.rejected(sku, currentStock(sku)); // 库存不足或不存在
         }
+        return StockMutation.applied(sku, after.getStockQuantity());
+    }
 
-        int newQty = (before.getStockQuantity() == null ? 0 : before.getStockQuantity()) - qty;
-        mongoTemplate.updateFirst(
-                Query.query(Criteria.where("sku").is(sku)),
-                new Update().set("stockAvailable", newQty > 0),
-                ItemDocument.class
-        );
-        return 1;
+    @Override
+    public StockMutation tryRestock(String sku, int qty) {
+        Query q = Query.query(Criteria.where("sku").is(sku));
+        ItemDocument after = mutateStock(q, restocked(qty));
+        if (after == null) {
+            return StockMutation.rejected(sku, 0);
+        }
+        return StockMutation.applied(sku, after.getStockQuantity());
+    }
+
+    /**
+     * 多 sku 全有或全无的预留（单机 Mongo 没有多文档事务，用一次有序 bulkWrite 代替）：
+     * 每个 sku 一条条件更新 —— stockQuantity >= qty 且该文档上还没有这个 token，
+     * 扣减数量、重算 stockAvailable，并把 token 记进 reservationTokens。
+     * 全部命中即成功（一次往返）；否则查出哪些文档已带 token，按 token 条件回补（幂等），返回第一个失败的 sku。
+     */
+    @Override
+    public Optional<StockMutation> reserveAll(String token, SortedMap<String, Integer> quantities) {
+        if (quantities.isEmpty()) return Optional.empty();
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, ItemDocument.class);
+        for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+            Query q = Query.query(Criteria.where("sku").is(e.getKey())
+                    .and("stockQuantity").gte(e.getValue())
+                    .and("reservationTokens").ne(token));
+            AggregationUpdate u = stockUpdate(deducted(e.getValue()))
+                    .set("reservationTokens").toValue((AggregationExpression) ctx -> new Document("$concatArrays",
+                            List.of(new Document("$ifNull", Arrays.asList("$reservationTokens", List.of())), List.of(token))));
+            bulk.updateOne(q, u);
+        }
+        if (bulk.execute().getModifiedCount() == quantities.size()) return Optional.empty();
+
+        // 部分命中：找出已扣减的 sku 回补，第一个没扣到的就是失败原因
+        Query held = Query.query(Criteria.where("sku").in(quantities.keySet()).and("reservationTokens").is(token));
+        held.fields().include("sku");
+        Set<String> heldSkus = new HashSet<>();
+        for (ItemDocument d : mongoTemplate.find(held, ItemDocument.class)) heldSkus.add(d.getSku());
+        String failed = null;
+        SortedMap<String, Integer> undo = new TreeMap<>();
+        for (Map.Entry<String, Integer> e : quantities.entrySet()) {
+            if (heldSkus.contains(e.getKey())) undo.put(e.getKey(), e.getValue());
+            else if (failed == null) failed = e.getKey();
+        }
+        releaseAll(token, undo);
+        // 理论上 failed 不会为空（modifiedCount 不足说明至少一条没命中）；兜底取第一个 sku
+        if (failed == null) failed = quantities.firstKey();
+        return Optional.of(StockMutation.rejected(failed, currentStock(failed)));
+    }
+
+    /** 按 token 回补：只有仍带着该 token 的文档才加回数量并摘掉 token，重复调用不会多加 */
+    @Override
+    public int releaseAll(String token, SortedMap<String, Integer> quantities) {
+        return releaseAll(Map.of(token, quantities));
+    }
+
+    /** 多个 token 的回补合进一次 bulkWrite（预留到期批处理用） */
+    @Override
+    public int releaseAll(Map<String, SortedMap<String, Integer>> byToken) {
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, ItemDocument.class);
+        int ops = 0;
+        for (Map.Entry<String, SortedMap<String, Integer>> t : byToken.entrySet()) {
+            String token = t.getKey();
+            for (Map.Entry<String, Integer> e : t.getValue().entrySet()) {
+                Query q = Query.query(Criteria.where("sku").is(e.getKey()).and("reservationTokens").is(token));
+                AggregationUpdate u = stockUpdate(restocked(e.getValue()))
+                        .set("reservationTokens").toValue((AggregationExpression) ctx -> new Document("$setDifference",
+                                List.of("$reservationTokens", List.of(token))));
+                bulk.updateOne(q, u);
+                ops++;
+            }
+        }
+        if (ops == 0) return 0;
+        return bulk.execute().getModifiedCount();
     }
 
+    /** 预留转为正式扣减（支付成功）：只摘掉 token，数量不变 */
     @Override
-    public int tryRestock(String sku, int qty) {
+    public void commitAll(String token, Collection<String> skus) {
+        if (skus.isEmpty()) return;
+        mongoTemplate.updateMulti(
+                Query.query(Criteria.where("sku").in(skus).and("reservationTokens").is(token)),
+                new Update().pull("reservationTokens", token),
+                ItemDocument.class);
+    }
+
+    /** stockQuantity = newQty；stockAvailable = newQty > 0（同一次 pipeline 更新） */
+    private ItemDocument mutateStock(Query q, AggregationExpression newQty) {
+        q.fields().include("sku", "stockQuantity");
+        return mongoTemplate.findAndModify(q, stockUpdate(newQty),
+                FindAndModifyOptions.options().returnNew(true), ItemDocument.class);
+    }
+
+    /** stockQuantity - qty（基于更新前的值） */
+    static AggregationExpression deducted(int qty) {
+        return ArithmeticOperators.Subtract.valueOf("stockQuantity").subtract(qty);
+    }
+
+    /** stockQuantity（缺失按 0）+ qty（基于更新前的值） */
+    static AggregationExpression restocked(int qty) {
+        return ArithmeticOperators.Add.valueOf(ConditionalOperators.ifNull("stockQuantity").then(0)).add(qty);
+    }
+
+    static AggregationUpdate stockUpdate(AggregationExpression newQty) {
+        // 每个 set 是独立的 $set 阶段，按顺序执行：第二阶段看到的已是新数量
+        return AggregationUpdate.update()
+                .set("stockQuantity").toValue(newQty)
+                .set("stockAvailable").toValue(ComparisonOperators.Gt.valueOf("stockQuantity").greaterThanValue(0));
+    }
+
+    private int currentStock(String sku) {
         Query q = Query.query(Criteria.where("sku").is(sku));
-        Update u = new Update().inc("stockQuantity", qty);
-        ItemDocument before = mongoTemplate.findAndModify(q, u, ItemDocument.class);
-        if (before == null) {
-            return 0;
+        q.fields().include("stockQuantity");
+        ItemDocument cur = mongoTemplate.findOne(q, ItemDocument.class);
+        return cur == null || cur.getStockQuantity() == null ? 0 : cur.getStockQuantity();
+    }
+
+    @Override
+    public List<ItemSummary> findSummariesAfter(String afterSku, int limit) {
+        Query q = afterSku == null
+                ? new Query()
+                : Query.query(Criteria.where("sku").gt(afterSku));
+        q.with(Sort.by(Sort.Direction.ASC, "sku")).limit(limit);
+        q.fields().include("sku", "name", "unitPrice", "imageUrl", "stockAvailable").exclude("_id");
+        return mongoTemplate.find(q, ItemSummary.class, mongoTemplate.getCollectionName(ItemDocument.class));
+    }
+
+    @Override
+    public Map<String, ItemSummary> findSummariesBySkuIn(Collection<String> skus) {
+        Map<String, ItemSummary> out = new LinkedHashMap<>();
+        if (skus == null || skus.isEmpty()) return out;
+        Query q = Query.query(Criteria.where("sku").in(skus)).withHint(new Document("sku", 1));
+        q.fields().include("sku", "name", "unitPrice", "imageUrl", "stockAvailable").exclude("_id");
+        for (ItemSummary s : mongoTemplate.find(q, ItemSummary.class, mongoTemplate.getCollectionName(ItemDocument.class))) {
+            out.put(s.getSku(), s);
         }
+        return out;
+    }
 
-        int newQty = (before.getStockQuantity() == null ? 0 : before.getStockQuantity()) + qty;
-        mongoTemplate.updateFirst(
-                Query.query(Criteria.where("sku").is(sku)),
-                new Update().set("stockAvailable", newQty > 0),
-                ItemDocument.class
-        );
-        return 1;
+    @Override
+    public List<BulkItemResult> bulkUpsertBySku(List<ItemDocument> docs) {
+        if (docs.isEmpty()) return List.of();
+        BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class);
+        for (ItemDocument d : docs) {
+            d.setTags(ItemTags.of(d));   // 直接 convert + bulkWrite 不经过 BeforeConvertCallback（ItemTagsCallback）
+            ops.upsert(Query.query(Criteria.where("sku").is(d.getSku())), replaceAll(d));
+        }
+
+        BulkWriteResult result;
+        Map<Integer, String> errors = new HashMap<>();
+        try {
+            result = ops.execute();
+        } catch (BulkOperationException e) {
+            // unordered：其余操作照常执行，只有出错的那几条失败
+            result = e.getResult();
+            for (BulkWriteError err : e.getErrors()) errors.put(err.getIndex(), err.getMessage());
+        }
+        Set<Integer> inserted = new HashSet<>();
+        for (BulkWriteUpsert u : result.getUpserts()) inserted.add(u.getIndex());
+
+        // 已存在的文档：库存字段只在没有未完成预留（reservationTokens 为空）时覆盖，
+        // 否则回补 / 确认时按 token 计算的数量会和管理员写入的值对不上；
+        // 已拆分库存（stockSharded）的也不覆盖：售卖只看分片，merge 时分片余量还会叠加上来
+        BulkOperations stock = null;
+        List<Integer> stockOps = new ArrayList<>();   // 第二批里第 n 个操作 -> docs 下标
+        for (int i = 0; i < docs.size(); i++) {
+            if (errors.containsKey(i) || inserted.contains(i)) continue;
+            if (stock == null) stock = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class);
+            stock.updateOne(Query.query(Criteria.where("sku").is(docs.get(i).getSku())
+                            .and(STOCK_SHARDED).ne(true).andOperator(noHolds())),
+                    stockFields(docs.get(i)));
+            stockOps.add(i);
+        }
+        Map<Integer, String> skipped = new HashMap<>();   // 其它字段写了、库存字段没写的
+        if (stock != null) {
+            BulkWriteResult stockResult;
+            try {
+                stockResult = stock.execute();
+            } catch (BulkOperationException e) {
+                stockResult = e.getResult();
+                for (BulkWriteError err : e.getErrors()) {
+                    int i = stockOps.get(err.getIndex());
+                    errors.put(i, "stock fields not written: " + err.getMessage());
+                }
+            }
+            // 有条件没命中的（一般不会有）：再一次 $in 查出是哪些 sku 挡住了
+            Map<String, Integer> bySku = new HashMap<>();
+            for (int i : stockOps) if (!errors.containsKey(i)) bySku.put(docs.get(i).getSku(), i);
+            if (stockResult.getMatchedCount() < bySku.size()) {
+                Query blocked = Query.query(Criteria.where("sku").in(bySku.keySet())
+                        .orOperator(Criteria.where(STOCK_SHARDED).is(true), new Criteria().norOperator(noHolds())));
+                blocked.fields().include("sku", STOCK_SHARDED);
+                for (ItemDocument d : mongoTemplate.find(blocked, ItemDocument.class)) {
+                    skipped.put(bySku.get(d.getSku()), Boolean.TRUE.equals(d.getStockSharded())
+                            ? "stock not written: stock is sharded"
+                            : "stock not written: open reservations");
+                }
+            }
+        }
+
+        List<BulkItemResult> out = new ArrayList<>(docs.size());
+        for (int i = 0; i < docs.size(); i++) {
+            String sku = docs.get(i).getSku();
+            if (errors.containsKey(i)) out.add(BulkItemResult.failed(i, sku, errors.get(i)));
+            else if (skipped.containsKey(i)) out.add(BulkItemResult.partial(i, sku, skipped.get(i)));
+            else out.add(BulkItemResult.builder().index(i).sku(sku)
+                        .status(inserted.contains(i) ? BulkItemResult.Status.CREATED : BulkItemResult.Status.UPDATED)
+                        .build());
+        }
+        return out;
+    }
+
+    @Override
+    public ItemDocument upsertBySku(ItemDocument doc) {
+        BulkItemResult r = bulkUpsertBySku(List.of(doc)).get(0);
+        if (r.getStatus() == BulkItemResult.Status.FAILED) {
+            throw new DataIntegrityViolationException("Upsert of " + doc.getSku() + " failed: " + r.getError());
+        }
+        ItemDocument saved = mongoTemplate.findOne(Query.query(Criteria.where("sku").is(doc.getSku())), ItemDocument.class);
+        if (r.getStatus() == BulkItemResult.Status.PARTIAL) {
+            throw new StockNotWrittenException(saved, r.getError());
+        }
+        return saved;
+    }
+
+    /**
+     * 整文档覆盖写成 $set（给出的字段）+ $unset（其余映射字段）+ $inc version，保证 upsert 时 _id 不变。
+     * reservationTokens / stockSharded 只归库存写路径管，永远不动；库存字段只在插入时写（已有文档见 stockFields）。
+     */
+    private Update replaceAll(ItemDocument d) {
+        Document fields = new Document();
+        mongoTemplate.getConverter().write(d, fields);
+        MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext()
+                .getRequiredPersistentEntity(ItemDocument.class);
+        Update u = new Update();
+        entity.doWithProperties((PropertyHandler<MongoPersistentProperty>) p -> {
+            if (p.isIdProperty() || p.isVersionProperty()) return;
+            String field = p.getFieldName();
+            if (RESERVATION_TOKENS.equals(field) || STOCK_SHARDED.equals(field) || STOCK_FIELDS.contains(field)) return;
+            if (fields.containsKey(field)) u.set(field, fields.get(field));
+            else u.unset(field);
+        });
+        for (String field : STOCK_FIELDS) {
+            if (fields.containsKey(field)) u.setOnInsert(field, fields.get(field));
+        }
+        if (fields.containsKey("_class")) u.set("_class", fields.get("_class"));
+        String version = entity.getRequiredVersionProperty().getFieldName();
+        return u.inc(version, 1);
+    }
+
+    /** 管理员给出的库存字段（没给的清掉，与整文档覆盖语义一致） */
+    static Update stockFields(ItemDocument d) {
+        Update u = new Update();
+        if (d.getStockQuantity() != null) u.set("stockQuantity", d.getStockQuantity());
+        else u.unset("stockQuantity");
+        if (d.getStockAvailable() != null) u.set("stockAvailable", d.getStockAvailable());
+        else u.unset("stockAvailable");
+        return u;
+    }
+
+    /** 没有未完成的多行预留 */
+    static Criteria noHolds() {
+        return new Criteria().orOperator(Criteria.where(RESERVATION_TOKENS).is(null),
+                Criteria.where(RESERVATION_TOKENS).size(0));
     }
 }
@@ -0,0 +1,59 @@
+package org.example.carpet.repository.mongo;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.search.ItemTags;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertCallback;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 维护 items.tags：
+ *  - 每次写入 ItemDocument（repository.save / template.save / insert）前重新计算
+ *  - 启动后给历史文档补一次：没有 tags 字段的，或 tags 与当前分词规则算出来的不一致的
+ *    （分词规则调整后，例如中文改成二字切分，旧数据会在下次启动时自动重算）
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class ItemTagsCallback implements BeforeConvertCallback<ItemDocument> {
+
+    private final MongoTemplate mongoTemplate;
+
+    @Override
+    public ItemDocument onBeforeConvert(ItemDocument entity, String collection) {
+        entity.setTags(ItemTags.of(entity));
+        return entity;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfill() {
+        try {
+            BulkOperations ops = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class);
+            int stale = 0;
+            try (Stream<ItemDocument> all = mongoTemplate.stream(new Query(), ItemDocument.class)) {
+                for (ItemDocument d : (Iterable<ItemDocument>) all::iterator) {
+                    List<String> tags = ItemTags.of(d);
+                    if (tags.equals(d.getTags())) continue;
+                    ops.updateOne(Query.query(Criteria.where("_id").is(d.getId())), new Update().set("tags", tags));
+                    stale++;
+                }
+            }
+            if (stale == 0) return;
+            ops.execute();
+            log.info("Backfilled tags for {} items", stale);
+        } catch (Exception e) {
+            log.warn("Item tags backfill failed: {}", e.toString());
+        }
+    }
+}
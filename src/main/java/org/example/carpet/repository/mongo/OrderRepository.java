@@ -7,7 +7,7 @@ import org.springframework.data.mongodb.repository.MongoRepository;
 
 import java.util.Optional;
 
-public interface OrderRepository extends MongoRepository<OrderDocument, String> {
+public interface OrderRepository extends MongoRepository<OrderDocument, String>, OrderRepositoryCustom {
 
     Optional<OrderDocument> findByOrderId(String orderId);
 
@@ -0,0 +1,44 @@
+package org.example.carpet.repository.mongo;
+
+import org.example.carpet.model.Address;
+import org.example.carpet.model.OrderDocument;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+public interface OrderRepositoryCustom {
+
+    /**
+     * 认领到期订单（批量）：orderIds 里 status = RESERVED 且 createdAt <= createdBefore 的改成 EXPIRING（一次 updateMulti），
+     * 返回这批里所有处于 EXPIRING 的订单（包括之前认领了但没处理完的）。已支付 / 已取消的不会被认领。
+     */
+    List<OrderDocument> claimForExpiry(Collection<String> orderIds, LocalDateTime createdBefore);
+
+    /**
+     * 完成到期：EXPIRING -> CANCELLED，清掉 reservationToken。返回更新的订单数。
+     */
+    long completeExpiry(Collection<String> orderIds);
+
+    /**
+     * 兜底扫描：已经超时仍是 RESERVED 的订单，以及卡在 EXPIRING 的订单，至多 limit 个 orderId。
+     */
+    List<String> findExpirableOrderIds(LocalDateTime createdBefore, int limit);
+
+    /**
+     * 条件状态流转：只有当前 status 在 from 里才改成 to，同时清掉 reservationToken（一次 findAndModify）。
+     * 成功返回流转前的订单（带着原来的 reservationToken），状态已被别人改掉返回 empty。
+     */
+    Optional<OrderDocument> transition(String orderId, Collection<String> from, String to);
+
+    /**
+     * 只改配送地址，且只在 status 仍在 allowed 里时生效；返回更新后的订单，状态不符返回 empty。
+     */
+    Optional<OrderDocument> updateShippingAddress(String orderId, Collection<String> allowed, Address address);
+
+    /**
+     * 只改下单邮箱，条件同 updateShippingAddress。
+     */
+    Optional<OrderDocument> updateCustomerEmail(String orderId, Collection<String> allowed, String customerEmail);
+}
@@ -0,0 +1,88 @@
+package org.example.carpet.repository.mongo;
+
+import org.example.carpet.model.Address;
+import org.example.carpet.model.OrderDocument;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * 订单状态流转（条件 updateMulti / findAndModify，避免逐单读改写把并发写的状态覆盖掉）。
+ */
+@Repository
+public class OrderRepositoryImpl implements OrderRepositoryCustom {
+
+    private final MongoTemplate mongoTemplate;
+
+    public OrderRepositoryImpl(MongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    @Override
+    public List<OrderDocument> claimForExpiry(Collection<String> orderIds, LocalDateTime createdBefore) {
+        if (orderIds.isEmpty()) return List.of();
+        mongoTemplate.updateMulti(
+                Query.query(Criteria.where("orderId").in(orderIds)
+                        .and("status").is("RESERVED")
+                        .and("createdAt").lte(createdBefore)),
+                new Update().set("status", "EXPIRING").set("updatedAt", LocalDateTime.now()),
+                OrderDocument.class);
+        return mongoTemplate.find(
+                Query.query(Criteria.where("orderId").in(orderIds).and("status").is("EXPIRING")),
+                OrderDocument.class);
+    }
+
+    @Override
+    public long completeExpiry(Collection<String> orderIds) {
+        if (orderIds.isEmpty()) return 0;
+        return mongoTemplate.updateMulti(
+                Query.query(Criteria.where("orderId").in(orderIds).and("status").is("EXPIRING")),
+                new Update().set("status", "CANCELLED").unset("reservationToken").set("updatedAt", LocalDateTime.now()),
+                OrderDocument.class).getModifiedCount();
+    }
+
+    @Override
+    public List<String> findExpirableOrderIds(LocalDateTime createdBefore, int limit) {
+        Query q = Query.query(new Criteria().orOperator(
+                Criteria.where("status").is("RESERVED").and("createdAt").lte(createdBefore),
+                Criteria.where("status").is("EXPIRING")));
+        q.fields().include("orderId");
+        q.limit(limit);
+        return mongoTemplate.find(q, OrderDocument.class).stream().map(OrderDocument::getOrderId).toList();
+    }
+
+    @Override
+    public Optional<OrderDocument> transition(String orderId, Collection<String> from, String to) {
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                Query.query(Criteria.where("orderId").is(orderId).and("status").in(from)),
+                new Update().set("status", to).unset("reservationToken").set("updatedAt", LocalDateTime.now()),
+                FindAndModifyOptions.options().returnNew(false),
+                OrderDocument.class));
+    }
+
+    @Override
+    public Optional<OrderDocument> updateShippingAddress(String orderId, Collection<String> allowed, Address address) {
+        return updateIfStatus(orderId, allowed, new Update().set("shippingAddress", address));
+    }
+
+    @Override
+    public Optional<OrderDocument> updateCustomerEmail(String orderId, Collection<String> allowed, String customerEmail) {
+        return updateIfStatus(orderId, allowed, new Update().set("customerEmail", customerEmail));
+    }
+
+    private Optional<OrderDocument> updateIfStatus(String orderId, Collection<String> allowed, Update update) {
+        return Optional.ofNullable(mongoTemplate.findAndModify(
+                Query.query(Criteria.where("orderId").is(orderId).and("status").in(allowed)),
+                update.set("updatedAt", LocalDateTime.now()),
+                FindAndModifyOptions.options().returnNew(true),
+                OrderDocument.class));
+    }
+}
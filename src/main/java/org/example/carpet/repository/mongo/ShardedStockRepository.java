@@ -0,0 +1,305 @@
+package org.example.carpet.repository.mongo;
+
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.model.ItemStockShard;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Repository;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 分片库存计数器（可选模式，只对 app.inventory.shards.skus 里的高并发 sku 生效）
+ *
+ * - 一个 sku 的库存拆到 N 个 item_stock_shards 子文档上；扣减随机挑一个分片做条件扣减，
+ *   不够就试相邻分片，都不够再按各分片余量拆开扣（任一步被并发抢走则全部退回）
+ * - 回补随机加到一个分片上
+ * - 可用库存 = 各分片之和，按 cache-ttl 缓存；本机扣减/回补顺手修正缓存。
+ *   重新汇总时如果有货/无货翻转，同步 items.stockAvailable（列表页用）
+ * - 是否分片以 items.stockSharded 为准（和可用库存一起缓存），不看本机配置：
+ *   handles = 本机配置了该 sku 且标记为 true；各实例配置不一致时，没配置的实例走 items（库存已搬走，只会拒单，不会超卖）
+ * - 启动时：配置了的 sku 抢着把标记从非 true 改成 true，抢到的那个实例把 items.stockQuantity 搬进分片；
+ *   不再配置的 sku 抢着把标记改回 false，抢到的实例把分片库存合并回 items，
+ *   分片上未完成的 holds 转成 items.reservationTokens（数量已扣，之后按 token 在 items 上回补 / 确认）
+ * - 多行预留（reserveAll）在分片上记 holds(token, qty)，按 token 回补 / 确认，和 items.reservationTokens 一样幂等
+ */
+@Slf4j
+@Repository
+public class ShardedStockRepository {
+
+    private static final int NEIGHBOURS = 2;   // 随机分片不够时再试的相邻分片数
+
+    private record Cached(int quantity, boolean sharded, long loadedAt) {}
+
+    private final MongoTemplate mongoTemplate;
+    private final ItemDocumentRepository itemRepository;
+    private final Set<String> shardedSkus;
+    private final int shardCount;
+    private final long cacheTtlNanos;
+
+    private final ConcurrentHashMap<String, Cached> available = new ConcurrentHashMap<>();
+
+    public ShardedStockRepository(MongoTemplate mongoTemplate,
+                                  ItemDocumentRepository itemRepository,
+                                  @Value("${app.inventory.shards.skus:}") List<String> shardedSkus,
+                                  @Value("${app.inventory.shards.count:8}") int shardCount,
+                                  @Value("${app.inventory.shards.cache-ttl:PT1S}") Duration cacheTtl) {
+        this.mongoTemplate = mongoTemplate;
+        this.itemRepository = itemRepository;
+        this.shardedSkus = new HashSet<>();
+        if (shardedSkus != null) shardedSkus.stream().map(String::trim).filter(s -> !s.isEmpty()).forEach(this.shardedSkus::add);
+        this.shardCount = Math.max(1, shardCount);
+        this.cacheTtlNanos = cacheTtl.toNanos();
+    }
+
+    /** 该 sku 是否走分片库存（否则调用方直接用 items.stockQuantity） */
+    public boolean handles(String sku) {
+        return shardedSkus.contains(sku) && cached(sku).sharded();
+    }
+
+    /** 可用库存（各分片之和，cache-ttl 内直接用缓存） */
+    public int available(String sku) {
+        return cached(sku).quantity();
+    }
+
+    /** 扣减：成功返回扣后的（缓存）可用库存，失败返回各分片之和 */
+    public StockMutation tryDeduct(String sku, int qty) {
+        return deduct(sku, qty, null);
+    }
+
+    /** 回补：加到随机一个分片上；分片已被合并回 items 时直接回补 items */
+    public StockMutation tryRestock(String sku, int qty) {
+        int start = ThreadLocalRandom.current().nextInt(shardCount);
+        for (int k = 0; k < shardCount; k++) {
+            int shard = (start + k) % shardCount;
+            if (mongoTemplate.updateFirst(byId(sku, shard), new Update().inc("quantity", qty), ItemStockShard.class)
+                    .getModifiedCount() == 1) {
+                adjust(sku, qty);
+                return StockMutation.applied(sku, available(sku));
+            }
+        }
+        available.remove(sku);
+        return itemRepository.tryRestock(sku, qty);
+    }
+
+    /**
+     * 多行预留（按 sku 顺序）：每个 sku 扣减时在分片上记下 token；任一失败则按 token 全部退回，返回失败的 sku。
+     */
+    public Optional<StockMutation> reserveAll(String token, SortedMap<String, Integer> quantities) {
+        for (Map.Entry<String, Integer> line : quantities.entrySet()) {
+            StockMutation m = deduct(line.getKey(), line.getValue(), token);
+            if (!m.isApplied()) {
+                releaseAll(token, quantities.keySet());
+                return Optional.of(m);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /** 按 token 回补：只处理仍记着该 token 的分片，重复调用不会多加。返回实际回补的 sku 数 */
+    public int releaseAll(String token, Collection<String> skus) {
+        if (skus.isEmpty()) return 0;
+        Query q = Query.query(Criteria.where("sku").in(skus).and("holds.token").is(token));
+        Set<String> released = new HashSet<>();
+        for (ItemStockShard s : mongoTemplate.find(q, ItemStockShard.class)) {
+            for (ItemStockShard.Hold h : s.getHolds()) {
+                if (token.equals(h.getToken()) && giveBack(s.getSku(), s.getShard(), h.getQty(), token)) {
+                    released.add(s.getSku());
+                }
+            }
+        }
+        return released.size();
+    }
+
+    /** 确认预留（支付成功）：只摘掉 hold，数量保持扣减 */
+    public void commitAll(String token, Collection<String> skus) {
+        if (skus.isEmpty()) return;
+        mongoTemplate.updateMulti(
+                Query.query(Criteria.where("sku").in(skus).and("holds.token").is(token)),
+                new Update().pull("holds", new Document("token", token)),
+                ItemStockShard.class);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        for (String sku : shardedSkus) {
+            try {
+                split(sku);
+            } catch (Exception e) {
+                log.warn("Stock sharding failed for sku={}: {}", sku, e.toString());
+            }
+        }
+        try {
+            for (String sku : mongoTemplate.findDistinct(new Query(), "sku", ItemStockShard.class, String.class)) {
+                if (!shardedSkus.contains(sku)) merge(sku);
+            }
+        } catch (Exception e) {
+            log.warn("Stock shard merge-back failed: {}", e.toString());
+        }
+    }
+
+    // ------------------------------------------------------------------
+
+    private StockMutation deduct(String sku, int qty, String token) {
+        // 1) 随机分片 + 相邻分片：单分片条件扣减，一次往返
+        int start = ThreadLocalRandom.current().nextInt(shardCount);
+        for (int k = 0; k <= Math.min(NEIGHBOURS, shardCount - 1); k++) {
+            if (take(sku, (start + k) % shardCount, qty, token)) {
+                adjust(sku, -qty);
+                return StockMutation.applied(sku, available(sku));
+            }
+        }
+
+        // 2) 没有单个分片够：读出各分片余量，拆开扣；中途被并发抢走就把已扣的退回
+        List<ItemStockShard> shards = new ArrayList<>(mongoTemplate.find(
+                Query.query(Criteria.where("sku").is(sku)), ItemStockShard.class));
+        int total = shards.stream().mapToInt(ItemStockShard::getQuantity).sum();
+        if (total < qty) {
+            available.compute(sku, (k, c) -> new Cached(total, c == null || c.sharded(), System.nanoTime()));
+            return StockMutation.rejected(sku, total);
+        }
+        shards.sort(Comparator.comparingInt(ItemStockShard::getQuantity).reversed());
+        Map<Integer, Integer> taken = new LinkedHashMap<>();
+        int remaining = qty;
+        for (ItemStockShard s : shards) {
+            if (remaining == 0) break;
+            int part = Math.min(remaining, s.getQuantity());
+            if (part <= 0) continue;
+            if (!take(sku, s.getShard(), part, token)) {
+                taken.forEach((shard, q) -> giveBack(sku, shard, q, token));
+                return StockMutation.rejected(sku, reload(sku));
+            }
+            taken.put(s.getShard(), part);
+            remaining -= part;
+        }
+        adjust(sku, -qty);
+        return StockMutation.applied(sku, available(sku));
+    }
+
+    /** 单分片条件扣减：quantity >= qty（带 token 时该分片上还没有这个 token 的 hold） */
+    private boolean take(String sku, int shard, int qty, String token) {
+        Criteria c = Criteria.where("_id").is(ItemStockShard.idOf(sku, shard)).and("quantity").gte(qty);
+        Update u = new Update().inc("quantity", -qty);
+        if (token != null) {
+            c = c.and("holds.token").ne(token);
+            u.push("holds", new ItemStockShard.Hold(token, qty));
+        }
+        return mongoTemplate.updateFirst(Query.query(c), u, ItemStockShard.class).getModifiedCount() == 1;
+    }
+
+    /** 退回单分片上扣走的数量；带 token 时只有 hold 还在才退（幂等） */
+    private boolean giveBack(String sku, int shard, int qty, String token) {
+        Criteria c = Criteria.where("_id").is(ItemStockShard.idOf(sku, shard));
+        Update u = new Update().inc("quantity", qty);
+        if (token != null) {
+            c = c.and("holds.token").is(token);
+            u.pull("holds", new Document("token", token));
+        }
+        boolean ok = mongoTemplate.updateFirst(Query.query(c), u, ItemStockShard.class).getModifiedCount() == 1;
+        if (ok) adjust(sku, qty);
+        return ok;
+    }
+
+    private Cached cached(String sku) {
+        Cached c = available.get(sku);
+        if (c != null && System.nanoTime() - c.loadedAt() < cacheTtlNanos) return c;
+        reload(sku);
+        return available.get(sku);
+    }
+
+    /** 重新汇总各分片并读分片标记；有货/无货翻转时同步 items.stockAvailable */
+    private int reload(String sku) {
+        Query q = Query.query(Criteria.where("sku").is(sku));
+        q.fields().include("quantity");
+        int total = mongoTemplate.find(q, ItemStockShard.class).stream().mapToInt(ItemStockShard::getQuantity).sum();
+        boolean sharded = mongoTemplate.exists(
+                Query.query(Criteria.where("sku").is(sku).and("stockSharded").is(true)), ItemDocument.class);
+        Cached prev = available.put(sku, new Cached(total, sharded, System.nanoTime()));
+        if (!sharded) return total;   // 已合并回 items：stockAvailable 由 items 的扣减 / 回补维护
+        if (prev == null || (prev.quantity() > 0) != (total > 0)) {
+            mongoTemplate.updateFirst(
+                    Query.query(Criteria.where("sku").is(sku).and("stockAvailable").ne(total > 0)),
+                    new Update().set("stockAvailable", total > 0),
+                    ItemDocument.class);
+        }
+        return total;
+    }
+
+    private void adjust(String sku, int delta) {
+        available.computeIfPresent(sku, (k, c) -> new Cached(Math.max(0, c.quantity() + delta), c.sharded(), c.loadedAt()));
+    }
+
+    /** 把 items.stockQuantity 搬进 N 个分片（只有把 stockSharded 改成 true 的那个实例搬） */
+    private void split(String sku) {
+        Query item = Query.query(Criteria.where("sku").is(sku));
+        if (mongoTemplate.exists(item, ItemStockShard.class)) {
+            // 已有分片（比如标记出现之前就拆过）：只补上标记
+            mongoTemplate.updateFirst(item, new Update().set("stockSharded", true), ItemDocument.class);
+            return;
+        }
+        if (mongoTemplate.updateFirst(Query.query(Criteria.where("sku").is(sku).and("stockSharded").ne(true)),
+                new Update().set("stockSharded", true), ItemDocument.class).getModifiedCount() == 0) {
+            return;   // 别的实例已经拆了，或商品不存在
+        }
+        for (int i = 0; i < shardCount; i++) {
+            mongoTemplate.upsert(byId(sku, i),
+                    new Update().setOnInsert("sku", sku).setOnInsert("shard", i).setOnInsert("quantity", 0),
+                    ItemStockShard.class);
+        }
+        // 从 items 文档原子地取走当前库存；期间有并发扣减就按新的库存重试
+        StockMutation probe = itemRepository.tryDeduct(sku, Integer.MAX_VALUE);
+        int moved = probe.getQuantity();
+        while (moved > 0) {
+            StockMutation m = itemRepository.tryDeduct(sku, moved);
+            if (m.isApplied()) break;
+            moved = m.getQuantity();
+        }
+        for (int i = 0; i < shardCount && moved > 0; i++) {
+            int part = moved / shardCount + (i < moved % shardCount ? 1 : 0);
+            if (part > 0) mongoTemplate.updateFirst(byId(sku, i), new Update().inc("quantity", part), ItemStockShard.class);
+        }
+        reload(sku);
+        log.info("Stock for sku={} split into {} shards (moved {})", sku, shardCount, Math.max(0, moved));
+    }
+
+    /**
+     * 不再分片的 sku：先把 stockSharded 改回 false（只有改成功的实例继续），再逐个删除分片，
+     * 数量加回 items.stockQuantity，未完成的 holds 转成 items.reservationTokens
+     */
+    void merge(String sku) {
+        if (mongoTemplate.updateFirst(Query.query(Criteria.where("sku").is(sku).and("stockSharded").ne(false)),
+                new Update().set("stockSharded", false), ItemDocument.class).getModifiedCount() == 0) {
+            return;   // 别的实例正在 / 已经合并，或商品不存在
+        }
+        available.remove(sku);
+        int merged = 0;
+        Set<String> tokens = new LinkedHashSet<>();
+        ItemStockShard s;
+        while ((s = mongoTemplate.findAndRemove(Query.query(Criteria.where("sku").is(sku)), ItemStockShard.class)) != null) {
+            if (s.getHolds() != null) s.getHolds().forEach(h -> tokens.add(h.getToken()));
+            if (s.getQuantity() > 0) itemRepository.tryRestock(sku, s.getQuantity());
+            merged += s.getQuantity();
+        }
+        if (!tokens.isEmpty()) {
+            // hold 的数量在分片上已经扣掉了，不加回 stockQuantity；记成 items 上的预留，之后按 token 回补 / 确认
+            mongoTemplate.updateFirst(Query.query(Criteria.where("sku").is(sku)),
+                    new Update().addToSet("reservationTokens").each(tokens.toArray()), ItemDocument.class);
+        }
+        log.info("Stock shards for sku={} merged back into items (qty {}, {} open holds moved)", sku, merged, tokens.size());
+    }
+
+    private static Query byId(String sku, int shard) {
+        return Query.query(Criteria.where("_id").is(ItemStockShard.idOf(sku, shard)));
+    }
+}
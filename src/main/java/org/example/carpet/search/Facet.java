@@ -0,0 +1,47 @@
+package org.example.carpet.search;
+
+import org.example.carpet.model.ItemDocument;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * 可做分面过滤/计数的商品字段。
+ * String 字段按逗号拆成多个值（如 color = "beige, brown, red"），List 字段逐项取值；统一小写。
+ */
+public enum Facet {
+    CATEGORY("category", ItemDocument::getCategory),
+    COLOR("color", ItemDocument::getColor),
+    ROOM_TYPE("roomType", ItemDocument::getRoomType),
+    MATERIAL("material", ItemDocument::getMaterial);
+
+    /** 对外（JSON / 请求参数）使用的字段名 */
+    public final String key;
+    private final Function<ItemDocument, Object> getter;
+
+    Facet(String key, Function<ItemDocument, Object> getter) {
+        this.key = key;
+        this.getter = getter;
+    }
+
+    List<String> valuesOf(ItemDocument doc) {
+        List<String> out = new ArrayList<>();
+        Object v = getter.apply(doc);
+        if (v instanceof Collection<?>) {
+            for (Object o : (Collection<?>) v) if (o != null) addSplit(String.valueOf(o), out);
+        } else if (v != null) {
+            addSplit(String.valueOf(v), out);
+        }
+        return out;
+    }
+
+    private static void addSplit(String raw, List<String> out) {
+        for (String part : raw.split(",")) {
+            String t = part.trim().toLowerCase(Locale.ROOT);
+            if (!t.isEmpty() && !out.contains(t)) out.add(t);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.example.carpet.search;
+
+import org.example.carpet.model.ItemDocument;
+
+import java.util.*;
+
+/**
+ * 分面位图：每个 (facet, value) 一个 BitSet，位下标即 item ordinal。
+ * ordinal 是稠密分配的，BitSet 每个商品只占 1 bit，过滤就是位图 AND / OR。
+ * 非线程安全，由 ItemSearchIndex 的读写锁保护。
+ */
+final class FacetIndex {
+
+    private final EnumMap<Facet, TreeMap<String, BitSet>> bitmaps = new EnumMap<>(Facet.class);
+
+    FacetIndex() {
+        for (Facet f : Facet.values()) bitmaps.put(f, new TreeMap<>());
+    }
+
+    void clear() {
+        for (TreeMap<String, BitSet> m : bitmaps.values()) m.clear();
+    }
+
+    void add(int ord, ItemDocument doc) {
+        for (Facet f : Facet.values()) {
+            for (String v : f.valuesOf(doc)) {
+                bitmaps.get(f).computeIfAbsent(v, k -> new BitSet()).set(ord);
+            }
+        }
+    }
+
+    void remove(int ord, ItemDocument doc) {
+        for (Facet f : Facet.values()) {
+            TreeMap<String, BitSet> m = bitmaps.get(f);
+            for (String v : f.valuesOf(doc)) {
+                BitSet b = m.get(v);
+                if (b == null) continue;
+                b.clear(ord);
+                if (b.isEmpty()) m.remove(v);
+            }
+        }
+    }
+
+    /**
+     * 过滤位图：needles 之间 OR。
+     * 与原先 containsAny 语义保持一致——值里包含 needle 即命中（"blue" 命中 "light blue"）；
+     * 值字典很小，扫一遍字典再 OR 位图即可。
+     * needles 为空返回 null，表示该维度不过滤。
+     */
+    BitSet filter(Facet facet, List<String> needles) {
+        if (needles == null || needles.isEmpty()) return null;
+        BitSet acc = new BitSet();
+        for (Map.Entry<String, BitSet> e : bitmaps.get(facet).entrySet()) {
+            for (String n : needles) {
+                if (e.getKey().contains(n)) {
+                    acc.or(e.getValue());
+                    break;
+                }
+            }
+        }
+        return acc;
+    }
+
+    /** within 内每个值的命中数，按数量降序（同数量按值升序），0 的不返回 */
+    Map<String, Integer> counts(Facet facet, BitSet within) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>();
+        for (Map.Entry<String, BitSet> e : bitmaps.get(facet).entrySet()) {
+            BitSet b = (BitSet) e.getValue().clone();
+            b.and(within);
+            int c = b.cardinality();
+            if (c > 0) entries.add(Map.entry(e.getKey(), c));
+        }
+        entries.sort((a, b) -> b.getValue() - a.getValue());   // 稳定排序，TreeMap 已按值升序
+        Map<String, Integer> out = new LinkedHashMap<>();
+        for (Map.Entry<String, Integer> e : entries) out.put(e.getKey(), e.getValue());
+        return out;
+    }
+}
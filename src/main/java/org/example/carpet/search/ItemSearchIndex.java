@@ -0,0 +1,445 @@
+package org.example.carpet.search;
+
+import org.example.carpet.catalog.CatalogListener;
+import org.example.carpet.catalog.CatalogSnapshot;
+import org.example.carpet.model.ItemDocument;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 常驻内存的商品倒排索引（token -> posting list of item ordinal）
+ *
+ * - 每个 SKU 分配一个稠密 ordinal，更新时复用
+ * - 全文 token：sku / name / description / keywords / category / color / roomType
+ * - 查询 token 按前缀展开（TreeMap 范围查询），近似原来的 contains 语义；
+ *   前缀无命中时走 TrigramIndex 做编辑距离容错（"persain" -> persian，"carpt" -> carpet）
+ * - category / color / roomType / material 过滤与计数走 FacetIndex 位图
+ * - 相关度：BM25F（name / keywords / description 带字段权重），定长小顶堆取 top-k，不做全量排序
+ *
+ * 读多写少：读写锁保护；upsert 只改动该商品涉及的 posting list / 位图。
+ * 数据来源是 CatalogCache：快照替换时通过 CatalogListener 增量（或全量）同步。
+ */
+@Component
+@Order(0)   // 先于 SearchResultCache 收到目录变更，缓存失效时看到的已是新索引
+public class ItemSearchIndex implements CatalogListener {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, PostingList> terms = new TreeMap<>();
+    private final TrigramIndex trigrams = new TrigramIndex();       // terms 的 key 上的拼写容错索引
+    private final FacetIndex facets = new FacetIndex();
+    private final List<ItemDocument> docs = new ArrayList<>();       // ordinal -> doc
+    private final Map<String, Integer> ordinalBySku = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private final List<DocStats> stats = new ArrayList<>();           // ordinal -> 打分字段的词频/长度
+    private final long[] totalFieldLength = new long[ScoredField.VALUES.length];
+    private final Set<String> reindexed = new HashSet<>();            // 检索字段变过、还没被 SearchResultCache 取走的 sku
+    private volatile boolean loaded;
+
+    // BM25 参数
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    /** 前缀展开命中（非完整词）的折扣 */
+    private static final double PREFIX_DISCOUNT = 0.5;
+    /** 拼写容错命中的折扣（再按编辑距离递减） */
+    private static final double FUZZY_DISCOUNT = 0.4;
+
+    /** 参与打分的字段及权重 */
+    enum ScoredField {
+        NAME(3.0), KEYWORDS(2.0), DESCRIPTION(1.0);
+        static final ScoredField[] VALUES = values();
+        final double boost;
+        ScoredField(double boost) { this.boost = boost; }
+    }
+
+    /** 单个商品在各打分字段上的词频与长度 */
+    private static final class DocStats {
+        final Map<String, int[]> tf = new HashMap<>();     // term -> 每个字段的词频
+        final int[] length = new int[ScoredField.VALUES.length];
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return ordinalBySku.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** 全量重建（启动时 / 首次查询时） */
+    public void rebuild(Collection<ItemDocument> items) {
+        lock.writeLock().lock();
+        try {
+            terms.clear();
+            trigrams.clear();
+            facets.clear();
+            docs.clear();
+            ordinalBySku.clear();
+            live.clear();
+            stats.clear();
+            Arrays.fill(totalFieldLength, 0L);
+            for (ItemDocument doc : items) {
+                if (doc != null && doc.getSku() != null) upsertLocked(doc);
+            }
+            reindexed.clear();   // 全量重建后缓存整体清空，不需要逐个 sku 失效
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** 增量更新单个商品：先摘掉旧 token，再挂上新 token */
+    public void upsert(ItemDocument doc) {
+        if (doc == null || doc.getSku() == null) return;
+        lock.writeLock().lock();
+        try {
+            upsertLocked(doc);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** 下架 / 删除 */
+    public void remove(String sku) {
+        if (sku == null) return;
+        lock.writeLock().lock();
+        try {
+            Integer ord = ordinalBySku.remove(sku);
+            if (ord == null) return;
+            unindexLocked(ord, docs.get(ord));
+            docs.set(ord, null);
+            reindexed.add(sku);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedSkus, boolean fullReload) {
+        if (fullReload) {
+            rebuild(snapshot.items());
+            return;
+        }
+        for (String sku : changedSkus) {
+            ItemDocument doc = snapshot.get(sku);
+            if (doc == null) remove(sku);
+            else upsert(doc);
+        }
+    }
+
+    /**
+     * 取走自上次调用以来检索字段（文本 / 分面 / 打分字段）真正变化过的 sku；
+     * 只改库存 / 价格的 upsert 不在其中（SearchResultCache 据此跳过失效）
+     */
+    public Set<String> drainReindexed() {
+        lock.writeLock().lock();
+        try {
+            Set<String> out = new HashSet<>(reindexed);
+            reindexed.clear();
+            return out;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** 当前索引里的文档（sku 不在索引里时为 null） */
+    public ItemDocument get(String sku) {
+        lock.readLock().lock();
+        try {
+            Integer ord = ordinalBySku.get(sku);
+            return ord == null ? null : docs.get(ord);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** 不分页：返回全部命中（按相关度排序） */
+    public List<ItemDocument> search(SearchQuery query) {
+        return search(query, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 查询：q 的每个 token 都必须命中全文索引；
+     * 每个分面内多个值为 OR，分面之间为 AND。
+     * 有 q 时按 BM25F 分数降序（同分按入库顺序），无 q 时按入库顺序；只返回 [offset, offset+limit)。
+     */
+    public List<ItemDocument> search(SearchQuery query, int offset, int limit) {
+        lock.readLock().lock();
+        try {
+            List<String> tokens = TextTokenizer.tokenize(query.q());
+            BitSet hits = matchText(tokens);
+            hits.and(facetFilter(query, null));
+
+            int from = Math.max(0, offset);
+            int want = (int) Math.min((long) from + Math.max(0, limit), hits.cardinality());
+            List<ItemDocument> out = new ArrayList<>();
+            if (want <= from) return out;
+
+            if (tokens.isEmpty()) {
+                int i = 0;
+                for (int ord = hits.nextSetBit(0); ord >= 0 && i < want; ord = hits.nextSetBit(ord + 1), i++) {
+                    if (i >= from) out.add(docs.get(ord));
+                }
+                return out;
+            }
+
+            for (int ord : topK(tokens, hits, want)) {
+                if (from-- > 0) continue;
+                out.add(docs.get(ord));
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** 某个商品当前是否命中查询（口径与 search 相同；SearchResultCache 用它做精确失效） */
+    public boolean matches(SearchQuery query, String sku) {
+        lock.readLock().lock();
+        try {
+            Integer ord = ordinalBySku.get(sku);
+            if (ord == null) return false;
+            for (String t : TextTokenizer.tokenize(query.q())) {
+                boolean hit = false;
+                for (String term : expand(t).keySet()) {
+                    if (terms.get(term).contains(ord)) {
+                        hit = true;
+                        break;
+                    }
+                }
+                if (!hit) return false;
+            }
+            for (Facet f : Facet.values()) {
+                BitSet b = facets.filter(f, query.filter(f));
+                if (b != null && !b.get(ord)) return false;
+            }
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 分面计数（facet key -> value -> count）。
+     * 每个分面的计数不受它自身的过滤条件约束（只应用 q 和其它分面），
+     * 这样侧边栏勾选一个颜色后，其它颜色仍能显示可选数量。
+     */
+    public Map<String, Map<String, Integer>> facetCounts(SearchQuery query) {
+        lock.readLock().lock();
+        try {
+            BitSet text = matchText(TextTokenizer.tokenize(query.q()));
+            Map<String, Map<String, Integer>> out = new LinkedHashMap<>();
+            for (Facet f : Facet.values()) {
+                BitSet within = (BitSet) text.clone();
+                within.and(facetFilter(query, f));
+                out.put(f.key, facets.counts(f, within));
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // ------------------------------------------------------------
+    // 查询内部（调用方持有读锁）
+    // ------------------------------------------------------------
+
+    /** 全文命中；tokens 为空时返回全部在架商品 */
+    private BitSet matchText(List<String> tokens) {
+        BitSet acc = (BitSet) live.clone();
+        for (String t : tokens) {
+            acc.and(matchAny(expand(t).keySet()));
+            if (acc.isEmpty()) break;
+        }
+        return acc;
+    }
+
+    private BitSet matchAny(Collection<String> expanded) {
+        BitSet acc = new BitSet();
+        for (String term : expanded) {
+            PostingList p = terms.get(term);
+            for (int i = 0; i < p.size(); i++) acc.set(p.get(i));
+        }
+        return acc;
+    }
+
+    /**
+     * 查询 token -> 索引中的词及其打分权重：
+     * 完整词 1，前缀展开 PREFIX_DISCOUNT；都没有时才做拼写容错，权重 FUZZY_DISCOUNT / 距离。
+     */
+    private Map<String, Double> expand(String token) {
+        Map<String, Double> out = new LinkedHashMap<>();
+        for (String term : terms.subMap(token, true, token + Character.MAX_VALUE, false).keySet()) {
+            out.put(term, term.equals(token) ? 1.0 : PREFIX_DISCOUNT);
+        }
+        if (out.isEmpty()) {
+            trigrams.fuzzy(token, TrigramIndex.maxEditsFor(token))
+                    .forEach((term, d) -> out.put(term, FUZZY_DISCOUNT / d));
+        }
+        return out;
+    }
+
+    /**
+     * 小顶堆保留分数最高的 k 个（O(n log k)），返回按分数降序、同分 ordinal 升序的 ordinal 数组。
+     */
+    private int[] topK(List<String> tokens, BitSet hits, int k) {
+        // 每个 query token 展开出的词及权重，只算一次
+        List<Map<String, Double>> expansions = new ArrayList<>(tokens.size());
+        for (String t : tokens) expansions.add(expand(t));
+        int n = ordinalBySku.size();
+        double[] avgLen = new double[ScoredField.VALUES.length];
+        for (int f = 0; f < avgLen.length; f++) avgLen[f] = n == 0 ? 0 : (double) totalFieldLength[f] / n;
+
+        // 堆顶是当前第 k 名：分数最低，同分时 ordinal 最大
+        PriorityQueue<double[]> heap = new PriorityQueue<>(Math.max(1, k), (a, b) ->
+                a[0] != b[0] ? Double.compare(a[0], b[0]) : Double.compare(b[1], a[1]));
+        for (int ord = hits.nextSetBit(0); ord >= 0; ord = hits.nextSetBit(ord + 1)) {
+            double score = bm25(ord, expansions, n, avgLen);
+            if (heap.size() < k) {
+                heap.add(new double[]{score, ord});
+            } else if (score > heap.peek()[0]) {
+                heap.poll();
+                heap.add(new double[]{score, ord});
+            }
+        }
+        int[] out = new int[heap.size()];
+        for (int i = out.length - 1; i >= 0; i--) out[i] = (int) heap.poll()[1];
+        return out;
+    }
+
+    private double bm25(int ord, List<Map<String, Double>> expansions, int n, double[] avgLen) {
+        DocStats st = stats.get(ord);
+        double score = 0;
+        for (Map<String, Double> exp : expansions) {
+            for (Map.Entry<String, Double> e : exp.entrySet()) {
+                int[] tf = st.tf.get(e.getKey());
+                if (tf == null) continue;
+                double pseudoTf = 0;
+                for (ScoredField f : ScoredField.VALUES) {
+                    int i = f.ordinal();
+                    if (tf[i] == 0) continue;
+                    double norm = 1 - B + B * (avgLen[i] == 0 ? 1 : st.length[i] / avgLen[i]);
+                    pseudoTf += f.boost * tf[i] / norm;
+                }
+                int df = terms.get(e.getKey()).size();
+                double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+                double s = idf * pseudoTf * (K1 + 1) / (K1 + pseudoTf);
+                score += s * e.getValue();
+            }
+        }
+        return score;
+    }
+
+    /** 所有分面过滤的 AND；except 指定的分面不参与 */
+    private BitSet facetFilter(SearchQuery query, Facet except) {
+        BitSet acc = (BitSet) live.clone();
+        for (Facet f : Facet.values()) {
+            if (f == except) continue;
+            BitSet b = facets.filter(f, query.filter(f));
+            if (b != null) acc.and(b);
+        }
+        return acc;
+    }
+
+    // ------------------------------------------------------------
+    // 写入内部（调用方持有写锁）
+    // ------------------------------------------------------------
+
+    private void upsertLocked(ItemDocument doc) {
+        Integer existing = ordinalBySku.get(doc.getSku());
+        int ord;
+        if (existing != null) {
+            ord = existing;
+            ItemDocument prev = docs.get(ord);
+            docs.set(ord, doc);
+            // 检索字段没变（库存 / 价格等）：只换文档引用，不动 posting list / 位图 / 打分统计
+            if (sameIndexedFields(prev, doc)) return;
+            unindexLocked(ord, prev);
+        } else {
+            ord = docs.size();
+            docs.add(doc);
+            stats.add(null);
+            ordinalBySku.put(doc.getSku(), ord);
+        }
+        indexLocked(ord, doc);
+        reindexed.add(doc.getSku());
+    }
+
+    private static boolean sameIndexedFields(ItemDocument a, ItemDocument b) {
+        if (!Objects.equals(textTokens(a), textTokens(b))) return false;
+        for (ScoredField f : ScoredField.VALUES) {
+            if (!Objects.equals(scoredText(a, f), scoredText(b, f))) return false;
+        }
+        for (Facet f : Facet.values()) {
+            if (!Objects.equals(f.valuesOf(a), f.valuesOf(b))) return false;
+        }
+        return true;
+    }
+
+    private void indexLocked(int ord, ItemDocument doc) {
+        for (String t : textTokens(doc)) {
+            terms.computeIfAbsent(t, k -> {
+                trigrams.add(k);
+                return new PostingList();
+            }).add(ord);
+        }
+        facets.add(ord, doc);
+        live.set(ord);
+
+        DocStats st = new DocStats();
+        for (ScoredField f : ScoredField.VALUES) {
+            List<String> tokens = TextTokenizer.tokenize(scoredText(doc, f));
+            st.length[f.ordinal()] = tokens.size();
+            totalFieldLength[f.ordinal()] += tokens.size();
+            for (String t : tokens) st.tf.computeIfAbsent(t, x -> new int[ScoredField.VALUES.length])[f.ordinal()]++;
+        }
+        stats.set(ord, st);
+    }
+
+    private void unindexLocked(int ord, ItemDocument doc) {
+        for (String t : textTokens(doc)) {
+            PostingList p = terms.get(t);
+            if (p == null) continue;
+            p.remove(ord);
+            if (p.size() == 0) {
+                terms.remove(t);
+                trigrams.remove(t);
+            }
+        }
+        facets.remove(ord, doc);
+        live.clear(ord);
+
+        DocStats st = stats.get(ord);
+        if (st != null) {
+            for (int f = 0; f < totalFieldLength.length; f++) totalFieldLength[f] -= st.length[f];
+            stats.set(ord, null);
+        }
+    }
+
+    private static String scoredText(ItemDocument doc, ScoredField f) {
+        return switch (f) {
+            case NAME -> doc.getName();
+            case DESCRIPTION -> doc.getDescription();
+            case KEYWORDS -> doc.getKeywords() == null ? null : String.join(" ", doc.getKeywords());
+        };
+    }
+
+    private static List<String> textTokens(ItemDocument doc) {
+        List<String> text = new ArrayList<>();
+        TextTokenizer.tokenizeInto(doc.getSku(), text);
+        TextTokenizer.tokenizeInto(doc.getName(), text);
+        TextTokenizer.tokenizeInto(doc.getDescription(), text);
+        TextTokenizer.tokenizeInto(doc.getKeywords(), text);
+        TextTokenizer.tokenizeInto(doc.getCategory(), text);
+        TextTokenizer.tokenizeInto(doc.getColor(), text);
+        TextTokenizer.tokenizeInto(doc.getRoomType(), text);
+        return text;
+    }
+}
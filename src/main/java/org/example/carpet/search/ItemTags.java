@@ -0,0 +1,34 @@
+package org.example.carpet.search;
+
+import org.example.carpet.model.ItemDocument;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * ItemDocument.tags 的生成规则：roomType / keywords / name / material / color 分词后去重。
+ * 与推荐查询侧使用同一个 TextTokenizer，保证可以直接做 $in 精确匹配（走多键索引）。
+ */
+public final class ItemTags {
+
+    private ItemTags() {}
+
+    public static List<String> of(ItemDocument doc) {
+        List<String> tokens = new ArrayList<>();
+        TextTokenizer.tokenizeInto(doc.getRoomType(), tokens);
+        TextTokenizer.tokenizeInto(doc.getKeywords(), tokens);
+        TextTokenizer.tokenizeInto(doc.getName(), tokens);
+        TextTokenizer.tokenizeInto(doc.getMaterial(), tokens);
+        TextTokenizer.tokenizeInto(doc.getColor(), tokens);
+        return new ArrayList<>(new LinkedHashSet<>(tokens));
+    }
+
+    /** 查询侧：把若干逗号/空白分隔的标签串归一化成 tag 列表 */
+    public static List<String> normalize(String... raw) {
+        Set<String> out = new LinkedHashSet<>();
+        for (String r : raw) out.addAll(TextTokenizer.tokenize(r));
+        return new ArrayList<>(out);
+    }
+}
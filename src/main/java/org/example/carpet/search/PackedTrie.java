@@ -0,0 +1,120 @@
+package org.example.carpet.search;
+
+import java.util.*;
+
+/**
+ * 不可变的数组化前缀树（自动补全用）。
+ *
+ * - 节点按层序（BFS）编号，同一父节点的子节点连续存放且按字符有序，下钻时二分查找
+ * - 每个节点记录子树内最大权重 maxWeight，查询 top-N 时按 maxWeight 做最佳优先遍历，
+ *   不需要展开整棵子树
+ * - 全部是原始类型数组，没有节点对象
+ */
+final class PackedTrie {
+
+    static final PackedTrie EMPTY = build(new String[0], new String[0], new int[0]);
+
+    private final char[] label;        // node -> 入边字符
+    private final int[] firstChild;    // node -> 第一个子节点
+    private final int[] childCount;    // node -> 子节点个数
+    private final int[] maxWeight;     // node -> 子树最大权重
+    private final int[] phrase;        // node -> 以该节点结尾的短语下标，-1 表示没有
+    private final String[] display;    // phrase -> 展示文本
+    private final int[] weight;        // phrase -> 权重
+
+    private PackedTrie(char[] label, int[] firstChild, int[] childCount, int[] maxWeight, int[] phrase,
+                       String[] display, int[] weight) {
+        this.label = label;
+        this.firstChild = firstChild;
+        this.childCount = childCount;
+        this.maxWeight = maxWeight;
+        this.phrase = phrase;
+        this.display = display;
+        this.weight = weight;
+    }
+
+    /** keys 必须已排序且去重；display / weight 与 keys 一一对应 */
+    static PackedTrie build(String[] keys, String[] display, int[] weight) {
+        int cap = 1;
+        for (String k : keys) cap += k.length();
+        char[] label = new char[cap];
+        int[] firstChild = new int[cap];
+        int[] childCount = new int[cap];
+        int[] phrase = new int[cap];
+        Arrays.fill(phrase, -1);
+
+        // 队列元素：{node, lo, hi, depth}，[lo, hi) 是以该节点为前缀的 key 区间
+        ArrayDeque<int[]> queue = new ArrayDeque<>();
+        queue.add(new int[]{0, 0, keys.length, 0});
+        int next = 1;
+        while (!queue.isEmpty()) {
+            int[] e = queue.poll();
+            int node = e[0], lo = e[1], hi = e[2], depth = e[3];
+            if (lo < hi && keys[lo].length() == depth) phrase[node] = lo++;   // 排序后最短的在最前
+            firstChild[node] = next;
+            while (lo < hi) {
+                char c = keys[lo].charAt(depth);
+                int end = lo + 1;
+                while (end < hi && keys[end].charAt(depth) == c) end++;
+                int child = next++;
+                label[child] = c;
+                queue.add(new int[]{child, lo, end, depth + 1});
+                lo = end;
+            }
+            childCount[node] = next - firstChild[node];
+        }
+
+        int n = next;
+        int[] maxWeight = new int[n];
+        for (int node = n - 1; node >= 0; node--) {       // 子节点编号总比父节点大，倒序即自底向上
+            int m = phrase[node] >= 0 ? weight[phrase[node]] : 0;
+            for (int c = firstChild[node]; c < firstChild[node] + childCount[node]; c++) {
+                m = Math.max(m, maxWeight[c]);
+            }
+            maxWeight[node] = m;
+        }
+        return new PackedTrie(Arrays.copyOf(label, n), Arrays.copyOf(firstChild, n), Arrays.copyOf(childCount, n),
+                maxWeight, Arrays.copyOf(phrase, n), display, weight);
+    }
+
+    int size() {
+        return display.length;
+    }
+
+    /** 以 prefix 开头的权重最高的至多 n 个短语（同权重时较短、字典序靠前的优先） */
+    List<String> complete(String prefix, int n) {
+        int node = 0;
+        for (int i = 0; i < prefix.length() && node >= 0; i++) node = child(node, prefix.charAt(i));
+        List<String> out = new ArrayList<>();
+        if (node < 0 || n <= 0) return out;
+
+        // {权重, 是否为结果(1/0), 节点或短语下标}；权重降序，同权重先出结果，再按下标升序（= 字典序 / 层序）
+        PriorityQueue<long[]> pq = new PriorityQueue<>((a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0])
+                : a[1] != b[1] ? Long.compare(b[1], a[1]) : Long.compare(a[2], b[2]));
+        pq.add(new long[]{maxWeight[node], 0, node});
+        while (!pq.isEmpty() && out.size() < n) {
+            long[] e = pq.poll();
+            if (e[1] == 1) {
+                out.add(display[(int) e[2]]);
+                continue;
+            }
+            int nd = (int) e[2];
+            if (phrase[nd] >= 0) pq.add(new long[]{weight[phrase[nd]], 1, phrase[nd]});
+            for (int c = firstChild[nd]; c < firstChild[nd] + childCount[nd]; c++) {
+                pq.add(new long[]{maxWeight[c], 0, c});
+            }
+        }
+        return out;
+    }
+
+    private int child(int node, char c) {
+        int lo = firstChild[node], hi = lo + childCount[node] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (label[mid] < c) lo = mid + 1;
+            else if (label[mid] > c) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,38 @@
+package org.example.carpet.search;
+
+import java.util.Arrays;
+
+/**
+ * 倒排表：按升序存放 item ordinal 的可增长 int 数组（不装箱）。
+ * 非线程安全，由 ItemSearchIndex 的读写锁保护。
+ */
+final class PostingList {
+
+    private int[] ordinals = new int[4];
+    private int size;
+
+    int size() { return size; }
+
+    int get(int i) { return ordinals[i]; }
+
+    boolean contains(int ordinal) {
+        return Arrays.binarySearch(ordinals, 0, size, ordinal) >= 0;
+    }
+
+    void add(int ordinal) {
+        int pos = Arrays.binarySearch(ordinals, 0, size, ordinal);
+        if (pos >= 0) return; // 已存在
+        pos = -pos - 1;
+        if (size == ordinals.length) ordinals = Arrays.copyOf(ordinals, size * 2);
+        System.arraycopy(ordinals, pos, ordinals, pos + 1, size - pos);
+        ordinals[pos] = ordinal;
+        size++;
+    }
+
+    void remove(int ordinal) {
+        int pos = Arrays.binarySearch(ordinals, 0, size, ordinal);
+        if (pos < 0) return;
+        System.arraycopy(ordinals, pos + 1, ordinals, pos, size - pos - 1);
+        size--;
+    }
+}
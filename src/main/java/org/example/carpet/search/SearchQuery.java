@@ -0,0 +1,41 @@
+package org.example.carpet.search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 归一化后的搜索请求：q + 各分面过滤值（逗号分隔、去空白、小写）。
+ * q 按 TextTokenizer 分词后以单个空格拼接，过滤值去重排序；
+ * 语义相同的请求归一化后 equals / hashCode 相同，可以直接作为结果缓存的 key。
+ */
+public record SearchQuery(String q, Map<Facet, List<String>> filters) {
+
+    public static SearchQuery of(String q, String category, String color, String roomType, String material) {
+        Map<Facet, List<String>> filters = new EnumMap<>(Facet.class);
+        filters.put(Facet.CATEGORY, splitCsv(category));
+        filters.put(Facet.COLOR, splitCsv(color));
+        filters.put(Facet.ROOM_TYPE, splitCsv(roomType));
+        filters.put(Facet.MATERIAL, splitCsv(material));
+        String nq = String.join(" ", TextTokenizer.tokenize(q));
+        if (nq.isEmpty()) nq = null;
+        return new SearchQuery(nq, Collections.unmodifiableMap(filters));
+    }
+
+    public List<String> filter(Facet facet) {
+        return filters.getOrDefault(facet, List.of());
+    }
+
+    /** 解析逗号分隔列表为小写 token 列表（去重、排序；分面内是 OR，顺序无关） */
+    private static List<String> splitCsv(String s) {
+        if (s == null || s.isBlank()) return List.of();
+        return Arrays.stream(s.split(","))
+                .map(String::trim).filter(t -> !t.isEmpty())
+                .map(t -> t.toLowerCase(Locale.ROOT))
+                .distinct().sorted()
+                .toList();
+    }
+}
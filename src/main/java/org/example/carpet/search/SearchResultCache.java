@@ -0,0 +1,172 @@
+package org.example.carpet.search;
+
+import org.example.carpet.catalog.CatalogListener;
+import org.example.carpet.catalog.CatalogSnapshot;
+import org.example.carpet.model.ItemDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 搜索结果缓存（热门查询：空查询、"persian"、roomType=living room ...）
+ *
+ * - key：归一化后的 SearchQuery，下面挂着这个查询已缓存的各页（offset + limit）
+ * - 容量：按查询 LRU，缓存的总页数超过 app.search.cache.max-entries 时淘汰最久未用的查询（连同它的所有页）
+ * - 单飞：同一页并发未命中时只算一次，其余请求等同一个 future
+ * - 失效：目录变化时按查询整体失效（前面的页多 / 少一条，后面每一页都会错位）——
+ *   任一页里含有变化的 sku（旧文档在结果里），或变化后的文档命中该查询（新文档可能进入结果）；全量重建时清空
+ * - 只改库存 / 价格等非检索字段的变化（ItemSearchIndex.drainReindexed 之外的 sku）不影响命中和排序，
+ *   不失效，只把缓存页里的文档换成新对象
+ * - 计算期间目录发生变化的结果不写入缓存，避免把旧结果放回去
+ */
+@Component
+public class SearchResultCache implements CatalogListener {
+
+    private record Page(int offset, int limit) {}
+
+    private record Key(SearchQuery query, Page page) {}
+
+    /** 一个查询已缓存的各页，skus 为所有页结果的并集 */
+    private static final class Entry {
+        final Map<Page, List<ItemDocument>> pages = new HashMap<>();
+        final Set<String> skus = new HashSet<>();
+    }
+
+    private final ItemSearchIndex index;
+    private final int maxEntries;
+
+    private final LinkedHashMap<SearchQuery, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int pageCount;
+    private final ConcurrentHashMap<Key, CompletableFuture<List<ItemDocument>>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong generation = new AtomicLong();
+
+    public SearchResultCache(ItemSearchIndex index, @Value("${app.search.cache.max-entries:1000}") int maxEntries) {
+        this.index = index;
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    public List<ItemDocument> search(SearchQuery query, int offset, int limit) {
+        Page page = new Page(offset, limit);
+        synchronized (entries) {
+            Entry hit = entries.get(query);
+            List<ItemDocument> items = hit == null ? null : hit.pages.get(page);
+            if (items != null) return items;
+        }
+
+        Key key = new Key(query, page);
+        CompletableFuture<List<ItemDocument>> mine = new CompletableFuture<>();
+        CompletableFuture<List<ItemDocument>> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) return join(running);
+
+        try {
+            long gen = generation.get();
+            List<ItemDocument> items = List.copyOf(index.search(query, offset, limit));
+            synchronized (entries) {
+                if (generation.get() == gen) put(query, page, items);
+            }
+            mine.complete(items);
+            return items;
+        } catch (RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /** 缓存的总页数 */
+    public int size() {
+        synchronized (entries) {
+            return pageCount;
+        }
+    }
+
+    @Override
+    public void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedSkus, boolean fullReload) {
+        Set<String> reindexed = index.drainReindexed();
+        synchronized (entries) {
+            // 计算中的结果可能带着旧文档，不再写入缓存
+            generation.incrementAndGet();
+            if (fullReload) {
+                inFlight.clear();
+                entries.clear();
+                pageCount = 0;
+                return;
+            }
+            Set<String> relevant = new HashSet<>();
+            Set<String> docOnly = new HashSet<>();
+            for (String sku : changedSkus) (reindexed.contains(sku) ? relevant : docOnly).add(sku);
+            if (!docOnly.isEmpty()) refreshDocs(docOnly);
+            if (relevant.isEmpty()) return;
+
+            // 变化前发起的计算不再让新请求搭车
+            inFlight.clear();
+            Iterator<Map.Entry<SearchQuery, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<SearchQuery, Entry> e = it.next();
+                if (affected(e.getKey(), e.getValue(), relevant)) {
+                    pageCount -= e.getValue().pages.size();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // ------------------------------------------------------------
+    // internals（调用方持有 entries 锁）
+    // ------------------------------------------------------------
+
+    private void put(SearchQuery query, Page page, List<ItemDocument> items) {
+        Entry entry = entries.computeIfAbsent(query, q -> new Entry());
+        if (entry.pages.put(page, items) == null) pageCount++;
+        for (ItemDocument d : items) entry.skus.add(d.getSku());
+        Iterator<Map.Entry<SearchQuery, Entry>> it = entries.entrySet().iterator();
+        while (pageCount > maxEntries && it.hasNext()) {
+            Map.Entry<SearchQuery, Entry> eldest = it.next();
+            if (eldest.getValue() == entry) break;   // 刚写入的查询排在最后，不淘汰
+            pageCount -= eldest.getValue().pages.size();
+            it.remove();
+        }
+    }
+
+    /** 非检索字段变化：命中和顺序不变，把缓存页里的旧文档换成索引里的新文档 */
+    private void refreshDocs(Set<String> skus) {
+        for (Entry entry : entries.values()) {
+            if (Collections.disjoint(entry.skus, skus)) continue;
+            for (Map.Entry<Page, List<ItemDocument>> p : entry.pages.entrySet()) {
+                List<ItemDocument> items = p.getValue();
+                List<ItemDocument> fresh = null;
+                for (int i = 0; i < items.size(); i++) {
+                    ItemDocument d = items.get(i);
+                    if (!skus.contains(d.getSku())) continue;
+                    ItemDocument now = index.get(d.getSku());
+                    if (now == null || now == d) continue;
+                    if (fresh == null) fresh = new ArrayList<>(items);
+                    fresh.set(i, now);
+                }
+                if (fresh != null) p.setValue(List.copyOf(fresh));
+            }
+        }
+    }
+
+    private boolean affected(SearchQuery query, Entry entry, Set<String> changedSkus) {
+        for (String sku : changedSkus) {
+            if (entry.skus.contains(sku) || index.matches(query, sku)) return true;
+        }
+        return false;
+    }
+
+    private static List<ItemDocument> join(CompletableFuture<List<ItemDocument>> f) {
+        try {
+            return f.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+}
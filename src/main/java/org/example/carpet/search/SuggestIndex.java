@@ -0,0 +1,119 @@
+package org.example.carpet.search;
+
+import org.example.carpet.catalog.CatalogListener;
+import org.example.carpet.catalog.CatalogSnapshot;
+import org.example.carpet.model.ItemDocument;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * 搜索框自动补全（/items/suggest）
+ *
+ * - 短语来源：商品名、keywords、roomType 各取值（小写、合并空白后作为 key）
+ * - 权重：目录中带有该短语的商品数（越常见越靠前）
+ * - 查询：读一个不可变的 PackedTrie，无锁
+ * - 更新：CatalogListener 增量维护短语计数（只摘掉 / 挂上变化商品的短语），再重新打包 trie
+ */
+@Component
+public class SuggestIndex implements CatalogListener {
+
+    /** 短语计数；display 取第一次出现时的原文大小写 */
+    private static final class Phrase {
+        String display;
+        int count;
+    }
+
+    private final Map<String, Phrase> phrases = new HashMap<>();
+    private final Map<String, List<String>> phrasesBySku = new HashMap<>();
+    private volatile PackedTrie trie = PackedTrie.EMPTY;
+    private int repacks;   // 重新打包次数（测试 / 观测用）
+
+    /** prefix 的至多 limit 个补全（prefix 为空时返回空列表） */
+    public List<String> suggest(String prefix, int limit) {
+        String key = normalize(prefix);
+        if (key.isEmpty()) return List.of();
+        return trie.complete(key, limit);
+    }
+
+    public int size() {
+        return trie.size();
+    }
+
+    @Override
+    public synchronized void onCatalogChanged(CatalogSnapshot snapshot, Set<String> changedSkus, boolean fullReload) {
+        if (fullReload) {
+            phrases.clear();
+            phrasesBySku.clear();
+            for (ItemDocument d : snapshot.items()) add(d, phrasesOf(d));
+        } else {
+            boolean dirty = false;
+            for (String sku : changedSkus) {
+                ItemDocument d = snapshot.get(sku);
+                Map<String, String> mine = phrasesOf(d);
+                List<String> old = phrasesBySku.get(sku);
+                // 只改了库存 / 价格等：短语集合不变，计数和 trie 都不用动
+                if (old != null && old.size() == mine.size() && mine.keySet().containsAll(old)) continue;
+                if (old == null && mine.isEmpty()) continue;
+                phrasesBySku.remove(sku);
+                if (old != null) old.forEach(this::decrement);
+                if (d != null) add(d, mine);
+                dirty = true;
+            }
+            if (!dirty) return;
+        }
+        repack();
+    }
+
+    int repacks() {
+        return repacks;
+    }
+
+    /** 商品的短语 key -> 原文（同一商品内去重）；d 为 null 时为空 */
+    private static Map<String, String> phrasesOf(ItemDocument d) {
+        Map<String, String> mine = new LinkedHashMap<>();
+        if (d == null || d.getSku() == null) return mine;
+        collect(d.getName(), mine);
+        if (d.getKeywords() != null) d.getKeywords().forEach(k -> collect(k, mine));
+        if (d.getRoomType() != null) d.getRoomType().forEach(r -> collect(r, mine));
+        return mine;
+    }
+
+    private void add(ItemDocument d, Map<String, String> mine) {
+        if (d == null || d.getSku() == null) return;
+        for (Map.Entry<String, String> e : mine.entrySet()) {
+            Phrase p = phrases.computeIfAbsent(e.getKey(), k -> new Phrase());
+            if (p.count++ == 0) p.display = e.getValue();
+        }
+        phrasesBySku.put(d.getSku(), new ArrayList<>(mine.keySet()));
+    }
+
+    private void decrement(String key) {
+        Phrase p = phrases.get(key);
+        if (p != null && --p.count <= 0) phrases.remove(key);
+    }
+
+    private void repack() {
+        String[] keys = phrases.keySet().toArray(new String[0]);
+        Arrays.sort(keys);
+        String[] display = new String[keys.length];
+        int[] weight = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            Phrase p = phrases.get(keys[i]);
+            display[i] = p.display;
+            weight[i] = p.count;
+        }
+        trie = PackedTrie.build(keys, display, weight);
+        repacks++;
+    }
+
+    private static void collect(String raw, Map<String, String> out) {
+        String key = normalize(raw);
+        if (!key.isEmpty()) out.putIfAbsent(key, raw.trim().replaceAll("\\s+", " "));
+    }
+
+    static String normalize(String raw) {
+        if (raw == null) return "";
+        return raw.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+}
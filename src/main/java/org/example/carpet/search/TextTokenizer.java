@@ -0,0 +1,81 @@
+package org.example.carpet.search;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 文本分词：索引侧和查询侧共用同一套规则，保证 token 一致。
+ *
+ * - 按非字母/数字切分
+ * - 拉丁文 / 数字：整词一个 token，统一小写（Locale.ROOT）
+ * - 中日韩文字：连续的一段按相邻二字切分（"羊毛地毯" -> 羊毛 / 毛地 / 地毯），单字段落保留单字；
+ *   这样查询 "地毯" 也能命中 "羊毛地毯"，多字查询的各个二字 token 之间是 AND
+ * - 混写（"wool羊毛"）在文字种类切换处断开
+ */
+public final class TextTokenizer {
+
+    private TextTokenizer() {}
+
+    public static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        tokenizeInto(text, out);
+        return out;
+    }
+
+    /** 把 String / Collection 字段统一分词后追加到 out */
+    public static void tokenizeInto(Object field, List<String> out) {
+        if (field == null) return;
+        if (field instanceof Collection<?>) {
+            for (Object o : (Collection<?>) field) {
+                if (o != null) tokenizeInto(String.valueOf(o), out);
+            }
+            return;
+        }
+        String text = String.valueOf(field);
+        int start = -1;
+        boolean cjkRun = false;
+        for (int i = 0; i < text.length(); ) {
+            int cp = text.codePointAt(i);
+            boolean word = Character.isLetterOrDigit(cp);
+            boolean cjk = word && isCjk(cp);
+            if (start >= 0 && (!word || cjk != cjkRun)) {
+                emit(text, start, i, cjkRun, out);
+                start = -1;
+            }
+            if (word && start < 0) {
+                start = i;
+                cjkRun = cjk;
+            }
+            i += Character.charCount(cp);
+        }
+        if (start >= 0) emit(text, start, text.length(), cjkRun, out);
+    }
+
+    private static void emit(String text, int start, int end, boolean cjk, List<String> out) {
+        if (!cjk) {
+            out.add(text.substring(start, end).toLowerCase(Locale.ROOT));
+            return;
+        }
+        int first = start, second = text.offsetByCodePoints(start, 1);
+        if (second >= end) {
+            out.add(text.substring(start, end));
+            return;
+        }
+        while (second < end) {
+            int next = text.offsetByCodePoints(second, 1);
+            out.add(text.substring(first, next));
+            first = second;
+            second = next;
+        }
+    }
+
+    static boolean isCjk(int cp) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(cp);
+        return script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL;
+    }
+}
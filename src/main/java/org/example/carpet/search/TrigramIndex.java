@@ -0,0 +1,114 @@
+package org.example.carpet.search;
+
+import java.util.*;
+
+/**
+ * 词典上的三元组（trigram）索引，用于拼写容错：trigram -> posting list of term id。
+ *
+ * - 词两端补 '$' 再切 trigram（"rug" -> "$ru", "rug", "ug$"），短词也有 trigram
+ * - 候选：把查询词各 trigram 的倒排表合并计数；一次编辑最多破坏 3 个 trigram（相邻交换 4 个），
+ *   所以编辑距离 ≤ d 的词至少共享 |grams| - 4d 个 trigram，低于该数的直接跳过
+ * - 校验：对候选做有上界的 OSA（含相邻交换）编辑距离，超过上界提前退出
+ *
+ * 非线程安全，由 ItemSearchIndex 的读写锁保护。
+ */
+final class TrigramIndex {
+
+    private final Map<String, Integer> idByTerm = new HashMap<>();
+    private final List<String> termById = new ArrayList<>();        // id -> term（null = 空闲）
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private final Map<String, PostingList> postings = new HashMap<>();
+
+    void clear() {
+        idByTerm.clear();
+        termById.clear();
+        freeIds.clear();
+        postings.clear();
+    }
+
+    void add(String term) {
+        if (idByTerm.containsKey(term)) return;
+        int id;
+        if (freeIds.isEmpty()) {
+            id = termById.size();
+            termById.add(term);
+        } else {
+            id = freeIds.pop();
+            termById.set(id, term);
+        }
+        idByTerm.put(term, id);
+        for (String g : grams(term)) postings.computeIfAbsent(g, k -> new PostingList()).add(id);
+    }
+
+    void remove(String term) {
+        Integer id = idByTerm.remove(term);
+        if (id == null) return;
+        for (String g : grams(term)) {
+            PostingList p = postings.get(g);
+            if (p == null) continue;
+            p.remove(id);
+            if (p.size() == 0) postings.remove(g);
+        }
+        termById.set(id, null);
+        freeIds.push(id);
+    }
+
+    /** 与 token 编辑距离在 [1, maxEdits] 内的词 -> 距离 */
+    Map<String, Integer> fuzzy(String token, int maxEdits) {
+        Map<String, Integer> out = new LinkedHashMap<>();
+        if (maxEdits <= 0) return out;
+        Set<String> qGrams = grams(token);
+        int minShared = Math.max(1, qGrams.size() - 4 * maxEdits);
+
+        Map<Integer, Integer> shared = new HashMap<>();
+        for (String g : qGrams) {
+            PostingList p = postings.get(g);
+            if (p == null) continue;
+            for (int i = 0; i < p.size(); i++) shared.merge(p.get(i), 1, Integer::sum);
+        }
+        for (Map.Entry<Integer, Integer> e : shared.entrySet()) {
+            if (e.getValue() < minShared) continue;
+            String term = termById.get(e.getKey());
+            if (Math.abs(term.length() - token.length()) > maxEdits) continue;
+            int d = distance(token, term, maxEdits);
+            if (d > 0 && d <= maxEdits) out.put(term, d);
+        }
+        return out;
+    }
+
+    /** 按词长给的编辑距离上限：≤3 不容错，4~7 容 1 处，更长容 2 处 */
+    static int maxEditsFor(String token) {
+        int n = token.length();
+        return n <= 3 ? 0 : n <= 7 ? 1 : 2;
+    }
+
+    static Set<String> grams(String term) {
+        String padded = '$' + term + '$';
+        Set<String> out = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) out.add(padded.substring(i, i + 3));
+        return out;
+    }
+
+    /** OSA 编辑距离（插入 / 删除 / 替换 / 相邻交换）；超过 max 时返回 max + 1 */
+    static int distance(String a, String b, int max) {
+        int n = a.length(), m = b.length();
+        int[] prev2 = new int[m + 1], prev = new int[m + 1], cur = new int[m + 1];
+        for (int j = 0; j <= m; j++) prev[j] = j;
+        for (int i = 1; i <= n; i++) {
+            cur[0] = i;
+            int rowMin = cur[0];
+            for (int j = 1; j <= m; j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int v = Math.min(Math.min(prev[j] + 1, cur[j - 1] + 1), prev[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    v = Math.min(v, prev2[j - 2] + 1);
+                }
+                cur[j] = v;
+                rowMin = Math.min(rowMin, v);
+            }
+            if (rowMin > max) return max + 1;
+            int[] t = prev2; prev2 = prev; prev = cur; cur = t;
+        }
+        return Math.min(prev[m], max + 1);
+    }
+}
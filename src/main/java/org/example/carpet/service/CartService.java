@@ -1,133 +1,196 @@
 package org.example.carpet.service;
 
+import com.datastax.oss.driver.api.core.uuid.Uuids;
 import lombok.RequiredArgsConstructor;
+import org.example.carpet.cassandra.CassandraStatements;
 import org.example.carpet.cassandra.entities.CartItem;
+import org.example.carpet.cassandra.entities.CartItemDelta;
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.cassandra.keys.CartItemDeltaKey;
 import org.example.carpet.cassandra.keys.CartItemKey;
+import org.example.carpet.cassandra.repos.CartItemDeltaRepo;
 import org.example.carpet.cassandra.repos.CartItemRepo;
 import org.example.carpet.dto.CartChangeQtyRequest;
 import org.example.carpet.dto.CartItemView;
 import org.example.carpet.dto.CartUpsertRequest;
 import org.example.carpet.model.ItemDocument;
 import org.example.carpet.repository.mongo.ItemDocumentRepository;
-import org.springframework.data.cassandra.core.CassandraTemplate;
+import org.springframework.data.cassandra.core.AsyncCassandraOperations;
+import org.springframework.data.cassandra.core.query.Criteria;
+import org.springframework.data.cassandra.core.query.Query;
 import org.springframework.stereotype.Service;
 
 import java.math.BigDecimal;
 import java.time.Instant;
-import java.util.List;
-import java.util.Optional;
-
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 购物车（Cassandra）
+ *
+ * 写入全部是"盲写"，不先读旧值：
+ *  - 设定数量：直接覆盖 cart_items_by_user 的基础行（qty / price / updated_at_ts）
+ *  - 增量（"+1"）：向 cart_item_deltas_by_user 追加一行（timeuuid 区分，两个标签页并发加购也不会互相覆盖）
+ *  - 删除：同一个 BATCH 里删掉基础行和该 sku 的全部增量
+ * 读取时合并：qty = 基础行 qty + 基础行 updated_at_ts 之后的 delta 之和，qty <= 0 的不显示。
+ */
 @Service
 @RequiredArgsConstructor
 public class CartService {
 
     private final CartItemRepo cartItemRepo;                 // Cassandra repo
     private final ItemDocumentRepository itemRepo;           // Mongo for product info
-    private final CassandraTemplate cassandraTemplate;
+    private final CassandraStatements statements;           // 预编译 CQL
+    private final CatalogCache catalog;                      // 进程内目录快照（优先）
+    private final CartItemDeltaRepo deltaRepo;               // 数量增量（只追加）
+    private final AsyncCassandraOperations asyncCassandra;   // 读购物车时并行查两张表
+
+    private static final int CART_TTL_SECONDS = 30 * 24 * 3600;  // 30 天
 
 
-    /** 列出购物车条目（Cassandra -> 补全 Mongo 商品信息） */
+    /**
+     * 列出购物车条目：基础行与增量两次分区读并行发出 -> 合并数量 -> 商品信息先查目录快照（内存），
+     * 快照里没有的 sku 合并成一次 $in 回源。与购物车大小无关。
+     */
     public List<CartItemView> list(String userEmail) {
-        return cartItemRepo.findByUserEmail(userEmail).stream()
-                .map(ci -> {
-                    String sku = ci.getKey().getSku();
-                    Optional<ItemDocument> doc = itemRepo.findBySku(sku);
-                    String name = doc.map(ItemDocument::getName).orElse(sku);
-                    String imageUrl = doc.map(ItemDocument::getImageUrl).orElse(null);
-                    List<String> roomType = doc.map(ItemDocument::getRoomType).orElse(List.of());
-                    List<String> keywords = Optional.ofNullable(doc.map(ItemDocument::getKeywords).orElse(null))
-                            .orElse(List.of());
-                    return CartItemView.builder()
-                            .sku(sku)
-                            .name(name)
-                            .imageUrl(imageUrl)
-                            .roomType(roomType)
-                            .keywords(keywords)
-                            .quantity(ci.getQty())
-                            .price(ci.getPrice())
-                            .build();
-                })
-                .toList();
+        CompletableFuture<List<CartItemDelta>> deltas = asyncCassandra != null
+                ? asyncCassandra.select(Query.query(Criteria.where("user_email").is(userEmail)), CartItemDelta.class)
+                : CompletableFuture.completedFuture(deltaRepo.findByUserEmail(userEmail));
+        List<CartItem> rows = merge(cartItemRepo.findByUserEmail(userEmail), deltas.join());
+        if (rows.isEmpty()) return List.of();
+
+        Map<String, ItemDocument> docs = new HashMap<>();
+        List<String> misses = new ArrayList<>();
+        for (CartItem ci : rows) {
+            String sku = ci.getKey().getSku();
+            catalog.find(sku).ifPresentOrElse(d -> docs.put(sku, d), () -> misses.add(sku));
+        }
+        if (!misses.isEmpty()) {
+            for (ItemDocument d : itemRepo.findBySkuIn(misses)) docs.put(d.getSku(), d);
+        }
+
+        List<CartItemView> out = new ArrayList<>(rows.size());
+        for (CartItem ci : rows) {
+            String sku = ci.getKey().getSku();
+            Optional<ItemDocument> doc = Optional.ofNullable(docs.get(sku));
+            out.add(CartItemView.builder()
+                    .sku(sku)
+                    .name(doc.map(ItemDocument::getName).orElse(sku))
+                    .imageUrl(doc.map(ItemDocument::getImageUrl).orElse(null))
+                    .roomType(doc.map(ItemDocument::getRoomType).orElse(List.of()))
+                    .keywords(doc.map(ItemDocument::getKeywords).orElse(List.of()))
+                    .quantity(ci.getQty())
+                    .price(ci.getPrice() != null ? ci.getPrice()
+                            : doc.map(ItemDocument::getUnitPrice).orElse(null))   // 老数据里没有单价的行按目录价
+                    .build());
+        }
+        return out;
     }
 
     /** 控制器调用：添加/更新购物车（数量为 null 则 +1；否则设为给定数量） */
     public void upsert(String userEmail, CartUpsertRequest req) {
         // price 为空时，从商品库兜底
         BigDecimal price = req.getPrice();
-        if (price == null) {
-            price = itemRepo.findBySku(req.getSku())
-                    .map(ItemDocument::getUnitPrice)
-                    .orElse(BigDecimal.ZERO);
-        }
+        if (price == null) price = catalogPrice(req.getSku());
         upsert(userEmail, req.getSku(), req.getQuantity(), price);
     }
 
-    /** 可重用的底层 upsert */
+    /** 可重用的底层 upsert：qty 为 null 时追加 +1 增量，否则设定数量（<=0 删除） */
     public void upsert(String userEmail, String sku, Integer qty, BigDecimal price) {
-        CartItemKey key = new CartItemKey(userEmail, sku);
-        CartItem current = cartItemRepo.findById(key)
-                .orElse(new CartItem(key, 0, price != null ? price : BigDecimal.ZERO, Instant.now().toEpochMilli()));
-
-        int newQty = (qty == null ? current.getQty() + 1 : qty);
-        if (newQty <= 0) {
-            cartItemRepo.deleteById(key);
-            return;
+        if (qty == null) {
+            addDelta(userEmail, sku, 1, price);
+        } else {
+            setQty(userEmail, sku, qty, price);
         }
+    }
 
-        current.setQty(newQty);
-        if (price != null) current.setPrice(price);
-        current.setUpdatedAtTs(Instant.now().toEpochMilli());
-
-        // 首选：使用 CQL 写入并加 TTL（30 天）。若 cassandra 为 null，则退回 save()
-        if (cassandraTemplate != null) {
-            int ttlDays = 30;
-            cassandraTemplate.getCqlOperations().execute(
-                    "INSERT INTO cart_items_by_user (user_email, sku, qty, price, updated_at_ts) " +
-                            "VALUES (?, ?, ?, ?, ?) USING TTL ?",
-                    userEmail, sku, current.getQty(), current.getPrice(), current.getUpdatedAtTs(), ttlDays * 24 * 3600
-            );
+    /**
+     * 控制器调用：修改数量（绝对值；<=0 删条目）。不读旧行：单价按目录价一起写进基础行，
+     * 否则只靠增量加购的条目（价格在 delta 上）被改数量后基础行没有单价。
+     */
+    public void changeQty(String userEmail, CartChangeQtyRequest req) {
+        int qty = req.getQuantity() == null ? 0 : req.getQuantity();
+        setQty(userEmail, req.getSku(), qty, qty > 0 ? catalogPrice(req.getSku()) : null);
+    }
+
+    /** 目录单价（快照优先，没有再回源）；商品不存在时为 0 */
+    private BigDecimal catalogPrice(String sku) {
+        return catalog.find(sku).or(() -> itemRepo.findBySku(sku))
+                .map(ItemDocument::getUnitPrice)
+                .orElse(BigDecimal.ZERO);
+    }
+
+    /** 增量：追加一行 delta（一次写入，无需先读） */
+    public void addDelta(String userEmail, String sku, int delta, BigDecimal price) {
+        if (delta == 0) return;
+        UUID opId = Uuids.timeBased();
+        if (statements != null) {
+            statements.cartAddDelta(userEmail, sku, opId, delta, price, CART_TTL_SECONDS);
         } else {
-            cartItemRepo.save(current);
+            deltaRepo.save(new CartItemDelta(new CartItemDeltaKey(userEmail, sku, opId), delta, price));
         }
     }
 
-    /** 控制器调用：修改数量（绝对值；<=0 删条目） */
-    public void changeQty(String userEmail, CartChangeQtyRequest req) {
-        CartItemKey key = new CartItemKey(userEmail, req.getSku());
-        if (req.getQuantity() == null || req.getQuantity() <= 0) {
-            cartItemRepo.deleteById(key);
+    /** 设定数量：覆盖基础行（一次写入）；更早的增量在读取时被忽略 */
+    private void setQty(String userEmail, String sku, int qty, BigDecimal price) {
+        if (qty <= 0) {
+            remove(userEmail, sku);
             return;
         }
-        CartItem current = cartItemRepo.findById(key)
-                .orElseGet(() -> new CartItem(key, 0, // 价格兜底
-                        itemRepo.findBySku(req.getSku())
-                                .map(ItemDocument::getUnitPrice)
-                                .orElse(BigDecimal.ZERO),
-                        Instant.now().toEpochMilli()));
-
-        current.setQty(req.getQuantity());
-        current.setUpdatedAtTs(Instant.now().toEpochMilli());
-
-        if (cassandraTemplate != null) {
-            int ttlDays = 30;
-            cassandraTemplate.getCqlOperations().execute(
-                    "INSERT INTO cart_items_by_user (user_email, sku, qty, price, updated_at_ts) " +
-                            "VALUES (?, ?, ?, ?, ?) USING TTL ?",
-                    userEmail, req.getSku(), current.getQty(), current.getPrice(), current.getUpdatedAtTs(), ttlDays * 24 * 3600
-            );
+        long now = Instant.now().toEpochMilli();
+        if (statements != null) {
+            // price 为空时不写该列：保留已有单价（没有则列表时按目录价兜底）
+            statements.cartSet(userEmail, sku, qty, price, now, CART_TTL_SECONDS);
         } else {
-            cartItemRepo.save(current);
+            cartItemRepo.save(new CartItem(new CartItemKey(userEmail, sku), qty, price, now));
         }
     }
 
-    /** 删除一个 SKU */
+    /** 删除一个 SKU（基础行 + 全部增量，同一个 BATCH，一次往返） */
     public void remove(String userEmail, String sku) {
-        cartItemRepo.deleteById(new CartItemKey(userEmail, sku));
+        if (statements != null) {
+            statements.cartRemove(userEmail, sku);
+        } else {
+            cartItemRepo.deleteById(new CartItemKey(userEmail, sku));
+            deltaRepo.deleteByUserAndSku(userEmail, sku);
+        }
     }
 
-    /** 清空购物车 */
+    /** 清空购物车：按分区删除（一次往返、一个分区墓碑），不先列出条目 */
     public void clear(String userEmail) {
-        cartItemRepo.findByUserEmail(userEmail)
-                .forEach(ci -> cartItemRepo.deleteById(ci.getKey()));
+        if (statements != null) {
+            statements.cartClear(userEmail);
+        } else {
+            cartItemRepo.deleteAllByUser(userEmail);
+            deltaRepo.deleteAllByUser(userEmail);
+        }
+    }
+
+    /**
+     * 合并基础行与增量（按 sku 排序，同 Cassandra 的聚簇顺序）：
+     * 基础行 updated_at_ts 之后的 delta 计入；单价取最新一条带价格的 delta，否则取基础行；
+     * 基础行没有单价时，被覆盖的 delta 上的单价也可以用来兜底。
+     */
+    static List<CartItem> merge(List<CartItem> base, List<CartItemDelta> deltas) {
+        Map<String, CartItem> bySku = new TreeMap<>();
+        for (CartItem ci : base) {
+            bySku.put(ci.getKey().getSku(), new CartItem(ci.getKey(), ci.getQty() == null ? 0 : ci.getQty(),
+                    ci.getPrice(), ci.getUpdatedAtTs() == null ? Long.MIN_VALUE : ci.getUpdatedAtTs()));
+        }
+        for (CartItemDelta d : deltas) {
+            CartItemDeltaKey k = d.getKey();
+            long ts = Uuids.unixTimestamp(k.getOpId());
+            CartItem ci = bySku.computeIfAbsent(k.getSku(),
+                    sku -> new CartItem(new CartItemKey(k.getUserEmail(), sku), 0, null, Long.MIN_VALUE));
+            if (ts <= ci.getUpdatedAtTs()) {              // 被之后的"设定数量"覆盖
+                if (ci.getPrice() == null && d.getPrice() != null) ci.setPrice(d.getPrice());
+                continue;
+            }
+            ci.setQty(ci.getQty() + (d.getDelta() == null ? 0 : d.getDelta()));
+            if (d.getPrice() != null) ci.setPrice(d.getPrice());
+        }
+        List<CartItem> out = new ArrayList<>();
+        for (CartItem ci : bySku.values()) if (ci.getQty() > 0) out.add(ci);
+        return out;
     }
 }
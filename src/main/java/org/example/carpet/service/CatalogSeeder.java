@@ -0,0 +1,178 @@
+package org.example.carpet.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.TreeNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.example.carpet.dto.BulkUpsertResponse;
+import org.example.carpet.model.ItemDocument;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 启动时导入种子数据（items.json + inventory.json）
+ *
+ * - 两个文件都用 Jackson 的 token 流逐条解析，不整体读进内存
+ * - 先读 inventory（只保留 sku -> 数量 / 仓库），再边读 items 边合并：
+ *   availableQuantity -> stockQuantity（并推导 stockAvailable），warehouse -> warehouse
+ * - 写入复用 ItemService.bulkUpsert（按 app.catalog.bulk.batch-size 分批 bulkWrite，写完合入目录快照）
+ * - 在独立线程上执行，不阻塞启动 / 就绪；app.seed.enabled=false 时不运行
+ */
+@Component
+@Slf4j
+public class CatalogSeeder {
+
+    /** inventory.json 里需要的字段 */
+    record Stock(Integer availableQuantity, String warehouse) {}
+
+    private final ItemService itemService;
+    private final ObjectMapper objectMapper;
+    private final ResourceLoader resourceLoader;
+
+    @Value("${app.seed.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.seed.items:file:items.json}")
+    private String itemsLocation = "file:items.json";
+
+    @Value("${app.seed.inventory:file:inventory.json}")
+    private String inventoryLocation = "file:inventory.json";
+
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "catalog-seeder");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public CatalogSeeder(ItemService itemService, ObjectMapper objectMapper, ResourceLoader resourceLoader) {
+        this.itemService = itemService;
+        this.objectMapper = objectMapper;
+        this.resourceLoader = resourceLoader;
+    }
+
+    @EventListener(ApplicationStartedEvent.class)
+    public void start() {
+        if (!enabled) return;
+        worker.execute(() -> {
+            try {
+                long t0 = System.currentTimeMillis();
+                BulkUpsertResponse r = seed(resourceLoader.getResource(itemsLocation),
+                        resourceLoader.getResource(inventoryLocation));
+                log.info("Catalog seed done in {} ms: created={}, updated={}, failed={}",
+                        System.currentTimeMillis() - t0, r.getCreated(), r.getUpdated(), r.getFailed());
+            } catch (Exception e) {
+                log.warn("Catalog seed failed: {}", e.toString());
+            }
+        });
+    }
+
+    @PreDestroy
+    public void stop() {
+        worker.shutdownNow();
+    }
+
+    /** 同步导入（inventory 可以不存在） */
+    public BulkUpsertResponse seed(Resource items, Resource inventory) throws IOException {
+        Map<String, Stock> stock = inventory != null && inventory.exists() ? readInventory(inventory) : Map.of();
+        try (JsonParser parser = objectMapper.createParser(items.getInputStream())) {
+            return itemService.bulkUpsert(new SeedIterator(parser, stock));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    Map<String, Stock> readInventory(Resource inventory) throws IOException {
+        Map<String, Stock> out = new HashMap<>();
+        try (JsonParser p = objectMapper.createParser(inventory.getInputStream())) {
+            expectArray(p);
+            while (p.nextToken() == JsonToken.START_OBJECT) {
+                String sku = null, warehouse = null;
+                Integer qty = null;
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.currentName();
+                    JsonToken v = p.nextToken();
+                    switch (field) {
+                        case "sku" -> sku = p.getValueAsString();
+                        case "availableQuantity" -> qty = v == JsonToken.VALUE_NULL ? null : p.getValueAsInt();
+                        case "warehouse" -> warehouse = p.getValueAsString();
+                        default -> p.skipChildren();
+                    }
+                }
+                if (sku != null) out.put(sku, new Stock(qty, warehouse));
+            }
+        }
+        return out;
+    }
+
+    private static void expectArray(JsonParser p) throws IOException {
+        if (p.nextToken() != JsonToken.START_ARRAY) {
+            throw new IOException("expected a JSON array at " + p.currentLocation());
+        }
+    }
+
+    /** 从 items.json 的数组里逐个读出商品并合并库存 */
+    private final class SeedIterator implements Iterator<ItemDocument> {
+        private final JsonParser parser;
+        private final Map<String, Stock> stock;
+        private boolean started;
+        private JsonToken next;
+
+        SeedIterator(JsonParser parser, Map<String, Stock> stock) {
+            this.parser = parser;
+            this.stock = stock;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                if (!started) {
+                    expectArray(parser);
+                    started = true;
+                }
+                if (next == null) next = parser.nextToken();
+                return next == JsonToken.START_OBJECT;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public ItemDocument next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            next = null;
+            TreeNode node;
+            try {
+                node = parser.readValueAsTree();      // 语法错误无法继续，向上抛
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            try {
+                ItemDocument d = objectMapper.treeToValue(node, ItemDocument.class);
+                Stock s = d.getSku() == null ? null : stock.get(d.getSku());
+                if (s != null) {
+                    if (s.availableQuantity() != null) {
+                        d.setStockQuantity(s.availableQuantity());
+                        d.setStockAvailable(s.availableQuantity() > 0);
+                    }
+                    if (s.warehouse() != null) d.setWarehouse(s.warehouse());
+                }
+                return d;
+            } catch (JsonProcessingException e) {
+                return null;    // 单条字段格式错误：bulkUpsert 记为失败，继续下一条
+            }
+        }
+    }
+}
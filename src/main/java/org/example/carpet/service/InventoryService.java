@@ -1,11 +1,27 @@
 package org.example.carpet.service;
 
 import lombok.RequiredArgsConstructor;
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.exception.InsufficientStockException;
+import org.example.carpet.model.OrderLineItem;
+import org.example.carpet.repository.InventoryRepository;
 import org.example.carpet.repository.mongo.ItemDocumentRepository;
-import org.springframework.data.cassandra.core.CassandraTemplate;
+import org.example.carpet.repository.mongo.ShardedStockRepository;
 import org.springframework.stereotype.Service;
 
 import java.time.Duration;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
 
 /**
  * Handles stock availability and shipping promise.
@@ -17,14 +33,23 @@ import java.time.Duration;
 public class InventoryService {
 
     private final ItemDocumentRepository itemRepository;
+    private final CatalogCache catalog;   // 库存展示读快照；扣减/回补后异步刷新
+    private final InventoryRepository escrow;   // 热门 sku 的内存库存托管（未开启时不接管任何 sku）
+    private final ShardedStockRepository shards; // 高并发 sku 的分片库存（未配置时不接管任何 sku）
 
-    // === Cassandra: 使用 CassandraTemplate 直写预留（行级 TTL） ===
-    private final CassandraTemplate cassandraTemplate;
+    // === Cassandra: 预编译语句直写预留（行级 TTL） ===
+    private final CassandraStatements cassandraStatements;
 
     // 查询库存 + 返回承诺运输时间
     public InventoryStatus checkInventory(String sku) {
-        var item = itemRepository.findBySku(sku);
-        int qty = item.map(i -> i.getStockQuantity() != null ? i.getStockQuantity() : 0).orElse(0);
+        if (shards.handles(sku)) return status(sku, shards.available(sku));
+        var item = catalog.find(sku).or(() -> itemRepository.findBySku(sku));
+        int qty = item.map(i -> i.getStockQuantity() != null ? i.getStockQuantity() : 0).orElse(0)
+                + escrow.getAvailableQuantity(sku);   // 租到本机托管的那部分在 Mongo 里已经扣掉了
+        return status(sku, qty);
+    }
+
+    private static InventoryStatus status(String sku, int qty) {
         return InventoryStatus.builder()
                 .sku(sku)
                 .availableQuantity(qty)
@@ -36,14 +61,118 @@ public class InventoryService {
 
     // 锁库存（用于创建订单）- 使用 MongoDB 原子操作
     public boolean reserve(String sku, int quantity) {
-        int result = itemRepository.tryDeduct(sku, quantity);
-        return result == 1;
+        return tryReserve(sku, quantity).isApplied();
+    }
+
+    // 锁库存并返回结果：成功时是扣减后的库存，失败时是当前可用库存（用于 409 的 available）
+    // 热门 sku 走托管（CAS 扣内存余额，不够时才向 Mongo 续租）或分片库存，都不逐单刷新目录快照
+    public StockMutation tryReserve(String sku, int quantity) {
+        if (escrow.handles(sku)) return escrow.reserve(sku, quantity);
+        if (shards.handles(sku)) return shards.tryDeduct(sku, quantity);
+        StockMutation result = itemRepository.tryDeduct(sku, quantity);
+        if (result.isApplied()) catalog.refresh(sku); // 库存变化，异步刷新目录快照
+        return result;
     }
 
     // 释放库存（订单取消 / 支付失败）- 使用 MongoDB 原子操作
     public boolean release(String sku, int quantity) {
-        int result = itemRepository.tryRestock(sku, quantity);
-        return result == 1;
+        if (escrow.handles(sku)) {
+            escrow.release(sku, quantity);
+            return true;
+        }
+        if (shards.handles(sku)) return shards.tryRestock(sku, quantity).isApplied();
+        StockMutation result = itemRepository.tryRestock(sku, quantity);
+        if (result.isApplied()) catalog.refresh(sku);
+        return result.isApplied();
+    }
+
+    /**
+     * 整单预留（全有或全无）：同一 sku 的多行合并，按 sku 排序后一次有序 bulkWrite 扣减；
+     * 任一 sku 不足则已扣部分按 token 回补，抛 InsufficientStockException（带实际可用库存）。
+     * 返回预留 token，之后用 releaseAll / commitAll 回补或确认。
+     * 顺序：托管的热门 sku -> 分片库存的 sku -> 其余 sku（items）；后面的失败时前面已预留的按 token 退回。
+     */
+    public String reserveAll(List<OrderLineItem> lines) {
+        String token = UUID.randomUUID().toString();
+        SortedMap<String, Integer> quantities = merge(lines);
+        SortedMap<String, Integer> hot = new TreeMap<>();
+        SortedMap<String, Integer> sharded = new TreeMap<>();
+        SortedMap<String, Integer> cold = new TreeMap<>();
+        quantities.forEach((sku, qty) ->
+                (escrow.handles(sku) ? hot : shards.handles(sku) ? sharded : cold).put(sku, qty));
+
+        Optional<StockMutation> failed = hot.isEmpty() ? Optional.empty() : escrow.reserveAll(token, hot);
+        if (failed.isEmpty() && !sharded.isEmpty()) {
+            failed = shards.reserveAll(token, sharded);
+            if (failed.isPresent()) escrow.releaseAll(token);
+        }
+        if (failed.isEmpty() && !cold.isEmpty()) {
+            failed = itemRepository.reserveAll(token, cold);
+            if (failed.isPresent()) {
+                escrow.releaseAll(token);
+                shards.releaseAll(token, sharded.keySet());
+            }
+        }
+        failed.ifPresent(f -> {
+            throw new InsufficientStockException(f.getSku(), quantities.get(f.getSku()), f.getQuantity());
+        });
+        cold.keySet().forEach(catalog::refresh);
+        return token;
+    }
+
+    /**
+     * 按 token 回补整单（可重复调用，只回补仍处于预留中的 sku）。
+     * Mongo 侧按 token 过滤，托管的 sku 不会带这个 token，所以整单传下去即可。
+     */
+    public int releaseAll(String token, List<OrderLineItem> lines) {
+        SortedMap<String, Integer> quantities = merge(lines);
+        int fromEscrow = escrow.releaseAll(token);
+        int fromShards = shards.releaseAll(token, shardedSkus(quantities.keySet()));
+        int released = itemRepository.releaseAll(token, quantities);
+        if (released > 0) quantities.keySet().forEach(catalog::refresh);
+        return fromEscrow + fromShards + released;
+    }
+
+    /**
+     * 批量按 token 回补多个订单（预留到期）：托管 / 分片部分逐 token 处理，items 部分合成一次 bulkWrite。
+     * byToken 为 token -> 该订单的行。
+     */
+    public int releaseAll(Map<String, List<OrderLineItem>> byToken) {
+        Map<String, SortedMap<String, Integer>> quantities = new LinkedHashMap<>();
+        Set<String> skus = new TreeSet<>();
+        int released = 0;
+        for (Map.Entry<String, List<OrderLineItem>> e : byToken.entrySet()) {
+            SortedMap<String, Integer> q = merge(e.getValue());
+            released += escrow.releaseAll(e.getKey());
+            released += shards.releaseAll(e.getKey(), shardedSkus(q.keySet()));
+            quantities.put(e.getKey(), q);
+            skus.addAll(q.keySet());
+        }
+        int fromItems = itemRepository.releaseAll(quantities);
+        if (fromItems > 0) skus.forEach(catalog::refresh);
+        return released + fromItems;
+    }
+
+    /** 确认整单预留（支付成功）：库存保持扣减，只摘掉 token */
+    public void commitAll(String token, List<OrderLineItem> lines) {
+        Set<String> skus = merge(lines).keySet();
+        escrow.commitAll(token);
+        shards.commitAll(token, shardedSkus(skus));
+        itemRepository.commitAll(token, skus);
+    }
+
+    private List<String> shardedSkus(Collection<String> skus) {
+        return skus.stream().filter(shards::handles).toList();
+    }
+
+    /** 同 sku 多行合并，按 sku 排序（固定的写入顺序） */
+    private static SortedMap<String, Integer> merge(List<OrderLineItem> lines) {
+        SortedMap<String, Integer> out = new TreeMap<>();
+        for (OrderLineItem line : lines) {
+            if (line.getQuantity() <= 0) continue;
+            out.merge(line.getSku(), line.getQuantity(), Integer::sum);
+        }
+        return out;
     }
 
     // ----------------------------------------------------------------------
@@ -54,34 +183,19 @@ public class InventoryService {
      * Cassandra（预留记录，双写两张查询模型表）:
      *  - inventory_reservations_by_sku (sku, reserved_at_ts DESC, order_id, qty) USING TTL ?
      *  - inventory_reservations_by_order (order_id, reserved_at_ts DESC, sku, qty) USING TTL ?
+     * 经 CassandraWritePipeline 异步写入，调用方不等 Cassandra 返回
      */
     public void recordReservationCassandra(String orderId, String sku, int qty, Duration ttl) {
         long now = System.currentTimeMillis();
         int ttlSec = (int) Math.max(1, ttl.getSeconds());
-
-        // by_sku
-        cassandraTemplate.getCqlOperations().execute(
-                "INSERT INTO inventory_reservations_by_sku (sku, reserved_at_ts, order_id, qty) " +
-                        "VALUES (?, ?, ?, ?) USING TTL ?",
-                sku, now, orderId, qty, ttlSec
-        );
-
-        // by_order
-        cassandraTemplate.getCqlOperations().execute(
-                "INSERT INTO inventory_reservations_by_order (order_id, reserved_at_ts, sku, qty) " +
-                        "VALUES (?, ?, ?, ?) USING TTL ?",
-                orderId, now, sku, qty, ttlSec
-        );
+        cassandraStatements.recordReservation(orderId, sku, qty, now, ttlSec);
     }
 
     /**
      * （可选）Cassandra：按主键删除一条预留（一般不需要，交由 TTL 过期）
      */
     public void deleteReservationCassandraBySku(String sku, long reservedAtTs) {
-        cassandraTemplate.getCqlOperations().execute(
-                "DELETE FROM inventory_reservations_by_sku WHERE sku = ? AND reserved_at_ts = ?",
-                sku, reservedAtTs
-        );
+        cassandraStatements.deleteReservationBySku(sku, reservedAtTs);
     }
 
     // 内部使用的结构体（不放 dto 包是因为这是 service <-> controller 的中间数据）
@@ -3,26 +3,43 @@ package org.example.carpet.service;
 import lombok.RequiredArgsConstructor;
 import lombok.Value;
 import lombok.extern.slf4j.Slf4j;
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.catalog.CatalogSnapshot;
+import org.example.carpet.dto.BulkItemResult;
+import org.example.carpet.dto.BulkUpsertResponse;
+import org.example.carpet.dto.ItemPage;
+import org.example.carpet.dto.ItemSummary;
+import org.example.carpet.exception.InvalidCursorException;
 import org.example.carpet.exception.ItemNotFoundException;
+import org.example.carpet.exception.StockNotWrittenException;
 import org.example.carpet.model.ItemDocument;
+import org.example.carpet.recommend.ItemSimilarityIndex;
+import org.example.carpet.recommend.RecommendationFallbackPool;
 import org.example.carpet.repository.mongo.ItemDocumentRepository;
-import org.springframework.data.cassandra.core.CassandraTemplate;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.data.mongodb.core.query.Criteria;
-import org.springframework.data.mongodb.core.query.Query;
+import org.example.carpet.search.ItemSearchIndex;
+import org.example.carpet.search.ItemTags;
+import org.example.carpet.search.SearchQuery;
+import org.example.carpet.search.SearchResultCache;
+import org.example.carpet.search.SuggestIndex;
 import org.springframework.stereotype.Service;
 
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.*;
-import java.util.stream.Collectors;
 
 /**
  * ItemService - 产品目录 / 搜索 / 推荐 + Cassandra购物车整合
  *
  * Mongo:
  *  - add/update 商品、详情、搜索、推荐
+ *  - 详情 / 推荐基准商品优先读 CatalogCache（进程内目录快照）
+ *  - 按 sku 推荐查 ItemSimilarityIndex（预计算 top-K），按标签推荐走 tags 索引
+ *  - 搜索 / 分面计数走 ItemSearchIndex（内存倒排索引 + 分面位图，upsert 时增量更新）
+ *  - 搜索结果再经 SearchResultCache（热门查询 LRU + 单飞，目录变化时按查询精确失效）
+ *  - 搜索框补全走 SuggestIndex（数组化前缀树）
  *
  * Cassandra (cart_items_by_user):
  *  - 购物车 upsert / list / remove / clear （行级 TTL）
@@ -34,10 +51,19 @@ public class ItemService {
 
     // ===== Mongo (产品目录/推荐) =====
     private final ItemDocumentRepository itemRepository;
-    private final MongoTemplate mongoTemplate;
+    private final ItemSearchIndex searchIndex;
+    private final SuggestIndex suggestIndex;
+    private final SearchResultCache searchCache;
+    private final CatalogCache catalog;
+    private final ItemSimilarityIndex similarity;
+    private final RecommendationFallbackPool fallbackPool;
 
     // ===== Cassandra (购物车) =====
-    private final CassandraTemplate cassandraTemplate;
+    private final CassandraStatements cassandraStatements;
+
+    // 批量导入每批写入条数（一次 bulkWrite）
+    @org.springframework.beans.factory.annotation.Value("${app.catalog.bulk.batch-size:500}")
+    private int bulkBatchSize = 500;
 
 
     // ------------------------------------------------------------
@@ -46,46 +72,149 @@ public class ItemService {
 
     /** 创建或更新商品（管理员） */
     public ItemDocument upsertItem(ItemDocument doc) {
-        itemRepository.findBySku(doc.getSku())
-                .ifPresent(e -> doc.setId(e.getId())); // 保持 _id 不变以覆盖
-        return itemRepository.save(doc);
+        // 按 sku 覆盖（_id 不变）；不碰预留 token，有未完成预留时也不覆盖库存（抛 StockNotWrittenException）
+        ItemDocument saved;
+        try {
+            saved = itemRepository.upsertBySku(doc);
+        } catch (StockNotWrittenException e) {
+            catalog.apply(e.getItem()); // 其它字段已经写入
+            throw e;
+        }
+        catalog.apply(saved); // 同步合入目录快照（搜索索引随快照增量更新）
+        return saved;
+    }
+
+    /**
+     * 批量导入（供应商 feed）：按 bulkBatchSize 分批，每批一次 unordered bulkWrite upsert（按 sku），
+     * 写完再用一次 $in 读回本批文档合入目录快照。
+     * docs 中的 null 表示该条解析失败；同一批内 sku 重复时先把前面的写掉（后写覆盖先写）。
+     */
+    public BulkUpsertResponse bulkUpsert(Iterator<ItemDocument> docs) {
+        BulkUpsertResponse response = new BulkUpsertResponse();
+        List<ItemDocument> batch = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        Set<String> batchSkus = new HashSet<>();
+        int index = 0;
+        while (docs.hasNext()) {
+            ItemDocument doc = docs.next();
+            int i = index++;
+            if (doc == null) {
+                response.add(BulkItemResult.failed(i, null, "invalid item"));
+                continue;
+            }
+            if (doc.getSku() == null || doc.getSku().isBlank()) {
+                response.add(BulkItemResult.failed(i, doc.getSku(), "sku is required"));
+                continue;
+            }
+            if (batch.size() >= Math.max(1, bulkBatchSize) || batchSkus.contains(doc.getSku())) {
+                flushBulk(batch, positions, response);
+                batchSkus.clear();
+            }
+            doc.setId(null);
+            doc.setVersion(null);
+            batch.add(doc);
+            positions.add(i);
+            batchSkus.add(doc.getSku());
+        }
+        flushBulk(batch, positions, response);
+        response.getItems().sort(Comparator.comparingInt(BulkItemResult::getIndex));
+        return response;
     }
 
-    /** 商品详情 */
+    private void flushBulk(List<ItemDocument> batch, List<Integer> positions, BulkUpsertResponse response) {
+        if (batch.isEmpty()) return;
+        List<String> written = new ArrayList<>();
+        for (BulkItemResult r : itemRepository.bulkUpsertBySku(batch)) {
+            if (r.getStatus() != BulkItemResult.Status.FAILED) written.add(r.getSku());
+            r.setIndex(positions.get(r.getIndex()));
+            response.add(r);
+        }
+        if (!written.isEmpty()) catalog.apply(itemRepository.findBySkuIn(written), List.of());
+        batch.clear();
+        positions.clear();
+    }
+
+    /** 商品详情（优先读目录快照；快照里没有再回源 Mongo） */
     public ItemDocument getBySku(String sku) {
-        return itemRepository.findBySku(sku)
+        return catalog.find(sku)
+                .or(() -> itemRepository.findBySku(sku))
                 .orElseThrow(() -> new ItemNotFoundException(sku));
     }
 
-    /** 简单搜索 + 过滤（本地内存过滤；量大时建议改 Mongo 查询条件） */
+    /**
+     * 批量取列表页字段（购物车 / 收藏 / 下单校验等一次要多个商品的场景）：
+     * 先查目录快照，快照里没有的再一次 $in 回源；返回顺序同入参，不存在的 sku 不出现。
+     */
+    public Map<String, ItemSummary> getSummaries(Collection<String> skus) {
+        Map<String, ItemSummary> out = new LinkedHashMap<>();
+        if (skus == null || skus.isEmpty()) return out;
+        CatalogSnapshot snapshot = catalog.current();
+        Set<String> misses = new LinkedHashSet<>();
+        for (String sku : skus) {
+            if (sku != null && snapshot.get(sku) == null) misses.add(sku);
+        }
+        Map<String, ItemSummary> found = misses.isEmpty() ? Map.of() : itemRepository.findSummariesBySkuIn(misses);
+        for (String sku : skus) {
+            if (sku == null || out.containsKey(sku)) continue;
+            ItemDocument d = snapshot.get(sku);
+            ItemSummary summary = d != null ? ItemSummary.of(d) : found.get(sku);
+            if (summary != null) out.put(sku, summary);
+        }
+        return out;
+    }
+
+    /**
+     * 列表页：按 sku 的游标分页 + 字段投影。
+     * cursor 是上一页返回的不透明令牌（base64url 编码的最后一个 sku），为空表示第一页。
+     */
+    public ItemPage listSummaries(String cursor, int limit) {
+        int safeLimit = Math.min(Math.max(limit, 1), 100); // 防止一次拉太多
+        String afterSku = decodeCursor(cursor);
+        // 多取一条用来判断是否还有下一页
+        List<ItemSummary> rows = itemRepository.findSummariesAfter(afterSku, safeLimit + 1);
+        String next = null;
+        if (rows.size() > safeLimit) {
+            rows = rows.subList(0, safeLimit);
+            next = encodeCursor(rows.get(safeLimit - 1).getSku());
+        }
+        return ItemPage.builder().items(rows).nextCursor(next).build();
+    }
+
+    /** 搜索 + 过滤（走内存倒排索引，不再每次 findAll 全量扫描） */
     public List<ItemDocument> search(String q, String category, String color, String roomType) {
-        final List<String> qsCategories = splitCsv(category);
-        final List<String> qsColors     = splitCsv(color);
-        final List<String> qsRooms      = splitCsv(roomType);
-
-        List<ItemDocument> all = itemRepository.findAll();
-
-        return all.stream().filter(item -> {
-            final String skuLc   = lc(item.getSku());
-            final String nameLc  = lc(item.getName());
-            final String descLc  = lc(item.getDescription());
-            final String catJoin = joinAny(item.getCategory());
-            final String colJoin = joinAny(item.getColor());
-            final String rtJoin  = joinAny(item.getRoomType());
-
-            boolean okQ = isEmpty(q) ||
-                    skuLc.contains(lc(q)) ||
-                    nameLc.contains(lc(q)) ||
-                    descLc.contains(lc(q)) ||
-                    catJoin.contains(lc(q)) ||
-                    rtJoin.contains(lc(q));
-
-            boolean okCategory = qsCategories.isEmpty() || containsAny(catJoin, qsCategories);
-            boolean okColor    = qsColors.isEmpty()     || containsAny(colJoin, qsColors);
-            boolean okRoom     = qsRooms.isEmpty()      || containsAny(rtJoin, qsRooms);
-
-            return okQ && okCategory && okColor && okRoom;
-        }).collect(Collectors.toList());
+        return search(q, category, color, roomType, null);
+    }
+
+    public List<ItemDocument> search(String q, String category, String color, String roomType, String material) {
+        catalog.ensureLoaded();
+        return searchCache.search(SearchQuery.of(q, category, color, roomType, material), 0, Integer.MAX_VALUE);
+    }
+
+    /** 分页搜索：有 q 时按相关度（BM25F）排序，只取 [offset, offset+limit) */
+    public List<ItemDocument> search(String q, String category, String color, String roomType, String material,
+                                     int offset, int limit) {
+        int safeLimit = Math.min(Math.max(limit, 1), 100);
+        int safeOffset = Math.max(offset, 0);
+        catalog.ensureLoaded();
+        return searchCache.search(SearchQuery.of(q, category, color, roomType, material), safeOffset, safeLimit);
+    }
+
+    /** 分面计数（category / color / roomType / material -> 值 -> 数量），口径与 search 相同 */
+    public Map<String, Map<String, Integer>> facets(String q, String category, String color,
+                                                    String roomType, String material) {
+        return index().facetCounts(SearchQuery.of(q, category, color, roomType, material));
+    }
+
+    /** 搜索框补全：名称 / 关键词 / 房间类型中以 prefix 开头的常见短语 */
+    public List<String> suggest(String prefix, int limit) {
+        catalog.ensureLoaded();
+        return suggestIndex.suggest(prefix, Math.min(Math.max(limit, 1), 20));
+    }
+
+    /** 索引由目录快照驱动；首次访问快照时会同步全量加载，索引随之构建 */
+    private ItemSearchIndex index() {
+        catalog.ensureLoaded();
+        return searchIndex;
     }
 
     // ------------------------------------------------------------
@@ -97,69 +226,58 @@ public class ItemService {
         return recommendBySku(sku, limit);
     }
 
-    /** 根据 sku 推荐（找出该商品的 roomType/keywords -> 再做标签召回） */
+    /**
+     * 根据 sku 推荐：优先查预计算的相似度表（ItemSimilarityIndex，一次数组查找）；
+     * 表里没有（新商品尚未收录 / 没有任何相似商品）时退回标签召回。
+     */
     public List<ItemDocument> recommendBySku(String sku, int limit) {
-        ItemDocument base = itemRepository.findBySku(sku).orElse(null);
+        CatalogSnapshot snapshot = catalog.current();
+        ItemDocument base = snapshot.find(sku).or(() -> itemRepository.findBySku(sku)).orElse(null);
         if (base == null) return List.of();
 
+        List<ItemDocument> similar = new ArrayList<>();
+        for (String nb : similarity.neighbours(sku, limit)) {
+            ItemDocument d = snapshot.get(nb);
+            if (d != null) similar.add(d);
+        }
+        if (!similar.isEmpty()) return similar;
+
         List<String> rooms = getStringList(base.getRoomType());
         List<String> kws   = getStringList(base.getKeywords());
-
-        return recommendByTags(String.join(",", rooms), String.join(",", kws), limit)
-                .stream()
-                .filter(it -> !Objects.equals(it.getSku(), sku))   // 排除自己
-                .collect(Collectors.toList());
+        List<String> tags  = ItemTags.normalize(String.join(",", rooms), String.join(",", kws));
+        return recommendByTags(tags, sku, limit);
     }
 
     /**
-     * 按标签推荐（支持 roomType / keywords；任一匹配即入选）
+     * 按标签推荐（支持 roomType / keywords；任一匹配即入选，命中越多越靠前）
      * 无标签时随机兜底
      */
     public List<ItemDocument> recommendByTags(String roomType, String keywords, int limit) {
-        Set<String> tokenSet = new LinkedHashSet<>();
-        if (roomType != null) {
-            Arrays.stream(roomType.split("[,;\\s]+"))
-                    .map(String::trim).filter(s -> !s.isEmpty())
-                    .forEach(tokenSet::add);
-        }
-        if (keywords != null) {
-            Arrays.stream(keywords.split("[,;\\s]+"))
-                    .map(String::trim).filter(s -> !s.isEmpty())
-                    .forEach(tokenSet::add);
-        }
+        return recommendByTags(ItemTags.normalize(roomType, keywords), null, limit);
+    }
 
-        // 无标签 → 随机推荐
-        if (tokenSet.isEmpty()) {
-            List<ItemDocument> all = itemRepository.findAll();
-            Collections.shuffle(all);
-            return all.stream().limit(limit).collect(Collectors.toList());
-        }
+    private List<ItemDocument> recommendByTags(List<String> tags, String excludeSku, int limit) {
+        int safeLimit = Math.max(1, limit);
 
-        // 构造 Mongo OR 查询
-        List<Criteria> ors = new ArrayList<>();
-        for (String token : tokenSet) {
-            String regex = ".*" + escapeRegex(token) + ".*";
-            ors.add(new Criteria().orOperator(
-                    Criteria.where("roomType").regex(regex, "i"),
-                    Criteria.where("keywords").regex(regex, "i"),
-                    Criteria.where("name").regex(regex, "i"),
-                    Criteria.where("material").regex(regex, "i"),
-                    Criteria.where("color").regex(regex, "i")
-            ));
+        // 无标签 → 随机推荐
+        if (tags.isEmpty()) {
+            return randomFallback(excludeSku, safeLimit);
         }
-        Query query = new Query(new Criteria().orOperator(ors.toArray(new Criteria[0])))
-                .limit(Math.max(1, limit));
 
-        List<ItemDocument> results = mongoTemplate.find(query, ItemDocument.class);
+        // tags $in（多键索引）+ 按重合个数排序
+        List<ItemDocument> results = itemRepository.findRelated(tags, excludeSku, safeLimit);
         if (results.isEmpty()) {
             // 兜底（防止页面空白）
-            List<ItemDocument> all = itemRepository.findAll();
-            Collections.shuffle(all);
-            return all.stream().limit(limit).collect(Collectors.toList());
+            return randomFallback(excludeSku, safeLimit);
         }
         return results;
     }
 
+    /** 随机兜底：从定期 $sample 刷新的候选池里抽样，不再全量加载目录 */
+    private List<ItemDocument> randomFallback(String excludeSku, int limit) {
+        return fallbackPool.draw(excludeSku, limit);
+    }
+
     // ------------------------------------------------------------
     // Cassandra：购物车（行级 TTL）
     // 表：cart_items_by_user(user_email text, sku text, qty int, price decimal, updated_at_ts bigint, PRIMARY KEY(user_email, sku))
@@ -169,22 +287,13 @@ public class ItemService {
     public void cartUpsertCassandra(String userEmail, String sku, int qty, BigDecimal price, Duration ttl) {
         long now = System.currentTimeMillis();
         int ttlSec = (int) Math.max(1, (ttl != null ? ttl.getSeconds() : Duration.ofDays(30).getSeconds()));
-        cassandraTemplate.getCqlOperations().execute(
-                "INSERT INTO cart_items_by_user (user_email, sku, qty, price, updated_at_ts) " +
-                        "VALUES (?, ?, ?, ?, ?) USING TTL ?",
-                userEmail, sku, qty, price, now, ttlSec
-        );
+        cassandraStatements.cartSet(userEmail, sku, qty, price, now, ttlSec);
     }
 
     /** 查询购物车 */
     public List<CartItemView> cartListCassandra(String userEmail) {
-        var rows = cassandraTemplate.getCqlOperations().queryForRows(
-                "SELECT user_email, sku, qty, price, updated_at_ts " +
-                        "FROM cart_items_by_user WHERE user_email = ?",
-                userEmail
-        );
         List<CartItemView> out = new ArrayList<>();
-        rows.forEach(row -> out.add(new CartItemView(
+        cassandraStatements.cartList(userEmail).forEach(row -> out.add(new CartItemView(
                 row.getString("user_email"),
                 row.getString("sku"),
                 row.getInt("qty"),
@@ -194,19 +303,14 @@ public class ItemService {
         return out;
     }
 
-    /** 删除某个 SKU */
+    /** 删除某个 SKU（连同 cart_item_deltas_by_user 中该 sku 的增量） */
     public void cartRemoveCassandra(String userEmail, String sku) {
-        cassandraTemplate.getCqlOperations().execute(
-                "DELETE FROM cart_items_by_user WHERE user_email = ? AND sku = ?",
-                userEmail, sku
-        );
+        cassandraStatements.cartRemove(userEmail, sku);
     }
 
-    /** 清空购物车（也可仅依赖 TTL 自然过期） */
+    /** 清空购物车：整分区删除（也可仅依赖 TTL 自然过期） */
     public void cartClearCassandra(String userEmail) {
-        for (CartItemView it : cartListCassandra(userEmail)) {
-            cartRemoveCassandra(userEmail, it.getSku());
-        }
+        cassandraStatements.cartClear(userEmail);
     }
 
     // 购物车视图对象（给 controller 返回）
@@ -222,36 +326,18 @@ public class ItemService {
     // ------------------------------------------------------------
     // helpers
     // ------------------------------------------------------------
-    private static String lc(String s) { return s == null ? "" : s.toLowerCase(Locale.ROOT); }
-    private static boolean isEmpty(String s) { return s == null || s.isBlank(); }
-
-    /** 将 String 或 List<String> 统一拍平成小写空格拼接文本，便于 contains */
-    private static String joinAny(Object v) {
-        if (v == null) return "";
-        if (v instanceof String) return lc((String) v);
-        if (v instanceof Collection<?>) {
-            return ((Collection<?>) v).stream()
-                    .filter(Objects::nonNull)
-                    .map(o -> lc(String.valueOf(o)))
-                    .collect(Collectors.joining(" "));
-        }
-        return lc(String.valueOf(v));
-    }
 
-    /** 解析逗号分隔列表为小写 token 列表 */
-    private static List<String> splitCsv(String s) {
-        if (isEmpty(s)) return Collections.emptyList();
-        return Arrays.stream(s.split(","))
-                .map(String::trim).filter(t -> !t.isEmpty())
-                .map(t -> t.toLowerCase(Locale.ROOT))
-                .collect(Collectors.toList());
+    private static String encodeCursor(String sku) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(sku.getBytes(StandardCharsets.UTF_8));
     }
 
-    /** haystack 是 joinAny 的结果；needles 是已小写的词列表，只要有一个出现就匹配 */
-    private static boolean containsAny(String haystack, List<String> needles) {
-        if (haystack.isEmpty() || needles.isEmpty()) return true;
-        for (String n : needles) if (haystack.contains(n)) return true;
-        return false;
+    private static String decodeCursor(String cursor) {
+        if (cursor == null || cursor.isBlank()) return null;
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidCursorException(cursor);
+        }
     }
 
     /** 将字段（String / List / 其它）安全转为字符串列表（不使用 Java21 的模式匹配） */
@@ -268,9 +354,4 @@ public class ItemService {
         }
         return out;
     }
-
-    /** 简单转义正则特殊字符，避免用户关键词破坏 regex */
-    private static String escapeRegex(String s) {
-        return s.replaceAll("([\\\\.^$|?*+()\\[\\]{}])", "\\\\$1");
-    }
 }
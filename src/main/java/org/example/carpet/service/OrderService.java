@@ -2,15 +2,16 @@ package org.example.carpet.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.example.carpet.exception.InsufficientStockException;
+import org.example.carpet.cassandra.CassandraStatements;
 import org.example.carpet.exception.InvalidOrderStateException;
 import org.example.carpet.exception.OrderNotFoundException;
 import org.example.carpet.exception.UnauthorizedAccessException;
+import org.example.carpet.expiry.ReservationExpiryScheduler;
 import org.example.carpet.kafka.InventoryEventProducer;
 import org.example.carpet.model.OrderDocument;
 import org.example.carpet.model.OrderLineItem;
 import org.example.carpet.repository.mongo.OrderRepository;
-import org.springframework.data.cassandra.core.CassandraTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
@@ -18,8 +19,8 @@ import org.springframework.data.domain.Sort;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 /**
@@ -42,7 +43,13 @@ public class OrderService {
     private final InventoryEventProducer inventoryEventProducer;   // Kafka events
 
     // === Cassandra: 事件时间线 ===
-    private final CassandraTemplate cassandraTemplate;
+    private final CassandraStatements cassandraStatements;
+
+    // 预留到期：超时未支付的订单由 ReservationExpiryScheduler 取消并回补库存
+    private final ReservationExpiryScheduler reservationExpiry;
+
+    @Value("${app.orders.reservation.ttl:PT15M}")
+    private Duration reservationTtl = Duration.ofMinutes(15);
 
     // ====== 新增：查询订单历史（分页，按 createdAt 倒序） ======
     public Page<OrderDocument> getOrderHistory(String customerEmail, int page, int size) {
@@ -53,25 +60,20 @@ public class OrderService {
     }
 
     /**
-     * 创建订单：逐条原子扣减库存，任何一条不足则回补已扣部分并抛 409 业务异常
+     * 创建订单：整单原子预留库存（InventoryService.reserveAll），任何一条不足则整单不扣并抛 409 业务异常
      * Cassandra：
      *  - 追加事件：OrderCreated / InventoryReserved
-     *  - 记录预留：inventory_reservations_*（TTL 15m）
+     *  - 记录预留：inventory_reservations_*（TTL = app.orders.reservation.ttl，默认 15m）
+     * 到期未支付由 ReservationExpiryScheduler 自动取消并回补库存
      */
     public OrderDocument createOrder(String customerEmail, List<OrderLineItem> items) {
-        // 1) 逐条扣减（原子条件：stockQuantity >= qty）- 通过 InventoryService
-        List<OrderLineItem> deducted = new ArrayList<>();
-        for (OrderLineItem line : items) {
-            boolean reserved = inventoryService.reserve(line.getSku(), line.getQuantity());
-            if (!reserved) {
-                // 回补之前成功扣减的
-                for (OrderLineItem r : deducted) {
-                    try { inventoryService.release(r.getSku(), r.getQuantity()); } catch (Exception ignore) {}
-                }
-                throw new InsufficientStockException(line.getSku(), line.getQuantity(), -1);
-            }
-            deducted.add(line);
-        }
+        return createOrder(customerEmail, items, false);
+    }
+
+    /** 同上；clearCart 为 true 时订单落库后整分区清空该用户购物车 */
+    public OrderDocument createOrder(String customerEmail, List<OrderLineItem> items, boolean clearCart) {
+        // 1) 整单预留：按 sku 排序一次 bulkWrite，全有或全无（不足时抛 409，已扣部分已回补）
+        String reservationToken = inventoryService.reserveAll(items);
 
         // 2) 计算总价
         double total = items.stream()
@@ -88,12 +90,20 @@ public class OrderService {
                 .items(items)
                 .totalAmount(total)
                 .status("RESERVED")
+                .reservationToken(reservationToken)
                 .createdAt(LocalDateTime.now())
                 .updatedAt(LocalDateTime.now())
                 .build();
 
-        // 5) 持久化
-        OrderDocument saved = orderRepository.save(order);
+        // 5) 持久化（失败时按 token 回补，避免库存泄漏）
+        OrderDocument saved;
+        try {
+            saved = orderRepository.save(order);
+        } catch (RuntimeException e) {
+            inventoryService.releaseAll(reservationToken, items);
+            throw e;
+        }
+        reservationExpiry.schedule(orderId, System.currentTimeMillis() + reservationTtl.toMillis());
 
         // --- Cassandra: 事件时间线 ---
         appendOrderEvent(orderId, "OrderCreated", "{\"email\":\"" + customerEmail + "\"}");
@@ -104,15 +114,23 @@ public class OrderService {
             try { inventoryEventProducer.publishInventoryReserved(orderId, line.getSku(), line.getQuantity()); }
             catch (Exception ignore) {}
 
-            // Cassandra 预留（TTL 15 分钟）
-            try { inventoryService.recordReservationCassandra(orderId, line.getSku(), line.getQuantity(), Duration.ofMinutes(15)); }
-            catch (Exception ignore) {}
+            // Cassandra 预留（TTL = 预留时长，异步写入；重启时据此重建到期时间轮）
+            inventoryService.recordReservationCassandra(orderId, line.getSku(), line.getQuantity(), reservationTtl);
 
             // Cassandra 事件
             appendOrderEvent(orderId, "InventoryReserved",
                     "{\"sku\":\""+line.getSku()+"\",\"qty\":"+line.getQuantity()+"}");
         }
 
+        // 7) 清空购物车（订单已落库，清空失败不影响下单）
+        if (clearCart) {
+            try {
+                cassandraStatements.cartClear(customerEmail);
+            } catch (Exception e) {
+                log.warn("Failed to clear cart for {} after order {}: {}", customerEmail, orderId, e.toString());
+            }
+        }
+
         return saved;
     }
 
@@ -125,14 +143,23 @@ public class OrderService {
      * 取消：回补 Mongo 库存；外部库存服务 best-effort 释放；发 Release 事件；Cassandra 写事件
      */
     public OrderDocument cancelOrder(String orderId) {
-        OrderDocument order = getOrderByOrderId(orderId);
-        if (!"RESERVED".equals(order.getStatus()) && !"PAID".equals(order.getStatus())) {
-            return order; // 其他状态不处理
+        // 条件流转 RESERVED/PAID -> CANCELLED：和到期扫描、支付抢同一张单时只有一方能赢，
+        // 输的一方不碰库存（否则会重复回补或者回补了别人已经确认的预留）
+        Optional<OrderDocument> won = orderRepository.transition(orderId, List.of("RESERVED", "PAID"), "CANCELLED");
+        if (won.isEmpty()) {
+            return getOrderByOrderId(orderId); // 其他状态不处理
         }
-
-        for (OrderLineItem line : order.getItems()) {
-            // 回补本地库存 - 通过 InventoryService
-            try { inventoryService.release(line.getSku(), line.getQuantity()); } catch (Exception ignore) {}
+        OrderDocument order = won.get();
+
+        if (order.getReservationToken() != null) {
+            // 仍在预留中：按 token 整单回补（幂等，重复取消不会多加库存）
+            inventoryService.releaseAll(order.getReservationToken(), order.getItems());
+            order.setReservationToken(null);
+        } else {
+            for (OrderLineItem line : order.getItems()) {
+                // 已支付（预留已确认）或老订单：逐条回补本地库存 - 通过 InventoryService
+                try { inventoryService.release(line.getSku(), line.getQuantity()); } catch (Exception ignore) {}
+            }
         }
 
         // Cassandra 事件
@@ -146,35 +173,74 @@ public class OrderService {
 
         order.setStatus("CANCELLED");
         order.setUpdatedAt(LocalDateTime.now());
-        return orderRepository.save(order);
+        return order;
     }
 
     public OrderDocument markPaid(String orderId) {
-        OrderDocument order = getOrderByOrderId(orderId);
-
-        // Idempotency: If already PAID, return immediately (no error)
-        // This allows both synchronous and asynchronous payment processing paths
-        if ("PAID".equals(order.getStatus())) {
-            log.info("Order {} already marked PAID, skipping duplicate processing", orderId);
-            return order;
-        }
-
-        if (!"RESERVED".equals(order.getStatus())) {
+        // 条件流转 RESERVED -> PAID：到期扫描已经认领（EXPIRING）或取消的单不会被改回 PAID，
+        // 也就不会在预留已回补之后再确认一次（超卖）
+        Optional<OrderDocument> won = orderRepository.transition(orderId, List.of("RESERVED"), "PAID");
+        if (won.isEmpty()) {
+            OrderDocument order = getOrderByOrderId(orderId);
+
+            // Idempotency: If already PAID, return immediately (no error)
+            // This allows both synchronous and asynchronous payment processing paths
+            if ("PAID".equals(order.getStatus())) {
+                log.info("Order {} already marked PAID, skipping duplicate processing", orderId);
+                return order;
+            }
             throw new InvalidOrderStateException(orderId, order.getStatus(), "RESERVED");
         }
+        OrderDocument order = won.get();
         order.setStatus("PAID");
         order.setUpdatedAt(LocalDateTime.now());
 
+        // 确认预留：库存保持扣减，摘掉 token（流转时已经在库里清掉）
+        if (order.getReservationToken() != null) {
+            inventoryService.commitAll(order.getReservationToken(), order.getItems());
+            order.setReservationToken(null);
+        }
+
         // Cassandra 事件
         appendOrderEvent(orderId, "PaymentSucceeded", "{}");
 
-        return orderRepository.save(order);
+        return order;
     }
 
-    /** 供其它服务直接更新订单状态 */
-    public OrderDocument saveDirect(OrderDocument order) {
+    /**
+     * 退款：PAID -> REFUNDED（条件流转）。支付成功后被取消的单（包括支付输给到期扫描的）也允许退款；
+     * 其它状态（含已退款）抛 InvalidOrderStateException，不会把订单改回去，也不会重复退款。
+     */
+    public OrderDocument markRefunded(String orderId) {
+        Optional<OrderDocument> won = orderRepository.transition(orderId, List.of("PAID", "CANCELLED"), "REFUNDED");
+        if (won.isEmpty()) {
+            throw new InvalidOrderStateException(orderId, getOrderByOrderId(orderId).getStatus(), "PAID");
+        }
+        OrderDocument order = won.get();
+        order.setStatus("REFUNDED");
+        order.setReservationToken(null);
         order.setUpdatedAt(LocalDateTime.now());
-        return orderRepository.save(order);
+        return order;
+    }
+
+    /** 修改下单邮箱：只有订单所有者、且订单仍是 RESERVED 时可以改 */
+    public OrderDocument updateCustomerEmail(String orderId, String requesterEmail, String customerEmail) {
+        OrderDocument order = getOrderByOrderId(orderId);
+
+        if (!order.getCustomerEmail().equalsIgnoreCase(requesterEmail)) {
+            throw new UnauthorizedAccessException(requesterEmail, "order " + orderId);
+        }
+        if (!"RESERVED".equalsIgnoreCase(order.getStatus())) {
+            throw new InvalidOrderStateException(orderId, order.getStatus(), "RESERVED");
+        }
+        if (customerEmail == null || customerEmail.isBlank()) {
+            return order;
+        }
+
+        // 只写 customerEmail（条件更新）：整单 save 会把读之后被到期 / 取消改掉的状态和 token 写回去
+        return orderRepository.updateCustomerEmail(orderId, List.of("RESERVED"), customerEmail)
+                .orElseThrow(() -> new InvalidOrderStateException(orderId,
+                        getOrderByOrderId(orderId).getStatus(), "RESERVED"));
     }
 
     /** 更新订单配送地址 */
@@ -192,8 +258,11 @@ public class OrderService {
             throw new InvalidOrderStateException(orderId, order.getStatus(), "RESERVED or PAID");
         }
 
-        order.setShippingAddress(address);
-        order.setUpdatedAt(LocalDateTime.now());
+        // 只写地址字段（条件更新）：整单 save 会把读之后被到期 / 取消改掉的状态和 token 写回去
+        OrderDocument updated = orderRepository
+                .updateShippingAddress(orderId, List.of("RESERVED", "PAID"), address)
+                .orElseThrow(() -> new InvalidOrderStateException(orderId,
+                        getOrderByOrderId(orderId).getStatus(), "RESERVED or PAID"));
 
         // 记录事件到 Cassandra
         String payload = String.format("{\"line1\":\"%s\",\"city\":\"%s\",\"country\":\"%s\"}",
@@ -201,7 +270,7 @@ public class OrderService {
         appendOrderEvent(orderId, "ShippingAddressUpdated", payload);
 
         log.info("Updated shipping address for order {} by user {}", orderId, requesterEmail);
-        return orderRepository.save(order);
+        return updated;
     }
 
     // ----------------------------------------------------------------------
@@ -210,13 +279,7 @@ public class OrderService {
     private void appendOrderEvent(String orderId, String type, String payloadJson) {
         long now = System.currentTimeMillis();
         String payload = (payloadJson == null || payloadJson.isBlank()) ? "{}" : payloadJson;
-        try {
-            cassandraTemplate.getCqlOperations().execute(
-                    "INSERT INTO order_events_by_order (order_id, ts, type, payload_json) VALUES (?, ?, ?, ?)",
-                    orderId, now, type, payload
-            );
-        } catch (Exception ignore) {
-            // 事件失败不回滚主交易
-        }
+        // 异步写入，不阻塞请求线程；失败只记日志和管道指标，不回滚主交易
+        cassandraStatements.appendOrderEvent(orderId, now, type, payload);
     }
 }
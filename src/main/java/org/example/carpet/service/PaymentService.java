@@ -6,7 +6,6 @@ import org.example.carpet.exception.PaymentNotFoundException;
 import org.example.carpet.kafka.PaymentEventProducer;
 import org.example.carpet.ledger.PaymentLedgerEntity;
 import org.example.carpet.repository.jpa.PaymentLedgerRepository;
-import org.example.carpet.model.OrderDocument;
 import org.example.carpet.model.PaymentRecord;
 import org.example.carpet.repository.mongo.PaymentRepository;
 import org.springframework.stereotype.Service;
@@ -89,8 +88,8 @@ public class PaymentService {
      * Called when a paid order is cancelled or customer is refunded.
      * Flow:
      *  1) ensure there was a successful payment
-     *  2) create negative refund record (REFUND_SUCCESS)
-     *  3) mark order REFUNDED
+     *  2) mark order REFUNDED (conditional PAID/CANCELLED -> REFUNDED, so a second refund is rejected)
+     *  3) create negative refund record (REFUND_SUCCESS)
      *  4) append immutable ledger row (negative amount)
      */
     @Transactional
@@ -105,7 +104,10 @@ public class PaymentService {
 
         double refundAmount = paid.getAmount();
 
-        // 2) create refund record (negative amount)
+        // 2) mark order as REFUNDED（条件流转，不会把已经被改掉状态的订单整单覆盖回去）
+        orderService.markRefunded(orderId);
+
+        // 3) create refund record (negative amount)
         PaymentRecord refundRecord = PaymentRecord.builder()
                 .id(null)
                 .orderId(orderId)
@@ -117,11 +119,6 @@ public class PaymentService {
                 .build();
         refundRecord = paymentRepository.save(refundRecord);
 
-        // 3) mark order as REFUNDED
-        OrderDocument order = orderService.getOrderByOrderId(orderId);
-        order.setStatus("REFUNDED"); // or CANCELLED_REFUNDED per business wording
-        orderService.saveDirect(order);
-
         // (Optional) emit refund event
         // try { paymentEventProducer.publishPaymentRefunded(orderId, refundAmount); } catch (Exception ignored) {}
 
@@ -56,7 +56,11 @@ class CarpetApplicationTests {
 
     // Mock Cassandra dependencies
     @MockBean private CassandraTemplate cassandraTemplate;
+    @MockBean private org.springframework.data.cassandra.core.AsyncCassandraTemplate asyncCassandraTemplate;
+    @MockBean private org.example.carpet.cassandra.CassandraStatements cassandraStatements;
+    @MockBean private org.example.carpet.cassandra.CassandraWritePipeline cassandraWritePipeline;
     @MockBean private CartItemRepo cartItemRepo;
+    @MockBean private org.example.carpet.cassandra.repos.CartItemDeltaRepo cartItemDeltaRepo;
     @MockBean private org.example.carpet.cassandra.repos.InventoryReservationByOrderRepo inventoryReservationByOrderRepo;
     @MockBean private org.example.carpet.cassandra.repos.InventoryReservationBySkuRepo inventoryReservationBySkuRepo;
     @MockBean private org.example.carpet.cassandra.repos.OrderEventRepo orderEventRepo;
@@ -1,11 +1,17 @@
 package org.example.carpet;
 
+import com.datastax.oss.driver.api.core.uuid.Uuids;
+import org.example.carpet.cassandra.CassandraStatements;
 import org.example.carpet.cassandra.entities.CartItem;
+import org.example.carpet.cassandra.entities.CartItemDelta;
+import org.example.carpet.cassandra.keys.CartItemDeltaKey;
 import org.example.carpet.cassandra.keys.CartItemKey;
+import org.example.carpet.cassandra.repos.CartItemDeltaRepo;
 import org.example.carpet.cassandra.repos.CartItemRepo;
 import org.example.carpet.dto.CartChangeQtyRequest;
 import org.example.carpet.dto.CartItemView;
 import org.example.carpet.dto.CartUpsertRequest;
+import org.example.carpet.catalog.CatalogCache;
 import org.example.carpet.model.ItemDocument;
 import org.example.carpet.repository.mongo.ItemDocumentRepository;
 import org.example.carpet.service.CartService;
@@ -14,17 +20,20 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.data.cassandra.core.CassandraTemplate;
-import org.springframework.data.cassandra.core.cql.CqlOperations;
+import org.springframework.data.cassandra.core.AsyncCassandraOperations;
+import org.springframework.data.cassandra.core.query.Query;
 
 import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -37,7 +46,16 @@ class CartServiceTest {
     private ItemDocumentRepository itemRepo;
 
     @Mock
-    private CassandraTemplate cassandraTemplate;
+    private CassandraStatements statements;
+
+    @Mock
+    private CatalogCache catalog;
+
+    @Mock
+    private CartItemDeltaRepo deltaRepo;
+
+    @Mock
+    private AsyncCassandraOperations asyncCassandra;
 
     @InjectMocks
     private CartService cartService;
@@ -70,8 +88,10 @@ class CartServiceTest {
                 .build();
 
         when(cartItemRepo.findByUserEmail(email)).thenReturn(Arrays.asList(item1, item2));
-        when(itemRepo.findBySku("SKU-001")).thenReturn(Optional.of(doc1));
-        when(itemRepo.findBySku("SKU-002")).thenReturn(Optional.of(doc2));
+        when(asyncCassandra.select(any(Query.class), eq(CartItemDelta.class)))
+                .thenReturn(CompletableFuture.completedFuture(List.of()));
+        when(catalog.find("SKU-001")).thenReturn(Optional.of(doc1));   // 快照命中
+        when(itemRepo.findBySkuIn(List.of("SKU-002"))).thenReturn(List.of(doc2));
 
         // Act
         List<CartItemView> result = cartService.list(email);
@@ -83,6 +103,9 @@ class CartServiceTest {
         assertEquals("Item 1", result.get(0).getName());
         assertEquals(2, result.get(0).getQuantity());
         assertEquals("SKU-002", result.get(1).getSku());
+        assertEquals("Item 2", result.get(1).getName());
+        // 未命中快照的 sku 合并成一次批量查询，不再逐个 findBySku
+        verify(itemRepo, never()).findBySku(anyString());
     }
 
     @Test
@@ -90,6 +113,8 @@ class CartServiceTest {
         // Arrange
         String email = "user@example.com";
         when(cartItemRepo.findByUserEmail(email)).thenReturn(List.of());
+        when(asyncCassandra.select(any(Query.class), eq(CartItemDelta.class)))
+                .thenReturn(CompletableFuture.completedFuture(List.of()));
 
         // Act
         List<CartItemView> result = cartService.list(email);
@@ -108,44 +133,64 @@ class CartServiceTest {
         request.setQuantity(2);
         request.setPrice(BigDecimal.valueOf(99.99));
 
-        CartItemKey key = new CartItemKey(email, "SKU-001");
-
-        when(cartItemRepo.findById(key)).thenReturn(Optional.empty());
-
-        CqlOperations cqlOps = mock(CqlOperations.class);
-        when(cassandraTemplate.getCqlOperations()).thenReturn(cqlOps);
-
         // Act
         cartService.upsert(email, request);
 
-        // Assert
-        verify(cqlOps).execute(anyString(), any(), any(), any(), any(), any(), anyInt());
+        // Assert：一次盲写，不读旧行
+        verify(statements).cartSet(eq(email), eq("SKU-001"), eq(2), eq(BigDecimal.valueOf(99.99)), anyLong(), anyInt());
+        verify(cartItemRepo, never()).findById(any());
     }
 
     @Test
-    void upsert_existingItem_shouldUpdate() {
+    void upsert_withoutQuantity_shouldAppendDeltaWithoutRead() {
         // Arrange
         String email = "user@example.com";
         String sku = "SKU-001";
 
-        CartItemKey key = new CartItemKey(email, sku);
-        CartItem existing = new CartItem(key, 1, BigDecimal.valueOf(50.00), 1000L);
-
         CartUpsertRequest request = new CartUpsertRequest();
         request.setSku(sku);
-        request.setQuantity(5);
         request.setPrice(BigDecimal.valueOf(99.99));
 
-        when(cartItemRepo.findById(key)).thenReturn(Optional.of(existing));
+        // Act
+        cartService.upsert(email, request);
+
+        // Assert：只追加一行 +1 增量
+        verify(statements).cartAddDelta(eq(email), eq(sku), any(UUID.class), eq(1), eq(BigDecimal.valueOf(99.99)), anyInt());
+        verify(cartItemRepo, never()).findById(any());
+        verify(cartItemRepo, never()).findByUserEmail(any());
+    }
 
-        CqlOperations cqlOps = mock(CqlOperations.class);
-        when(cassandraTemplate.getCqlOperations()).thenReturn(cqlOps);
+    @Test
+    void list_shouldMergeDeltasNewerThanBaseRow() {
+        // Arrange
+        String email = "user@example.com";
+        long base = 1_700_000_000_000L;
+        CartItem row = new CartItem(new CartItemKey(email, "SKU-001"), 2, BigDecimal.TEN, base);
+
+        CartItemDelta stale = delta(email, "SKU-001", base - 1000, 5, null);        // 被"设定数量"覆盖
+        CartItemDelta fresh = delta(email, "SKU-001", base + 1000, 1, BigDecimal.ONE);
+        CartItemDelta onlyDelta = delta(email, "SKU-002", base, 3, null);          // 只有增量的行
+        CartItemDelta removed = delta(email, "SKU-003", base, -1, null);           // 合并后 <= 0 不显示
+
+        when(cartItemRepo.findByUserEmail(email)).thenReturn(List.of(row));
+        when(asyncCassandra.select(any(Query.class), eq(CartItemDelta.class)))
+                .thenReturn(CompletableFuture.completedFuture(List.of(stale, fresh, onlyDelta, removed)));
+        when(catalog.find(anyString())).thenReturn(Optional.empty());
+        when(itemRepo.findBySkuIn(List.of("SKU-001", "SKU-002"))).thenReturn(List.of());
 
         // Act
-        cartService.upsert(email, request);
+        List<CartItemView> result = cartService.list(email);
 
         // Assert
-        verify(cqlOps).execute(anyString(), any(), any(), any(), any(), any(), anyInt());
+        assertEquals(List.of("SKU-001", "SKU-002"), result.stream().map(CartItemView::getSku).toList());
+        assertEquals(3, result.get(0).getQuantity());
+        assertEquals(BigDecimal.ONE, result.get(0).getPrice());
+        assertEquals(3, result.get(1).getQuantity());
+    }
+
+    private static CartItemDelta delta(String email, String sku, long ts, int delta, BigDecimal price) {
+        UUID opId = Uuids.startOf(ts);
+        return new CartItemDelta(new CartItemDeltaKey(email, sku, opId), delta, price);
     }
 
     @Test
@@ -153,24 +198,47 @@ class CartServiceTest {
         // Arrange
         String email = "user@example.com";
         String sku = "SKU-001";
-
-        CartItemKey key = new CartItemKey(email, sku);
-        CartItem existing = new CartItem(key, 1, BigDecimal.valueOf(50.00), 1000L);
+        when(catalog.find(sku)).thenReturn(Optional.of(ItemDocument.builder()
+                .sku(sku).unitPrice(BigDecimal.valueOf(149.99)).build()));
 
         CartChangeQtyRequest request = new CartChangeQtyRequest();
         request.setSku(sku);
         request.setQuantity(10);
 
-        when(cartItemRepo.findById(key)).thenReturn(Optional.of(existing));
+        // Act
+        cartService.changeQty(email, request);
+
+        // Assert：盲写基础行，单价取目录价（不读旧行）
+        verify(statements).cartSet(eq(email), eq(sku), eq(10), eq(BigDecimal.valueOf(149.99)), anyLong(), anyInt());
+        verify(cartItemRepo, never()).findById(any());
+    }
 
-        CqlOperations cqlOps = mock(CqlOperations.class);
-        when(cassandraTemplate.getCqlOperations()).thenReturn(cqlOps);
+    @Test
+    void list_afterDeltaThenChangeQty_shouldKeepPrice() {
+        // Arrange：先 "+1"（价格在 delta 上），再改数量（基础行更新、更早的 delta 不再计数）
+        String email = "user@example.com";
+        long base = 1_700_000_000_000L;
+        CartItemDelta added = delta(email, "SKU-001", base - 1000, 1, BigDecimal.TEN);
+        CartItem changed = new CartItem(new CartItemKey(email, "SKU-001"), 4, null, base);   // 老版本写入的无单价基础行
+        CartItemDelta addedOther = delta(email, "SKU-002", base - 1000, 1, null);
+        CartItem changedOther = new CartItem(new CartItemKey(email, "SKU-002"), 2, null, base);
+
+        when(cartItemRepo.findByUserEmail(email)).thenReturn(List.of(changed, changedOther));
+        when(asyncCassandra.select(any(Query.class), eq(CartItemDelta.class)))
+                .thenReturn(CompletableFuture.completedFuture(List.of(added, addedOther)));
+        when(catalog.find("SKU-001")).thenReturn(Optional.empty());
+        when(catalog.find("SKU-002")).thenReturn(Optional.of(ItemDocument.builder()
+                .sku("SKU-002").name("Runner").unitPrice(BigDecimal.valueOf(80)).build()));
+        when(itemRepo.findBySkuIn(List.of("SKU-001"))).thenReturn(List.of());
 
         // Act
-        cartService.changeQty(email, request);
+        List<CartItemView> result = cartService.list(email);
 
-        // Assert
-        verify(cqlOps).execute(anyString(), any(), any(), any(), any(), any(), anyInt());
+        // Assert：数量取基础行；单价先用被覆盖 delta 上的，都没有时按目录价
+        assertEquals(4, result.get(0).getQuantity());
+        assertEquals(BigDecimal.TEN, result.get(0).getPrice());
+        assertEquals(2, result.get(1).getQuantity());
+        assertEquals(BigDecimal.valueOf(80), result.get(1).getPrice());
     }
 
     @Test
@@ -183,14 +251,11 @@ class CartServiceTest {
         request.setSku(sku);
         request.setQuantity(0);
 
-        CartItemKey key = new CartItemKey(email, sku);
-
         // Act
         cartService.changeQty(email, request);
 
-        // Assert
-        verify(cartItemRepo).deleteById(key);
-        verify(cassandraTemplate, never()).getCqlOperations();
+        // Assert：删除基础行和增量
+        verify(statements).cartRemove(email, sku);
     }
 
     @Test
@@ -203,27 +268,21 @@ class CartServiceTest {
         cartService.remove(email, sku);
 
         // Assert
-        verify(cartItemRepo).deleteById(any(CartItemKey.class));
+        verify(statements).cartRemove(email, sku);
     }
 
     @Test
-    void clear_shouldDeleteAllUserItems() {
+    void clear_shouldDeleteWholePartitionWithoutListing() {
         // Arrange
         String email = "user@example.com";
 
-        CartItemKey key1 = new CartItemKey(email, "SKU-001");
-        CartItemKey key2 = new CartItemKey(email, "SKU-002");
-
-        CartItem item1 = new CartItem(key1, 2, BigDecimal.valueOf(50.00), 1000L);
-        CartItem item2 = new CartItem(key2, 1, BigDecimal.valueOf(100.00), 2000L);
-
-        when(cartItemRepo.findByUserEmail(email)).thenReturn(Arrays.asList(item1, item2));
-
         // Act
         cartService.clear(email);
 
-        // Assert
-        verify(cartItemRepo, times(2)).deleteById(any(CartItemKey.class));
+        // Assert：整分区删除，不再逐个 sku 删除
+        verify(statements).cartClear(email);
+        verify(cartItemRepo, never()).findByUserEmail(any());
+        verify(cartItemRepo, never()).deleteById(any(CartItemKey.class));
     }
 
     @Test
@@ -240,17 +299,14 @@ class CartServiceTest {
                 .unitPrice(BigDecimal.valueOf(149.99))
                 .build();
 
+        when(catalog.find("SKU-001")).thenReturn(Optional.empty());
         when(itemRepo.findBySku("SKU-001")).thenReturn(Optional.of(doc));
-        when(cartItemRepo.findById(any())).thenReturn(Optional.empty());
-
-        CqlOperations cqlOps = mock(CqlOperations.class);
-        when(cassandraTemplate.getCqlOperations()).thenReturn(cqlOps);
 
         // Act
         cartService.upsert(email, request);
 
         // Assert
         verify(itemRepo).findBySku("SKU-001");
-        verify(cqlOps).execute(anyString(), any(), any(), any(), any(), any(), anyInt());
+        verify(statements).cartSet(eq(email), eq("SKU-001"), eq(2), eq(BigDecimal.valueOf(149.99)), anyLong(), anyInt());
     }
 }
@@ -0,0 +1,79 @@
+package org.example.carpet.cassandra;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.cql.AsyncResultSet;
+import com.datastax.oss.driver.api.core.cql.SimpleStatement;
+import com.datastax.oss.driver.api.core.cql.Statement;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the async Cassandra write pipeline:
+ *  - at most max-in-flight writes are outstanding, the rest wait in the bounded queue
+ *  - a full queue rejects instead of blocking the caller
+ *  - completions release permits and dispatch queued writes; failures are counted
+ */
+class CassandraWritePipelineTest {
+
+    @Test
+    void submit_shouldBoundInFlightQueueOverflowAndCountOutcomes() {
+        CqlSession session = mock(CqlSession.class);
+        List<CompletableFuture<AsyncResultSet>> driver = new ArrayList<>();
+        when(session.executeAsync(any(Statement.class))).thenAnswer(inv -> {
+            CompletableFuture<AsyncResultSet> f = new CompletableFuture<>();
+            driver.add(f);
+            return f;
+        });
+        CassandraWritePipeline pipeline = new CassandraWritePipeline(session, 1, 1);
+
+        CompletableFuture<Void> first = pipeline.submit("a", SimpleStatement.newInstance("INSERT 1"));
+        CompletableFuture<Void> second = pipeline.submit("b", SimpleStatement.newInstance("INSERT 2"));
+        CompletableFuture<Void> third = pipeline.submit("c", SimpleStatement.newInstance("INSERT 3"));
+
+        // 一条在途、一条排队、一条被拒绝，调用方都没有被阻塞
+        assertEquals(1, driver.size());
+        assertEquals(1, pipeline.stats().inFlight());
+        assertEquals(1, pipeline.stats().queued());
+        assertTrue(third.isCompletedExceptionally());
+        assertInstanceOf(RejectedExecutionException.class,
+                assertThrows(Exception.class, third::join).getCause());
+        assertEquals(1, pipeline.stats().rejected());
+
+        // 第一条完成 -> 排队的第二条被补发
+        driver.get(0).complete(mock(AsyncResultSet.class));
+        assertTrue(first.isDone() && !first.isCompletedExceptionally());
+        assertEquals(2, driver.size());
+        assertEquals(0, pipeline.stats().queued());
+
+        driver.get(1).completeExceptionally(new RuntimeException("timeout"));
+        assertTrue(second.isCompletedExceptionally());
+
+        CassandraWritePipeline.Stats stats = pipeline.stats();
+        assertEquals(0, stats.inFlight());
+        assertEquals(3, stats.submitted());
+        assertEquals(1, stats.completed());
+        assertEquals(1, stats.failed());
+    }
+
+    @Test
+    void submit_whenDriverThrowsSynchronously_shouldFailFutureAndReleasePermit() {
+        CqlSession session = mock(CqlSession.class);
+        when(session.executeAsync(any(Statement.class))).thenThrow(new IllegalStateException("session closed"));
+        CassandraWritePipeline pipeline = new CassandraWritePipeline(session, 1, 10);
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(pipeline.submit("x", SimpleStatement.newInstance("INSERT")).isCompletedExceptionally());
+        }
+        assertEquals(0, pipeline.stats().inFlight());
+        assertEquals(5, pipeline.stats().failed());
+        assertEquals(0, pipeline.stats().rejected());
+    }
+}
@@ -0,0 +1,115 @@
+package org.example.carpet.catalog;
+
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the copy-on-write catalog snapshot:
+ *  - first read loads the full catalog once
+ *  - apply swaps in a new version and notifies listeners with the changed skus
+ *  - stale (lower @Version) documents never overwrite newer ones
+ *  - a periodic full reload that finds nothing new neither bumps the version nor notifies
+ *  - many single-sku changes (overlay folded into the base) keep every item readable, in order
+ */
+@ExtendWith(MockitoExtension.class)
+class CatalogCacheTest {
+
+    @Mock
+    ItemDocumentRepository itemRepository;
+
+    private static ItemDocument item(String sku, long version, int stock) {
+        return ItemDocument.builder().sku(sku).version(version).stockQuantity(stock).build();
+    }
+
+    @Test
+    void current_shouldLoadOnceAndServeFromSnapshot() {
+        when(itemRepository.findAll()).thenReturn(List.of(item("rug1", 1, 5), item("rug2", 1, 3)));
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of());
+
+        assertEquals(5, cache.find("rug1").orElseThrow().getStockQuantity());
+        assertTrue(cache.find("nope").isEmpty());
+        assertEquals(2, cache.current().size());
+        verify(itemRepository, times(1)).findAll();
+    }
+
+    @Test
+    void apply_shouldSwapVersionAndNotifyChangedSkus() {
+        when(itemRepository.findAll()).thenReturn(List.of(item("rug1", 1, 5)));
+        List<Set<String>> seen = new ArrayList<>();
+        CatalogCache cache = new CatalogCache(itemRepository, null,
+                List.of((snap, changed, full) -> { if (!full) seen.add(changed); }));
+
+        long v0 = cache.current().version();
+        CatalogSnapshot before = cache.current();
+        cache.apply(item("rug1", 2, 4));
+
+        assertEquals(v0 + 1, cache.current().version());
+        assertEquals(4, cache.find("rug1").orElseThrow().getStockQuantity());
+        assertEquals(5, before.get("rug1").getStockQuantity());   // 旧快照不受影响
+        assertEquals(List.of(Set.of("rug1")), seen);
+    }
+
+    @Test
+    void apply_shouldIgnoreOlderVersion() {
+        when(itemRepository.findAll()).thenReturn(List.of(item("rug1", 3, 5)));
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of());
+        long v0 = cache.current().version();
+
+        cache.apply(item("rug1", 2, 99));
+
+        assertEquals(v0, cache.current().version());
+        assertEquals(5, cache.find("rug1").orElseThrow().getStockQuantity());
+    }
+
+    @Test
+    void reloadAll_unchanged_shouldNotNotify() {
+        when(itemRepository.findAll()).thenReturn(List.of(item("rug1", 1, 5)));
+        List<Boolean> seen = new ArrayList<>();
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of((snap, changed, full) -> seen.add(full)));
+        cache.ensureLoaded();
+        long v0 = cache.current().version();
+
+        cache.reloadAll();
+        assertEquals(v0, cache.current().version());
+        assertEquals(List.of(true), seen);
+
+        when(itemRepository.findAll()).thenReturn(List.of(item("rug1", 1, 4)));   // 旁路扣了库存
+        cache.reloadAll();
+        assertEquals(v0 + 1, cache.current().version());
+        assertEquals(4, cache.find("rug1").orElseThrow().getStockQuantity());
+        assertEquals(List.of(true, true), seen);
+    }
+
+    @Test
+    void apply_manySingleChanges_shouldKeepEveryItemInOrder() {
+        List<ItemDocument> initial = new ArrayList<>();
+        for (int i = 0; i < 100; i++) initial.add(item("rug" + i, 1, i));
+        when(itemRepository.findAll()).thenReturn(initial);
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of());
+        cache.ensureLoaded();
+
+        for (int i = 0; i < 100; i += 2) cache.apply(item("rug" + i, 2, 1000 + i));
+        cache.apply(List.of(item("new", 1, 7)), List.of("rug1", "rug3"));
+
+        CatalogSnapshot snap = cache.current();
+        assertEquals(99, snap.size());
+        assertEquals(1000, snap.get("rug0").getStockQuantity());
+        assertEquals(5, snap.get("rug5").getStockQuantity());
+        assertNull(snap.get("rug1"));
+        List<String> order = snap.items().stream().map(ItemDocument::getSku).toList();
+        assertEquals(99, order.size());
+        assertEquals(List.of("rug0", "rug2", "rug4"), order.subList(0, 3));
+        assertEquals("new", order.get(order.size() - 1));
+    }
+}
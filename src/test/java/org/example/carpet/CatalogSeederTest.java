@@ -0,0 +1,80 @@
+package org.example.carpet.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.example.carpet.dto.BulkUpsertResponse;
+import org.example.carpet.model.ItemDocument;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.DefaultResourceLoader;
+import org.springframework.core.io.FileSystemResource;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the streaming seed loader:
+ *  - inventory quantity / warehouse merged into items
+ *  - one malformed item does not stop the stream
+ *  - the files shipped in the repository load completely
+ */
+@ExtendWith(MockitoExtension.class)
+class CatalogSeederTest {
+
+    @Mock
+    ItemService itemService;
+
+    private final List<ItemDocument> written = new ArrayList<>();
+
+    private CatalogSeeder seeder() {
+        when(itemService.bulkUpsert(any())).thenAnswer(inv -> {
+            Iterator<ItemDocument> it = inv.getArgument(0);
+            while (it.hasNext()) written.add(it.next());
+            return new BulkUpsertResponse();
+        });
+        return new CatalogSeeder(itemService, new ObjectMapper(), new DefaultResourceLoader());
+    }
+
+    private static ByteArrayResource json(String s) {
+        return new ByteArrayResource(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void seed_shouldMergeInventoryIntoItems() throws IOException {
+        seeder().seed(
+                json("[{\"sku\":\"rug1\",\"name\":\"A\",\"stockAvailable\":true},"
+                        + "{\"sku\":\"rug2\",\"unitPrice\":\"not a number\"},"
+                        + "{\"sku\":\"rug3\",\"name\":\"C\"}]"),
+                json("[{\"sku\":\"rug1\",\"availableQuantity\":0,\"warehouse\":\"CN_SHANGHAI\",\"fulfillmentType\":\"STOCK\"},"
+                        + "{\"sku\":\"rug3\",\"availableQuantity\":5,\"extra\":{\"nested\":[1,2]}}]"));
+
+        assertEquals(3, written.size());
+        assertEquals(0, written.get(0).getStockQuantity());
+        assertFalse(written.get(0).getStockAvailable());
+        assertEquals("CN_SHANGHAI", written.get(0).getWarehouse());
+        assertNull(written.get(1));                       // 格式错误的一条交给 bulkUpsert 记为失败
+        assertEquals(5, written.get(2).getStockQuantity());
+        assertTrue(written.get(2).getStockAvailable());
+    }
+
+    @Test
+    void seed_shouldLoadShippedFiles() throws IOException {
+        seeder().seed(new FileSystemResource("items.json"), new FileSystemResource("inventory.json"));
+
+        assertEquals(6, written.size());
+        for (ItemDocument d : written) {
+            assertNotNull(d.getSku());
+            assertEquals(999, d.getStockQuantity());
+            assertEquals("CN_SHANGHAI", d.getWarehouse());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package org.example.carpet.repository;
+
+import org.bson.Document;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.model.EscrowHold;
+import org.example.carpet.model.EscrowJournal;
+import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the hot-SKU stock escrow:
+ *  - stock is leased from Mongo in blocks, reserve/release only touch the in-memory stripes
+ *  - concurrent reservations never sell more than Mongo had
+ *  - reconcile / stop hand idle balances back to Mongo
+ *  - multi-line holds live in Mongo, so another instance (or a restart) can release them
+ *  - journal durability keeps a persisted floor that the next start of the same instance returns
+ */
+class InventoryRepositoryTest {
+
+    /** 模拟 Mongo 上单个 sku 的原子扣减 / 回补 */
+    private static ItemDocumentRepository mongoWithStock(AtomicInteger stock) {
+        ItemDocumentRepository repo = mock(ItemDocumentRepository.class);
+        when(repo.tryDeduct(eq("HOT"), anyInt())).thenAnswer(inv -> {
+            int qty = inv.getArgument(1);
+            synchronized (stock) {
+                if (stock.get() < qty) return StockMutation.rejected("HOT", stock.get());
+                return StockMutation.applied("HOT", stock.addAndGet(-qty));
+            }
+        });
+        lenient().when(repo.tryRestock(eq("HOT"), anyInt())).thenAnswer(inv ->
+                StockMutation.applied("HOT", stock.addAndGet(inv.<Integer>getArgument(1))));
+        return repo;
+    }
+
+    /** 用内存 map 模拟 inventory_escrow_holds / inventory_escrow_journal（按 _id） */
+    private static MongoTemplate fakeMongo(Map<String, EscrowHold> holds, Map<String, EscrowJournal> journal) {
+        MongoTemplate mongo = mock(MongoTemplate.class);
+        lenient().when(mongo.insert(any(EscrowHold.class))).thenAnswer(inv -> {
+            EscrowHold h = inv.getArgument(0);
+            holds.put(h.getToken(), h);
+            return h;
+        });
+        lenient().when(mongo.findAndRemove(any(Query.class), eq(EscrowHold.class)))
+                .thenAnswer(inv -> holds.remove(id(inv.getArgument(0))));
+        lenient().when(mongo.remove(any(Query.class), eq(EscrowHold.class)))
+                .thenAnswer(inv -> { holds.remove(id(inv.getArgument(0))); return null; });
+        lenient().when(mongo.upsert(any(Query.class), any(UpdateDefinition.class), eq(EscrowJournal.class))).thenAnswer(inv -> {
+            Document set = (Document) inv.<Update>getArgument(1).getUpdateObject().get("$set");
+            String id = id(inv.getArgument(0));
+            journal.put(id, EscrowJournal.builder().id(id).instanceId(set.getString("instanceId"))
+                    .runId(set.getString("runId")).sku(set.getString("sku")).floor(set.getLong("floor")).build());
+            return null;
+        });
+        lenient().when(mongo.remove(any(Query.class), eq(EscrowJournal.class)))
+                .thenAnswer(inv -> { journal.remove(id(inv.getArgument(0))); return null; });
+        lenient().when(mongo.find(any(Query.class), eq(EscrowJournal.class)))
+                .thenAnswer(inv -> new ArrayList<>(journal.values()));
+        lenient().when(mongo.findAndRemove(any(Query.class), eq(EscrowJournal.class)))
+                .thenAnswer(inv -> journal.remove(id(inv.getArgument(0))));
+        return mongo;
+    }
+
+    private static String id(Query q) {
+        return q.getQueryObject().getString("_id");
+    }
+
+    private static InventoryRepository escrow(ItemDocumentRepository repo, int leaseSize, Duration idleReturn) {
+        return new InventoryRepository(repo, fakeMongo(new ConcurrentHashMap<>(), new ConcurrentHashMap<>()),
+                true, List.of("HOT"), 4, leaseSize, 200, idleReturn, Duration.ofSeconds(5), "lease", 10, "node-1");
+    }
+
+    @Test
+    void reserve_shouldLeaseBlockOnceAndServeFromMemory() {
+        AtomicInteger stock = new AtomicInteger(100);
+        ItemDocumentRepository repo = mongoWithStock(stock);
+        InventoryRepository escrow = escrow(repo, 50, Duration.ofMinutes(1));
+
+        assertTrue(escrow.handles("HOT"));
+        assertFalse(escrow.handles("COLD"));
+        for (int i = 0; i < 10; i++) assertTrue(escrow.reserve("HOT", 2).isApplied());
+
+        verify(repo, times(1)).tryDeduct("HOT", 50);   // 一次租约覆盖 10 次预留
+        assertEquals(50, stock.get());
+        assertEquals(30, escrow.getAvailableQuantity("HOT"));
+
+        escrow.release("HOT", 5);
+        assertEquals(35, escrow.getAvailableQuantity("HOT"));
+    }
+
+    @Test
+    void reserve_whenMongoShort_shouldLeaseRemainderOrReportTotalAvailable() {
+        AtomicInteger stock = new AtomicInteger(8);
+        InventoryRepository escrow = escrow(mongoWithStock(stock), 50, Duration.ofMinutes(1));
+
+        assertTrue(escrow.reserve("HOT", 5).isApplied());   // 不够一整块，把剩下的 8 件全租过来
+        assertEquals(0, stock.get());
+
+        StockMutation rejected = escrow.reserve("HOT", 4);
+        assertFalse(rejected.isApplied());
+        assertEquals(3, rejected.getQuantity());            // 托管余额 3 + Mongo 剩余 0
+    }
+
+    @Test
+    void reserve_concurrently_shouldNeverOversell() throws Exception {
+        AtomicInteger stock = new AtomicInteger(1000);
+        InventoryRepository escrow = escrow(mongoWithStock(stock), 50, Duration.ofMinutes(1));
+        AtomicInteger sold = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 1500; i++) {
+            pool.submit(() -> {
+                if (escrow.reserve("HOT", 1).isApplied()) sold.incrementAndGet();
+            });
+        }
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(1000, sold.get());
+        assertEquals(0, stock.get() + escrow.getAvailableQuantity("HOT"));
+    }
+
+    @Test
+    void reserveAll_shouldBeAllOrNothingAndReleaseByToken() {
+        AtomicInteger stock = new AtomicInteger(10);
+        InventoryRepository escrow = escrow(mongoWithStock(stock), 10, Duration.ofMinutes(1));
+
+        Optional<StockMutation> failed = escrow.reserveAll("t1", new TreeMap<>(Map.of("HOT", 11)));
+        assertTrue(failed.isPresent());
+        assertEquals(10, failed.get().getQuantity());
+
+        assertTrue(escrow.reserveAll("t2", new TreeMap<>(Map.of("HOT", 4))).isEmpty());
+        assertEquals(6, escrow.getAvailableQuantity("HOT"));
+        assertEquals(1, escrow.releaseAll("t2"));
+        assertEquals(0, escrow.releaseAll("t2"));          // 幂等
+        assertEquals(10, escrow.getAvailableQuantity("HOT"));
+    }
+
+    @Test
+    void reconcileAndStop_shouldReturnIdleBalanceToMongo() {
+        AtomicInteger stock = new AtomicInteger(100);
+        ItemDocumentRepository repo = mongoWithStock(stock);
+        InventoryRepository escrow = escrow(repo, 50, Duration.ZERO);
+
+        assertTrue(escrow.reserve("HOT", 10).isApplied());
+        assertEquals(50, stock.get());
+
+        escrow.reconcile();   // idle-return = 0：余额立即还回
+        assertEquals(0, escrow.getAvailableQuantity("HOT"));
+        assertEquals(90, stock.get());
+
+        assertTrue(escrow.reserve("HOT", 1).isApplied());
+        escrow.stop();
+        assertEquals(89, stock.get());          // 90 - 1 件已售，其余托管余额全部还回
+    }
+
+    @Test
+    void releaseAll_shouldWorkFromAnotherInstance() {
+        AtomicInteger stock = new AtomicInteger(10);
+        ItemDocumentRepository repo = mongoWithStock(stock);
+        Map<String, EscrowHold> holds = new ConcurrentHashMap<>();
+        MongoTemplate mongo = fakeMongo(holds, new ConcurrentHashMap<>());
+        InventoryRepository a = new InventoryRepository(repo, mongo, true, List.of("HOT"), 4, 10, 200,
+                Duration.ofMinutes(1), Duration.ofSeconds(5), "lease", 10, "node-a");
+        InventoryRepository b = new InventoryRepository(repo, mongo, false, List.of("HOT"), 4, 10, 200,
+                Duration.ofMinutes(1), Duration.ofSeconds(5), "lease", 10, "node-b");
+
+        assertTrue(a.reserveAll("t1", new TreeMap<>(Map.of("HOT", 4))).isEmpty());
+        assertTrue(holds.containsKey("t1"));
+
+        // a 重启 / 换成 b 处理取消：预留记录在 Mongo 里，b 没开托管就直接还给 items
+        assertEquals(1, b.releaseAll("t1"));
+        assertEquals(0, a.releaseAll("t1"));
+        assertEquals(4, stock.get());
+        assertTrue(holds.isEmpty());
+
+        assertTrue(a.reserveAll("t2", new TreeMap<>(Map.of("HOT", 1))).isEmpty());
+        a.commitAll("t2");
+        assertTrue(holds.isEmpty());
+    }
+
+    @Test
+    void journal_shouldPersistFloorAndRecoverItAfterCrash() {
+        AtomicInteger stock = new AtomicInteger(100);
+        ItemDocumentRepository repo = mongoWithStock(stock);
+        Map<String, EscrowJournal> journal = new ConcurrentHashMap<>();
+        MongoTemplate mongo = fakeMongo(new ConcurrentHashMap<>(), journal);
+        InventoryRepository crashed = new InventoryRepository(repo, mongo, true, List.of("HOT"), 4, 50, 200,
+                Duration.ofMinutes(1), Duration.ofSeconds(5), "journal", 10, "node-1");
+
+        assertTrue(crashed.reserve("HOT", 2).isApplied());     // 租 50：40 进持久下限，10 可无锁扣
+        assertEquals(50, stock.get());
+        assertEquals(40, journal.get("node-1#HOT").getFloor());
+        for (int i = 0; i < 9; i++) assertTrue(crashed.reserve("HOT", 2).isApplied());
+        assertEquals(30, crashed.getAvailableQuantity("HOT"));
+        assertTrue(journal.get("node-1#HOT").getFloor() <= 30);   // 下限始终不超过实际余额
+
+        // 进程崩溃（没有 stop）：同一 instance-id 重启后把下限还回 items，不会超卖
+        long floor = journal.get("node-1#HOT").getFloor();
+        InventoryRepository restarted = new InventoryRepository(repo, mongo, true, List.of("HOT"), 4, 50, 200,
+                Duration.ofMinutes(1), Duration.ofSeconds(5), "journal", 10, "node-1");
+        assertEquals(1, restarted.recover());
+        assertEquals(50 + floor, stock.get());
+        assertTrue(stock.get() <= 100 - 20);
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    void journal_stop_shouldReturnBalancePlusFloor() {
+        AtomicInteger stock = new AtomicInteger(100);
+        ItemDocumentRepository repo = mongoWithStock(stock);
+        Map<String, EscrowJournal> journal = new ConcurrentHashMap<>();
+        InventoryRepository escrow = new InventoryRepository(repo, fakeMongo(new ConcurrentHashMap<>(), journal),
+                true, List.of("HOT"), 4, 50, 200, Duration.ofMinutes(1), Duration.ofSeconds(5), "journal", 10, "node-1");
+
+        assertTrue(escrow.reserve("HOT", 2).isApplied());     // 租 50：40 持久下限 + 8 分段余额
+        assertEquals(40, journal.get("node-1#HOT").getFloor());
+
+        escrow.stop();
+        verify(repo).tryRestock("HOT", 48);                    // 分段余额 + 下限一起还回
+        assertEquals(98, stock.get());
+        assertTrue(journal.isEmpty());
+    }
+}
@@ -1,14 +1,24 @@
 package org.example.carpet.service;
 
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.exception.InsufficientStockException;
 import org.example.carpet.model.ItemDocument;
+import org.example.carpet.model.OrderLineItem;
+import org.example.carpet.repository.InventoryRepository;
 import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.example.carpet.repository.mongo.ShardedStockRepository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.*;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.data.cassandra.core.CassandraTemplate;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
@@ -32,7 +42,16 @@ class InventoryServiceTest {
     ItemDocumentRepository itemRepository;
 
     @Mock
-    CassandraTemplate cassandraTemplate;
+    CassandraStatements cassandraStatements;
+
+    @Mock
+    CatalogCache catalog;
+
+    @Mock
+    InventoryRepository escrow;
+
+    @Mock
+    ShardedStockRepository shards;
 
     @InjectMocks
     InventoryService inventoryService;
@@ -59,7 +78,7 @@ class InventoryServiceTest {
     @Test
     void reserve_shouldReturnTrueWhenStockEnough() {
         when(itemRepository.tryDeduct("RUG-RED", 2))
-                .thenReturn(1); // 成功返回 1
+                .thenReturn(StockMutation.applied("RUG-RED", 16)); // 成功返回扣减后的库存
 
         boolean ok = inventoryService.reserve("RUG-RED", 2);
         assertTrue(ok);
@@ -68,19 +87,114 @@ class InventoryServiceTest {
     @Test
     void reserve_shouldReturnFalseWhenStockLow() {
         when(itemRepository.tryDeduct("RUG-RED", 99))
-                .thenReturn(0); // 失败返回 0
+                .thenReturn(StockMutation.rejected("RUG-RED", 18)); // 失败返回当前库存
 
         boolean ok = inventoryService.reserve("RUG-RED", 99);
         assertFalse(ok);
     }
 
+    @Test
+    void tryReserve_shouldReportActualAvailableWhenStockLow() {
+        when(itemRepository.tryDeduct("RUG-RED", 99))
+                .thenReturn(StockMutation.rejected("RUG-RED", 18));
+
+        StockMutation result = inventoryService.tryReserve("RUG-RED", 99);
+        assertFalse(result.isApplied());
+        assertEquals(18, result.getQuantity());
+        verify(catalog, never()).refresh(anyString());
+    }
+
     @Test
     void release_shouldCallRepositoryAndReturnTrue() {
         when(itemRepository.tryRestock("RUG-RED", 2))
-                .thenReturn(1); // 成功返回 1
+                .thenReturn(StockMutation.applied("RUG-RED", 20)); // 成功返回回补后的库存
 
         boolean ok = inventoryService.release("RUG-RED", 2);
         assertTrue(ok);
         verify(itemRepository).tryRestock("RUG-RED", 2);
     }
+
+    @Test
+    void reserveAll_shouldMergeLinesSortBySkuAndReturnToken() {
+        when(itemRepository.reserveAll(anyString(), any())).thenReturn(Optional.empty());
+
+        String token = inventoryService.reserveAll(List.of(
+                line("RUG-RED", 2), line("RUG-BLUE", 1), line("RUG-RED", 3)));
+
+        assertNotNull(token);
+        verify(itemRepository).reserveAll(token, new TreeMap<>(Map.of("RUG-BLUE", 1, "RUG-RED", 5)));
+        verify(catalog).refresh("RUG-BLUE");
+        verify(catalog).refresh("RUG-RED");
+    }
+
+    @Test
+    void reserveAll_whenOneSkuShort_shouldThrowWithAvailable() {
+        when(itemRepository.reserveAll(anyString(), any()))
+                .thenReturn(Optional.of(StockMutation.rejected("RUG-RED", 1)));
+
+        InsufficientStockException ex = assertThrows(InsufficientStockException.class,
+                () -> inventoryService.reserveAll(List.of(line("RUG-BLUE", 1), line("RUG-RED", 4))));
+
+        assertEquals("RUG-RED", ex.getSku());
+        assertEquals(4, ex.getRequested());
+        assertEquals(1, ex.getAvailable());
+        verify(catalog, never()).refresh(anyString());
+    }
+
+    @Test
+    void reserveAll_hotSkuFromEscrow_coldSkuFromMongo_mongoFailureReturnsEscrowPart() {
+        when(escrow.handles("RUG-HOT")).thenReturn(true);
+        when(escrow.reserveAll(anyString(), any())).thenReturn(Optional.empty());
+        when(itemRepository.reserveAll(anyString(), any()))
+                .thenReturn(Optional.of(StockMutation.rejected("RUG-RED", 0)));
+
+        assertThrows(InsufficientStockException.class,
+                () -> inventoryService.reserveAll(List.of(line("RUG-HOT", 2), line("RUG-RED", 1))));
+
+        ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+        verify(escrow).reserveAll(token.capture(), eq(new TreeMap<>(Map.of("RUG-HOT", 2))));
+        verify(itemRepository).reserveAll(token.getValue(), new TreeMap<>(Map.of("RUG-RED", 1)));
+        verify(escrow).releaseAll(token.getValue());   // 托管部分退回，整单全有或全无
+    }
+
+    @Test
+    void tryReserve_hotSku_shouldNotTouchMongo() {
+        when(escrow.handles("RUG-HOT")).thenReturn(true);
+        when(escrow.reserve("RUG-HOT", 1)).thenReturn(StockMutation.applied("RUG-HOT", 49));
+
+        assertTrue(inventoryService.reserve("RUG-HOT", 1));
+        verify(itemRepository, never()).tryDeduct(anyString(), anyInt());
+    }
+
+    @Test
+    void shardedSku_shouldReserveAndReportFromShards() {
+        when(shards.handles("RUG-SHARD")).thenReturn(true);
+        when(shards.tryDeduct("RUG-SHARD", 2)).thenReturn(StockMutation.applied("RUG-SHARD", 38));
+        when(shards.available("RUG-SHARD")).thenReturn(38);
+
+        assertTrue(inventoryService.reserve("RUG-SHARD", 2));
+        assertEquals(38, inventoryService.checkInventory("RUG-SHARD").getAvailableQuantity());
+        verify(itemRepository, never()).tryDeduct(anyString(), anyInt());
+        verify(itemRepository, never()).findBySku(anyString());
+    }
+
+    @Test
+    void reserveAll_whenItemsPartFails_shouldReleaseShardedPartByToken() {
+        when(shards.handles(anyString())).thenAnswer(inv -> "RUG-SHARD".equals(inv.getArgument(0)));
+        when(shards.reserveAll(anyString(), any())).thenReturn(Optional.empty());
+        when(itemRepository.reserveAll(anyString(), any()))
+                .thenReturn(Optional.of(StockMutation.rejected("RUG-RED", 0)));
+
+        assertThrows(InsufficientStockException.class,
+                () -> inventoryService.reserveAll(List.of(line("RUG-SHARD", 1), line("RUG-RED", 1))));
+
+        ArgumentCaptor<String> token = ArgumentCaptor.forClass(String.class);
+        verify(shards).reserveAll(token.capture(), eq(new TreeMap<>(Map.of("RUG-SHARD", 1))));
+        verify(itemRepository).reserveAll(token.getValue(), new TreeMap<>(Map.of("RUG-RED", 1)));
+        verify(shards).releaseAll(token.getValue(), Set.of("RUG-SHARD"));
+    }
+
+    private static OrderLineItem line(String sku, int qty) {
+        return OrderLineItem.builder().sku(sku).quantity(qty).build();
+    }
 }
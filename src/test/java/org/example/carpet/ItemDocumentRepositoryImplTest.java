@@ -0,0 +1,217 @@
+package org.example.carpet.repository.mongo;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import org.bson.BsonObjectId;
+import org.bson.Document;
+import org.example.carpet.dto.BulkItemResult;
+import org.example.carpet.exception.StockNotWrittenException;
+import org.example.carpet.model.ItemDocument;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationUpdate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for the stock update pipeline:
+ *  - the rendered $set stages are applied in order to a pre-image document (the way mongod runs them)
+ *  - stockQuantity is computed once from the pre-image; stockAvailable follows the stored quantity
+ *  - the admin upsert never touches reservationTokens and only overwrites stock fields when no holds exist
+ */
+class ItemDocumentRepositoryImplTest {
+
+    @Test
+    void deduct_shouldStoreRemainingQuantityAndAvailability() {
+        // 剩余量 <= 扣减量也要仍然有货（旧实现第二阶段会再减一次）
+        Map<String, Object> doc = apply(ItemDocumentRepositoryImpl.stockUpdate(ItemDocumentRepositoryImpl.deducted(3)),
+                Map.of("stockQuantity", 5, "stockAvailable", true));
+        assertEquals(2, doc.get("stockQuantity"));
+        assertEquals(true, doc.get("stockAvailable"));
+
+        doc = apply(ItemDocumentRepositoryImpl.stockUpdate(ItemDocumentRepositoryImpl.deducted(3)),
+                Map.of("stockQuantity", 3, "stockAvailable", true));
+        assertEquals(0, doc.get("stockQuantity"));
+        assertEquals(false, doc.get("stockAvailable"));
+    }
+
+    @Test
+    void restock_shouldAddOnceAndMarkAvailable() {
+        Map<String, Object> doc = apply(ItemDocumentRepositoryImpl.stockUpdate(ItemDocumentRepositoryImpl.restocked(4)),
+                Map.of("stockQuantity", 1, "stockAvailable", true));
+        assertEquals(5, doc.get("stockQuantity"));
+        assertEquals(true, doc.get("stockAvailable"));
+
+        doc = apply(ItemDocumentRepositoryImpl.stockUpdate(ItemDocumentRepositoryImpl.restocked(2)),
+                Map.of("stockAvailable", false));   // 缺失的 stockQuantity 按 0
+        assertEquals(2, doc.get("stockQuantity"));
+        assertEquals(true, doc.get("stockAvailable"));
+    }
+
+    @Test
+    void bulkUpsert_shouldKeepReservationTokensAndGuardStockFields() {
+        MongoTemplate mongo = mongoWithConverter();
+        BulkOperations upserts = mock(BulkOperations.class);
+        BulkOperations stock = mock(BulkOperations.class);
+        when(mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class)).thenReturn(upserts, stock);
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getUpserts()).thenReturn(List.of());   // 已存在的文档
+        when(upserts.execute()).thenReturn(result);
+        BulkWriteResult stockResult = mock(BulkWriteResult.class);
+        when(stockResult.getMatchedCount()).thenReturn(1);
+        when(stock.execute()).thenReturn(stockResult);
+
+        ItemDocument admin = ItemDocument.builder().sku("RUG-1").name("Persian").stockQuantity(20).build();
+        List<BulkItemResult> out = new ItemDocumentRepositoryImpl(mongo).bulkUpsertBySku(List.of(admin));
+        assertEquals(BulkItemResult.Status.UPDATED, out.get(0).getStatus());
+
+        ArgumentCaptor<Update> replace = ArgumentCaptor.forClass(Update.class);
+        verify(upserts).upsert(any(Query.class), replace.capture());
+        Document u = replace.getValue().getUpdateObject();
+        for (String op : List.of("$set", "$unset")) {
+            Document fields = (Document) u.get(op);
+            assertFalse(fields.containsKey("reservationTokens"), op);
+            assertFalse(fields.containsKey("stockQuantity"), op);
+            assertFalse(fields.containsKey("stockAvailable"), op);
+        }
+        assertEquals(20, ((Document) u.get("$setOnInsert")).get("stockQuantity"));   // 新建时才直接写
+
+        ArgumentCaptor<Query> guard = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<Update> stockUpdate = ArgumentCaptor.forClass(Update.class);
+        verify(stock).updateOne(guard.capture(), stockUpdate.capture());
+        assertTrue(guard.getValue().getQueryObject().toJson().contains("reservationTokens"));
+        assertEquals(new Document("$ne", true), guard.getValue().getQueryObject().get("stockSharded"));
+        assertEquals(20, ((Document) stockUpdate.getValue().getUpdateObject().get("$set")).get("stockQuantity"));
+        assertTrue(((Document) stockUpdate.getValue().getUpdateObject().get("$unset")).containsKey("stockAvailable"));
+        verify(stock).execute();
+        verify(mongo, never()).find(any(Query.class), eq(ItemDocument.class));   // 全部命中：不用再查
+    }
+
+    @Test
+    void upsertBySku_withOpenReservations_shouldReportStockNotWritten() {
+        MongoTemplate mongo = mongoWithConverter();
+        BulkOperations upserts = mock(BulkOperations.class);
+        BulkOperations stock = mock(BulkOperations.class);
+        when(mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class)).thenReturn(upserts, stock);
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getUpserts()).thenReturn(List.of());
+        when(upserts.execute()).thenReturn(result);
+        when(stock.execute()).thenReturn(mock(BulkWriteResult.class));   // 条件没命中：matched = 0
+        ItemDocument held = ItemDocument.builder().sku("RUG-1").name("Persian").reservationTokens(List.of("t1")).build();
+        when(mongo.find(any(Query.class), eq(ItemDocument.class))).thenReturn(List.of(held));
+        when(mongo.findOne(any(Query.class), eq(ItemDocument.class))).thenReturn(held);
+
+        ItemDocumentRepositoryImpl repo = new ItemDocumentRepositoryImpl(mongo);
+        StockNotWrittenException ex = assertThrows(StockNotWrittenException.class, () -> repo.upsertBySku(
+                ItemDocument.builder().sku("RUG-1").name("Persian").stockQuantity(20).build()));
+
+        assertSame(held, ex.getItem());
+        assertTrue(ex.getMessage().contains("open reservations"));
+    }
+
+    @Test
+    void bulkUpsert_shardedItem_shouldReportStockNotWritten() {
+        // 售卖只看分片，写 items 上的库存没有意义，merge 时还会把分片余量叠上来
+        MongoTemplate mongo = mongoWithConverter();
+        BulkOperations upserts = mock(BulkOperations.class);
+        BulkOperations stock = mock(BulkOperations.class);
+        when(mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class)).thenReturn(upserts, stock);
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getUpserts()).thenReturn(List.of());
+        when(upserts.execute()).thenReturn(result);
+        BulkWriteResult stockResult = mock(BulkWriteResult.class);
+        when(stockResult.getMatchedCount()).thenReturn(1);          // RUG-2 写了，RUG-1 被挡住
+        when(stock.execute()).thenReturn(stockResult);
+        when(mongo.find(any(Query.class), eq(ItemDocument.class)))
+                .thenReturn(List.of(ItemDocument.builder().sku("RUG-1").stockSharded(true).build()));
+
+        List<BulkItemResult> out = new ItemDocumentRepositoryImpl(mongo).bulkUpsertBySku(List.of(
+                ItemDocument.builder().sku("RUG-1").stockQuantity(20).build(),
+                ItemDocument.builder().sku("RUG-2").stockQuantity(5).build()));
+
+        assertEquals(BulkItemResult.Status.PARTIAL, out.get(0).getStatus());
+        assertEquals("stock not written: stock is sharded", out.get(0).getError());
+        assertEquals(BulkItemResult.Status.UPDATED, out.get(1).getStatus());
+    }
+
+    @Test
+    void upsertBySku_shouldWriteDerivedTags() {
+        // 直接 convert 不走 BeforeConvertCallback：tags 要在仓库里算好，否则会被 $unset
+        MongoTemplate mongo = mongoWithConverter();
+        BulkOperations upserts = mock(BulkOperations.class);
+        when(mongo.bulkOps(BulkOperations.BulkMode.UNORDERED, ItemDocument.class)).thenReturn(upserts);
+        BulkWriteResult result = mock(BulkWriteResult.class);
+        when(result.getUpserts()).thenReturn(List.of(new BulkWriteUpsert(0, new BsonObjectId())));
+        when(upserts.execute()).thenReturn(result);
+
+        new ItemDocumentRepositoryImpl(mongo).upsertBySku(
+                ItemDocument.builder().sku("RUG-1").name("Persian Silk").roomType(List.of("living room")).build());
+
+        ArgumentCaptor<Update> replace = ArgumentCaptor.forClass(Update.class);
+        verify(upserts).upsert(any(Query.class), replace.capture());
+        Document u = replace.getValue().getUpdateObject();
+        assertEquals(List.of("living", "room", "persian", "silk"), ((Document) u.get("$set")).get("tags"));
+        assertFalse(((Document) u.get("$unset")).containsKey("tags"));
+    }
+
+    /** MongoTemplate mock，带一个真实的 converter（整文档覆盖要靠它把实体写成 Document） */
+    private static MongoTemplate mongoWithConverter() {
+        MongoTemplate mongo = mock(MongoTemplate.class);
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+        MongoMappingContext context = new MongoMappingContext();
+        context.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, context);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        when(mongo.getConverter()).thenReturn(converter);
+        return mongo;
+    }
+
+    // ---- 极简的 pipeline 求值：只支持这里用到的 $set / $subtract / $add / $ifNull / $gt ----
+
+    private static Map<String, Object> apply(AggregationUpdate update, Map<String, Object> preImage) {
+        Map<String, Object> doc = new HashMap<>(preImage);
+        for (Document stage : update.toPipeline(Aggregation.DEFAULT_CONTEXT)) {
+            Document set = (Document) stage.get("$set");
+            assertNotNull(set, "unexpected stage " + stage.toJson());
+            Map<String, Object> before = doc;
+            Map<String, Object> next = new HashMap<>(before);
+            set.forEach((field, expr) -> next.put(field, eval(expr, before)));   // 同一阶段内都看阶段开始时的文档
+            doc = next;
+        }
+        return doc;
+    }
+
+    private static Object eval(Object expr, Map<String, Object> doc) {
+        if (expr instanceof String s && s.startsWith("$")) return doc.get(s.substring(1));
+        if (!(expr instanceof Document d)) return expr;
+        assertEquals(1, d.size(), "unexpected expression " + d.toJson());
+        String op = d.keySet().iterator().next();
+        List<Object> args = new ArrayList<>();
+        for (Object a : (List<?>) d.get(op)) args.add(eval(a, doc));
+        return switch (op) {
+            case "$subtract" -> ((Number) args.get(0)).intValue() - ((Number) args.get(1)).intValue();
+            case "$add" -> args.stream().mapToInt(a -> ((Number) a).intValue()).sum();
+            case "$ifNull" -> args.get(0) != null ? args.get(0) : args.get(1);
+            case "$gt" -> ((Number) args.get(0)).intValue() > ((Number) args.get(1)).intValue();
+            default -> fail("unsupported operator " + op);
+        };
+    }
+}
@@ -0,0 +1,146 @@
+package org.example.carpet.search;
+
+import org.example.carpet.model.ItemDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the in-memory inverted index behind ItemService.search:
+ *  - token AND across text fields, prefix expansion
+ *  - facet filters (OR within a facet, AND across facets) and facet counts
+ *  - incremental upsert replaces old tokens
+ *  - typo tolerance via the trigram index
+ *  - CJK text: bigram tokens, partial Chinese queries
+ *  - BM25F ranking (name outweighs description) with offset/limit paging
+ */
+class ItemSearchIndexTest {
+
+    private static ItemDocument persian() {
+        return ItemDocument.builder()
+                .sku("rug1")
+                .name("Handmade Silk Persian Rug")
+                .description("wool and silk, persian pattern, light blue")
+                .color("light blue")
+                .roomType(List.of("living room", "home"))
+                .build();
+    }
+
+    private static ItemDocument tiles() {
+        return ItemDocument.builder()
+                .sku("tiles1")
+                .name("Nylon PVC Backing Carpet Tiles")
+                .category("carpet tiles")
+                .color("gray")
+                .roomType(List.of("commercial", "office"))
+                .build();
+    }
+
+    @Test
+    void search_shouldAndTokensAndExpandPrefixes() {
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(persian(), tiles()));
+
+        assertEquals(List.of("rug1"), skus(index.search(q("silk pers", null, null, null))));
+        assertEquals(List.of("tiles1"), skus(index.search(q("CARPET", null, null, null))));
+        assertTrue(index.search(q("silk carpet", null, null, null)).isEmpty());
+        assertEquals(2, index.search(q(null, null, null, null)).size());
+    }
+
+    @Test
+    void search_shouldTolerateTypos() {
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(persian(), tiles()));
+
+        assertEquals(List.of("rug1"), skus(index.search(q("persain rug", null, null, null))));
+        assertEquals(List.of("tiles1"), skus(index.search(q("carpt", null, null, null))));
+        assertEquals(List.of("tiles1"), skus(index.search(q("backign", null, null, null))));
+        // 短词不做容错；距离超出上限不命中
+        assertTrue(index.search(q("rig", null, null, null)).isEmpty());
+        assertTrue(index.search(q("prsn", null, null, null)).isEmpty());
+    }
+
+    @Test
+    void search_shouldMatchPartialChineseQueries() {
+        ItemDocument wool = ItemDocument.builder()
+                .sku("cn1").name("手工羊毛地毯").description("客厅 卧室 适用").keywords(List.of("手工编织")).build();
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(wool, tiles()));
+
+        assertEquals(List.of("羊毛", "毛地", "地毯"), TextTokenizer.tokenize("羊毛地毯"));
+        assertEquals(List.of("wool", "羊毛", "rug"), TextTokenizer.tokenize("Wool羊毛 rug"));
+        assertEquals(List.of("cn1"), skus(index.search(q("地毯", null, null, null))));
+        assertEquals(List.of("cn1"), skus(index.search(q("羊毛地毯", null, null, null))));
+        assertEquals(List.of("cn1"), skus(index.search(q("编织 客厅", null, null, null))));
+        assertTrue(index.search(q("丝绸地毯", null, null, null)).isEmpty());
+    }
+
+    @Test
+    void search_shouldApplyFieldFilters() {
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(persian(), tiles()));
+
+        assertEquals(List.of("rug1"), skus(index.search(q(null, null, "blue", null))));
+        assertEquals(List.of("rug1", "tiles1"),
+                skus(index.search(q(null, null, null, "living room, office"))));
+        assertTrue(index.search(q(null, null, "gray", "living room")).isEmpty());
+    }
+
+    @Test
+    void upsert_shouldReplaceOldTokens() {
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(persian(), tiles()));
+
+        ItemDocument recolored = persian();
+        recolored.setColor("red");
+        index.upsert(recolored);
+
+        assertTrue(index.search(q(null, null, "blue", null)).isEmpty());
+        assertEquals(List.of("rug1"), skus(index.search(q(null, null, "red", null))));
+        assertEquals(2, index.size());
+    }
+
+    @Test
+    void search_shouldRankNameHitsAboveDescriptionHitsAndPage() {
+        ItemDocument inDescription = ItemDocument.builder()
+                .sku("a-desc").name("Round Area Rug").description("soft wool pile, easy to clean").build();
+        ItemDocument inKeywords = ItemDocument.builder()
+                .sku("b-kw").name("Hallway Runner").keywords(List.of("wool", "runner")).build();
+        ItemDocument inName = ItemDocument.builder()
+                .sku("c-name").name("Wool Shag Rug").description("thick pile").build();
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(inDescription, inKeywords, inName, tiles()));
+
+        assertEquals(List.of("c-name", "b-kw", "a-desc"), skus(index.search(q("wool", null, null, null))));
+        assertEquals(List.of("b-kw"), skus(index.search(q("wool", null, null, null), 1, 1)));
+        assertTrue(index.search(q("wool", null, null, null), 3, 10).isEmpty());
+        // 无 q 时按入库顺序分页
+        assertEquals(List.of("b-kw", "c-name"), skus(index.search(q(null, null, null, null), 1, 2)));
+    }
+
+    @Test
+    void facetCounts_shouldIgnoreOwnFilterAndCountWithinOthers() {
+        ItemSearchIndex index = new ItemSearchIndex();
+        index.rebuild(List.of(persian(), tiles()));
+
+        Map<String, Map<String, Integer>> counts =
+                index.facetCounts(SearchQuery.of(null, null, "gray", null, null));
+
+        // color 自身的过滤不影响 color 计数
+        assertEquals(Map.of("light blue", 1, "gray", 1), counts.get("color"));
+        // 其它分面只统计 gray 的结果
+        assertEquals(Map.of("commercial", 1, "office", 1), counts.get("roomType"));
+        assertEquals(Map.of("carpet tiles", 1), counts.get("category"));
+    }
+
+    private static SearchQuery q(String q, String category, String color, String roomType) {
+        return SearchQuery.of(q, category, color, roomType, null);
+    }
+
+    private static List<String> skus(List<ItemDocument> docs) {
+        return docs.stream().map(ItemDocument::getSku).toList();
+    }
+}
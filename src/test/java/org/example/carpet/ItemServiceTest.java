@@ -1,18 +1,37 @@
 package org.example.carpet.service;
 
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.dto.BulkItemResult;
+import org.example.carpet.dto.BulkUpsertResponse;
+import org.example.carpet.dto.ItemPage;
+import org.example.carpet.dto.ItemSummary;
+import org.example.carpet.exception.InvalidCursorException;
 import org.example.carpet.model.ItemDocument;
+import org.example.carpet.recommend.ItemSimilarityIndex;
+import org.example.carpet.recommend.RecommendationFallbackPool;
 import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.example.carpet.search.ItemSearchIndex;
+import org.example.carpet.search.SearchResultCache;
+import org.example.carpet.search.SuggestIndex;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
 
-import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyCollection;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -31,9 +50,23 @@ class ItemServiceTest {
     @Mock
     ItemDocumentRepository itemRepository;   // ✅ 使用 Mongo 版仓库
 
-    @InjectMocks
+    ItemSearchIndex searchIndex = new ItemSearchIndex();   // 真实的内存索引
+    SuggestIndex suggestIndex = new SuggestIndex();
+    SearchResultCache searchCache = new SearchResultCache(searchIndex, 100);
+    @Mock
+    RecommendationFallbackPool fallbackPool;
+
+    ItemSimilarityIndex similarity = new ItemSimilarityIndex(16);
+    CatalogCache catalog;                                  // 真实的目录快照（回源走 mock 仓库）
     ItemService itemService;
 
+    @BeforeEach
+    void setUp() {
+        catalog = new CatalogCache(itemRepository, null, List.of(searchIndex, searchCache, suggestIndex, similarity));
+        itemService = new ItemService(itemRepository, searchIndex, suggestIndex, searchCache, catalog,
+                similarity, fallbackPool, null);
+    }
+
     @Test
     void upsertItem_shouldCreateOrUpdateBySku() {
         ItemDocument req = ItemDocument.builder()
@@ -43,17 +76,15 @@ class ItemServiceTest {
                 .description("Soft red handmade carpet for living room")
                 .build();
 
-        // simulate DB: no existing SKU yet
-        when(itemRepository.findBySku("RUG-12345")).thenReturn(Optional.empty());
-
-        // simulate save (回传入参作为保存结果)
-        when(itemRepository.save(any(ItemDocument.class))).thenAnswer(inv -> inv.getArgument(0));
+        // simulate upsert by sku (回传入参作为写入结果)
+        when(itemRepository.upsertBySku(any(ItemDocument.class))).thenAnswer(inv -> inv.getArgument(0));
 
         ItemDocument saved = itemService.upsertItem(req);
 
         assertEquals("RUG-12345", saved.getSku());
         assertEquals("Persian Wool Carpet", saved.getName());
-        verify(itemRepository).save(any(ItemDocument.class));
+        verify(itemRepository).upsertBySku(req);
+        verify(itemRepository, never()).save(any(ItemDocument.class));
     }
 
     @Test
@@ -89,4 +120,139 @@ class ItemServiceTest {
         assertEquals(1, result.size());
         assertEquals("RUG-RED", result.get(0).getSku());
     }
+
+    @Test
+    void suggest_shouldCompletePrefixByFrequencyAndFollowUpserts() {
+        ItemDocument a = ItemDocument.builder().sku("rug1").name("Persian Silk Rug")
+                .keywords(List.of("persian", "silk")).roomType(List.of("living room")).build();
+        ItemDocument b = ItemDocument.builder().sku("rug2").name("Persian Wool Rug")
+                .keywords(List.of("persian", "wool")).roomType(List.of("bedroom")).build();
+        when(itemRepository.findAll()).thenReturn(List.of(a, b));
+
+        // "persian" 出现在两个商品里，排在单个商品名前面
+        assertEquals(List.of("persian", "Persian Silk Rug", "Persian Wool Rug"), itemService.suggest("PER", 8));
+        assertEquals(List.of("persian"), itemService.suggest("per", 1));
+        assertTrue(itemService.suggest("", 8).isEmpty());
+
+        when(itemRepository.upsertBySku(any(ItemDocument.class))).thenAnswer(inv -> inv.getArgument(0));
+        itemService.upsertItem(ItemDocument.builder().sku("rug2").name("Bedroom Shag Rug")
+                .roomType(List.of("bedroom")).build());
+        assertEquals(List.of("persian", "Persian Silk Rug"), itemService.suggest("pers", 8));
+        assertEquals(List.of("bedroom", "Bedroom Shag Rug"), itemService.suggest("bed", 8));
+    }
+
+    @Test
+    void bulkUpsert_shouldBatchReportPerItemAndRefreshCatalog() {
+        when(itemRepository.findAll()).thenReturn(List.of());
+        when(itemRepository.bulkUpsertBySku(anyList())).thenAnswer(inv -> {
+            List<ItemDocument> batch = inv.getArgument(0);
+            List<BulkItemResult> out = new ArrayList<>();
+            for (int i = 0; i < batch.size(); i++) {
+                out.add(BulkItemResult.builder().index(i).sku(batch.get(i).getSku())
+                        .status(BulkItemResult.Status.CREATED).build());
+            }
+            return out;
+        });
+        when(itemRepository.findBySkuIn(anyCollection())).thenAnswer(inv -> {
+            Collection<String> skus = inv.getArgument(0);
+            return skus.stream().map(s -> ItemDocument.builder().sku(s).name("Imported " + s).build()).toList();
+        });
+        catalog.current();
+
+        List<ItemDocument> feed = new ArrayList<>();
+        feed.add(ItemDocument.builder().sku("rug1").name("A").build());
+        feed.add(null);                                            // 解析失败的一条
+        feed.add(ItemDocument.builder().name("no sku").build());
+        feed.add(ItemDocument.builder().sku("rug1").name("A2").build()); // 同批重复 sku → 先写前一批
+        BulkUpsertResponse resp = itemService.bulkUpsert(feed.iterator());
+
+        assertEquals(2, resp.getCreated());
+        assertEquals(2, resp.getFailed());
+        assertEquals(List.of(0, 1, 2, 3), resp.getItems().stream().map(BulkItemResult::getIndex).toList());
+        assertEquals(BulkItemResult.Status.FAILED, resp.getItems().get(2).getStatus());
+        verify(itemRepository, times(2)).bulkUpsertBySku(anyList());
+        assertEquals("Imported rug1", itemService.getBySku("rug1").getName());
+    }
+
+    @Test
+    void getSummaries_shouldServeSnapshotAndFetchMissesInOneQuery() {
+        ItemDocument cached = ItemDocument.builder().sku("rug1").name("Cached").build();
+        when(itemRepository.findAll()).thenReturn(List.of(cached));
+        ItemSummary fresh = ItemSummary.builder().sku("rug2").name("Fresh").build();
+        when(itemRepository.findSummariesBySkuIn(anyCollection())).thenReturn(Map.of("rug2", fresh));
+
+        var result = itemService.getSummaries(List.of("rug2", "rug1", "nope", "rug1"));
+
+        assertEquals(List.of("rug2", "rug1"), List.copyOf(result.keySet()));
+        assertEquals("Cached", result.get("rug1").getName());
+        verify(itemRepository).findSummariesBySkuIn(Set.of("rug2", "nope"));
+        verify(itemRepository, never()).findBySku(any());
+    }
+
+    @Test
+    void listSummaries_shouldReturnCursorUntilLastPage() {
+        ItemSummary a = ItemSummary.builder().sku("rug1").build();
+        ItemSummary b = ItemSummary.builder().sku("rug2").build();
+        ItemSummary c = ItemSummary.builder().sku("rug3").build();
+
+        // 第一页：limit=2，仓库多取一条 -> 有下一页
+        when(itemRepository.findSummariesAfter(null, 3)).thenReturn(List.of(a, b, c));
+        ItemPage first = itemService.listSummaries(null, 2);
+        assertEquals(2, first.getItems().size());
+        assertNotNull(first.getNextCursor());
+
+        // 第二页：游标解出 rug2，从它之后开始
+        when(itemRepository.findSummariesAfter("rug2", 3)).thenReturn(List.of(c));
+        ItemPage second = itemService.listSummaries(first.getNextCursor(), 2);
+        assertEquals(List.of(c), second.getItems());
+        assertNull(second.getNextCursor());
+    }
+
+    @Test
+    void listSummaries_invalidCursor_shouldThrow() {
+        assertThrows(InvalidCursorException.class, () -> itemService.listSummaries("%%%", 10));
+    }
+
+    @Test
+    void recommendBySku_shouldServeFromSimilarityTable() {
+        ItemDocument base = ItemDocument.builder().sku("rug1")
+                .roomType(List.of("living room")).keywords(List.of("persian rug")).build();
+        ItemDocument close = ItemDocument.builder().sku("rug2")
+                .roomType(List.of("living room")).keywords(List.of("persian rug")).build();
+        ItemDocument far = ItemDocument.builder().sku("rug3")
+                .roomType(List.of("living room")).build();
+        ItemDocument unrelated = ItemDocument.builder().sku("tiles1")
+                .roomType(List.of("office")).build();
+        when(itemRepository.findAll()).thenReturn(List.of(base, close, far, unrelated));
+
+        List<ItemDocument> recs = itemService.recommendBySku("rug1", 8);
+
+        assertEquals(List.of("rug2", "rug3"), recs.stream().map(ItemDocument::getSku).toList());
+        verify(itemRepository, never()).findRelated(any(), any(), anyInt());
+    }
+
+    @Test
+    void recommendBySku_withoutNeighbours_shouldQueryNormalizedTagsExcludingSelf() {
+        ItemDocument base = ItemDocument.builder()
+                .sku("rug1")
+                .roomType(List.of("Living Room"))
+                .keywords(List.of("Persian Rug"))
+                .build();
+        ItemDocument other = ItemDocument.builder().sku("rug2").build();
+
+        when(itemRepository.findAll()).thenReturn(List.of(base));
+        when(itemRepository.findRelated(List.of("living", "room", "persian", "rug"), "rug1", 8))
+                .thenReturn(List.of(other));
+
+        assertEquals(List.of(other), itemService.recommendBySku("rug1", 8));
+    }
+
+    @Test
+    void recommendByTags_noTags_shouldDrawFromFallbackPool() {
+        ItemDocument sampled = ItemDocument.builder().sku("rug9").build();
+        when(fallbackPool.draw(null, 4)).thenReturn(List.of(sampled));
+
+        assertEquals(List.of(sampled), itemService.recommendByTags(null, " ", 4));
+        verify(itemRepository, never()).findAll();
+    }
 }
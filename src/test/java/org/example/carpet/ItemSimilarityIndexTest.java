@@ -0,0 +1,144 @@
+package org.example.carpet.recommend;
+
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the precomputed top-K similarity table:
+ *  - neighbours ranked by weighted Jaccard, capped at K
+ *  - upserting one item recomputes only its own row; rows sharing features are adjusted in place
+ *    and end up identical to a full rebuild
+ *  - a change that leaves the features alone (stock, price) recomputes nothing
+ */
+@ExtendWith(MockitoExtension.class)
+class ItemSimilarityIndexTest {
+
+    @Mock
+    ItemDocumentRepository itemRepository;
+
+    private static ItemDocument item(String sku, List<String> rooms, String material, String color) {
+        return ItemDocument.builder().sku(sku).roomType(rooms).material(material).color(color).build();
+    }
+
+    @Test
+    void neighbours_shouldRankByWeightedJaccardAndCapAtK() {
+        ItemSimilarityIndex index = new ItemSimilarityIndex(2);
+        when(itemRepository.findAll()).thenReturn(List.of(
+                item("a", List.of("living room"), "wool", "red"),
+                item("b", List.of("living room"), "wool", "blue"),
+                item("c", List.of("living room"), "silk", "blue"),
+                item("d", List.of("living room"), "wool", "red"),
+                item("e", List.of("office"), "nylon", "gray")));
+        new CatalogCache(itemRepository, null, List.of(index)).current();
+
+        assertEquals(List.of("d", "b"), index.neighbours("a", 8));   // K = 2
+        assertEquals(List.of("d"), index.neighbours("a", 1));
+        assertTrue(index.neighbours("e", 8).isEmpty());
+        assertTrue(index.neighbours("missing", 8).isEmpty());
+    }
+
+    @Test
+    void upsert_shouldRecomputeAffectedRows() {
+        ItemSimilarityIndex index = new ItemSimilarityIndex(4);
+        when(itemRepository.findAll()).thenReturn(List.of(
+                item("a", List.of("living room"), "wool", "red"),
+                item("e", List.of("office"), "nylon", "gray")));
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of(index));
+        cache.current();
+        assertTrue(index.neighbours("e", 8).isEmpty());
+
+        // a 改成与 e 相同的属性：a 的行和 e 的行都要重算
+        cache.apply(item("a", List.of("office"), "nylon", "gray"));
+
+        assertEquals(List.of("e"), index.neighbours("a", 8));
+        assertEquals(List.of("a"), index.neighbours("e", 8));
+    }
+
+    @Test
+    void upsert_inLargeSharedGroup_shouldRecomputeOnlyOwnRow() {
+        // 所有商品都是 "living room"：改一个商品不应该把 N 行都整行重算
+        ItemSimilarityIndex index = new ItemSimilarityIndex(4);
+        List<ItemDocument> items = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            items.add(item("s" + i, List.of("living room"), i % 3 == 0 ? "wool" : "silk", i % 2 == 0 ? "red" : "blue"));
+        }
+        when(itemRepository.findAll()).thenReturn(items);
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of(index));
+        cache.current();
+        long before = index.rowsRecomputed();
+
+        // s49 不在任何一行的 top-K 里（同分时 ordinal 小的优先）：其它行只算一次和它的分数，不用整行重算
+        cache.apply(item("s49", List.of("living room"), "jute", "green"));
+        assertEquals(before + 1, index.rowsRecomputed());
+        assertEquals(List.of("s1", "s5", "s7", "s11"), index.neighbours("s13", 8));
+    }
+
+    @Test
+    void incrementalUpdates_shouldMatchFullRebuild() {
+        String[] rooms = {"living room", "bedroom", "office"};
+        String[] materials = {"wool", "silk", "jute", "nylon"};
+        String[] colors = {"red", "blue", "gray"};
+        Random rnd = new Random(42);
+        List<ItemDocument> items = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            items.add(item("s" + i, List.of(rooms[rnd.nextInt(3)]), materials[rnd.nextInt(4)], colors[rnd.nextInt(3)]));
+        }
+        ItemSimilarityIndex index = new ItemSimilarityIndex(3);
+        when(itemRepository.findAll()).thenReturn(items);
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of(index));
+        cache.current();
+
+        Map<String, ItemDocument> finalState = new LinkedHashMap<>();
+        items.forEach(d -> finalState.put(d.getSku(), d));
+        for (int step = 0; step < 200; step++) {
+            String sku = "s" + rnd.nextInt(45);                             // 包括新增的 s40..s44
+            if (rnd.nextInt(10) == 0) {
+                cache.apply(List.of(), List.of(sku));
+                finalState.remove(sku);
+            } else {
+                ItemDocument d = item(sku, List.of(rooms[rnd.nextInt(3)]), materials[rnd.nextInt(4)], colors[rnd.nextInt(3)]);
+                cache.apply(d);
+                finalState.put(sku, d);
+            }
+        }
+
+        // 对照：同样的最终内容整体重建。finalState 的顺序就是增量索引里 ordinal 的相对顺序
+        // （删掉再加回来的排到最后），同分时的先后也应一致
+        ItemSimilarityIndex rebuilt = new ItemSimilarityIndex(3);
+        ItemDocumentRepository rebuiltRepo = mock(ItemDocumentRepository.class);
+        when(rebuiltRepo.findAll()).thenReturn(new ArrayList<>(finalState.values()));
+        new CatalogCache(rebuiltRepo, null, List.of(rebuilt)).current();
+        for (String sku : finalState.keySet()) {
+            assertEquals(rebuilt.neighbours(sku, 8), index.neighbours(sku, 8), sku);
+        }
+    }
+
+    @Test
+    void stockOnlyChange_shouldSkipRecompute() {
+        ItemSimilarityIndex index = new ItemSimilarityIndex(4);
+        when(itemRepository.findAll()).thenReturn(List.of(
+                item("a", List.of("living room"), "wool", "red"),
+                item("b", List.of("living room"), "wool", "blue")));
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of(index));
+        cache.current();
+        long before = index.rowsRecomputed();
+
+        ItemDocument restocked = item("a", List.of("living room"), "wool", "red");
+        restocked.setStockQuantity(7);
+        cache.apply(restocked);
+
+        assertEquals(before, index.rowsRecomputed());
+        assertEquals(List.of("b"), index.neighbours("a", 8));
+    }
+}
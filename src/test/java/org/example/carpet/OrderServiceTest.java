@@ -1,20 +1,26 @@
 package org.example.carpet.service;
 
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.exception.InsufficientStockException;
+import org.example.carpet.exception.InvalidOrderStateException;
+import org.example.carpet.expiry.ReservationExpiryScheduler;
 import org.example.carpet.kafka.InventoryEventProducer;
 import org.example.carpet.model.OrderDocument;
 import org.example.carpet.model.OrderLineItem;
 import org.example.carpet.repository.mongo.OrderRepository;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
-import org.springframework.data.cassandra.core.CassandraTemplate;
 
 import java.util.List;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.*;
 import static org.mockito.Mockito.*;
 
@@ -24,7 +30,8 @@ class OrderServiceTest {
     @Mock OrderRepository orderRepository;                   // Mongo: orders
     @Mock InventoryService inventoryService;                 // 库存服务（原子扣减/回补）
     @Mock InventoryEventProducer inventoryEventProducer;     // Kafka
-    @Mock CassandraTemplate cassandraTemplate;               // Cassandra 事件时间线
+    @Mock CassandraStatements cassandraStatements;           // Cassandra 事件时间线（预编译语句）
+    @Mock ReservationExpiryScheduler reservationExpiry;      // 预留到期时间轮
 
     @InjectMocks OrderService orderService;
 
@@ -37,8 +44,8 @@ class OrderServiceTest {
                 .price(199.99)
                 .build();
 
-        // 现在使用 inventoryService.reserve(...) 进行库存扣减
-        when(inventoryService.reserve("RUG-RED", 2)).thenReturn(true);
+        // 现在使用 inventoryService.reserveAll(...) 整单预留，返回预留 token
+        when(inventoryService.reserveAll(List.of(line1))).thenReturn("tok-1");
 
         // 保存订单时回传入参
         when(orderRepository.save(any(OrderDocument.class))).thenAnswer(inv -> inv.getArgument(0));
@@ -46,10 +53,14 @@ class OrderServiceTest {
         OrderDocument created = orderService.createOrder("buyer@example.com", List.of(line1));
 
         assertEquals("RESERVED", created.getStatus());
-        verify(inventoryService).reserve("RUG-RED", 2);
+        assertEquals("tok-1", created.getReservationToken());
+        verify(inventoryService).reserveAll(List.of(line1));
         verify(orderRepository).save(any(OrderDocument.class));
         // 事件发送（失败不回滚，这里只验证被调用）
         verify(inventoryEventProducer).publishInventoryReserved(anyString(), eq("RUG-RED"), eq(2));
+        // 登记到期时间：约 15 分钟后
+        verify(reservationExpiry).schedule(eq(created.getOrderId()),
+                longThat(at -> Math.abs(at - System.currentTimeMillis() - 15 * 60_000L) < 60_000L));
     }
 
     @Test
@@ -66,8 +77,8 @@ class OrderServiceTest {
                 .items(List.of(lineItem))
                 .build();
 
-        when(orderRepository.findByOrderId("ORD-abc")).thenReturn(Optional.of(reserved));
-        when(orderRepository.save(any(OrderDocument.class))).thenAnswer(inv -> inv.getArgument(0));
+        when(orderRepository.transition("ORD-abc", List.of("RESERVED", "PAID"), "CANCELLED"))
+                .thenReturn(Optional.of(reserved));
 
         // 回补本地库存 - 现在通过 inventoryService.release(...)
         when(inventoryService.release("RUG-RED", 2)).thenReturn(true);
@@ -76,7 +87,150 @@ class OrderServiceTest {
 
         assertEquals("CANCELLED", cancelled.getStatus());
         verify(inventoryService).release("RUG-RED", 2);
-        verify(orderRepository).save(any(OrderDocument.class));
+        verify(orderRepository, never()).save(any(OrderDocument.class));
         verify(inventoryEventProducer).publishInventoryReleased(eq("ORD-abc"), eq("RUG-RED"), eq(2));
     }
+
+    @Test
+    void createOrder_withClearCart_shouldClearCartPartitionAfterSave() {
+        OrderLineItem line = OrderLineItem.builder().sku("RUG-RED").quantity(1).price(10.0).build();
+        when(inventoryService.reserveAll(List.of(line))).thenReturn("tok-1");
+        when(orderRepository.save(any(OrderDocument.class))).thenAnswer(inv -> inv.getArgument(0));
+
+        orderService.createOrder("buyer@example.com", List.of(line), true);
+
+        InOrder inOrder = inOrder(orderRepository, cassandraStatements);
+        inOrder.verify(orderRepository).save(any(OrderDocument.class));
+        inOrder.verify(cassandraStatements).cartClear("buyer@example.com");
+    }
+
+    @Test
+    void createOrder_insufficientStock_shouldPropagateAndNotSave() {
+        OrderLineItem ok = OrderLineItem.builder().sku("RUG-RED").quantity(1).price(10.0).build();
+        OrderLineItem low = OrderLineItem.builder().sku("RUG-BLUE").quantity(5).price(10.0).build();
+        when(inventoryService.reserveAll(List.of(ok, low)))
+                .thenThrow(new InsufficientStockException("RUG-BLUE", 5, 2));
+
+        InsufficientStockException ex = assertThrows(InsufficientStockException.class,
+                () -> orderService.createOrder("buyer@example.com", List.of(ok, low)));
+
+        assertEquals(2, ex.getAvailable());
+        verify(orderRepository, never()).save(any());
+    }
+
+    @Test
+    void cancelOrder_reserved_shouldReleaseByTokenOnce() {
+        OrderLineItem line = OrderLineItem.builder().sku("RUG-RED").quantity(2).price(10.0).build();
+        OrderDocument reserved = OrderDocument.builder()
+                .orderId("ORD-tok").status("RESERVED").reservationToken("tok-1").items(List.of(line)).build();
+        when(orderRepository.transition("ORD-tok", List.of("RESERVED", "PAID"), "CANCELLED"))
+                .thenReturn(Optional.of(reserved));
+
+        OrderDocument cancelled = orderService.cancelOrder("ORD-tok");
+
+        assertEquals("CANCELLED", cancelled.getStatus());
+        assertNull(cancelled.getReservationToken());
+        verify(inventoryService).releaseAll("tok-1", List.of(line));
+        verify(inventoryService, never()).release(anyString(), anyInt());
+    }
+
+    @Test
+    void markPaid_shouldCommitReservationToken() {
+        OrderLineItem line = OrderLineItem.builder().sku("RUG-RED").quantity(2).price(10.0).build();
+        OrderDocument reserved = OrderDocument.builder()
+                .orderId("ORD-tok").status("RESERVED").reservationToken("tok-1").items(List.of(line)).build();
+        when(orderRepository.transition("ORD-tok", List.of("RESERVED"), "PAID")).thenReturn(Optional.of(reserved));
+
+        OrderDocument paid = orderService.markPaid("ORD-tok");
+
+        assertEquals("PAID", paid.getStatus());
+        assertNull(paid.getReservationToken());
+        verify(inventoryService).commitAll("tok-1", List.of(line));
+        verify(orderRepository, never()).save(any(OrderDocument.class));
+    }
+
+    @Test
+    void markPaid_afterExpiryClaimedOrder_shouldNotCommitOrOverwriteStatus() {
+        // 交错：支付前到期扫描已经把单认领成 EXPIRING 并回补了库存，条件流转落空
+        OrderLineItem line = OrderLineItem.builder().sku("RUG-RED").quantity(2).price(10.0).build();
+        OrderDocument expiring = OrderDocument.builder()
+                .orderId("ORD-tok").status("EXPIRING").reservationToken("tok-1").items(List.of(line)).build();
+        when(orderRepository.transition("ORD-tok", List.of("RESERVED"), "PAID")).thenReturn(Optional.empty());
+        when(orderRepository.findByOrderId("ORD-tok")).thenReturn(Optional.of(expiring));
+
+        assertThrows(InvalidOrderStateException.class, () -> orderService.markPaid("ORD-tok"));
+
+        verify(inventoryService, never()).commitAll(anyString(), anyList());
+        verify(orderRepository, never()).save(any(OrderDocument.class));
+    }
+
+    @Test
+    void markPaid_alreadyPaid_shouldReturnWithoutCommitting() {
+        OrderDocument paid = OrderDocument.builder().orderId("ORD-tok").status("PAID").items(List.of()).build();
+        when(orderRepository.transition("ORD-tok", List.of("RESERVED"), "PAID")).thenReturn(Optional.empty());
+        when(orderRepository.findByOrderId("ORD-tok")).thenReturn(Optional.of(paid));
+
+        assertEquals("PAID", orderService.markPaid("ORD-tok").getStatus());
+        verify(inventoryService, never()).commitAll(anyString(), anyList());
+    }
+
+    @Test
+    void updateCustomerEmail_shouldOnlySetEmailWhileReserved() {
+        OrderDocument reserved = OrderDocument.builder()
+                .orderId("ORD-tok").customerEmail("buyer@example.com").status("RESERVED").reservationToken("tok-1").build();
+        OrderDocument updated = OrderDocument.builder()
+                .orderId("ORD-tok").customerEmail("new@example.com").status("RESERVED").reservationToken("tok-1").build();
+        when(orderRepository.findByOrderId("ORD-tok")).thenReturn(Optional.of(reserved));
+        when(orderRepository.updateCustomerEmail("ORD-tok", List.of("RESERVED"), "new@example.com"))
+                .thenReturn(Optional.of(updated));
+
+        assertEquals("new@example.com",
+                orderService.updateCustomerEmail("ORD-tok", "Buyer@example.com", "new@example.com").getCustomerEmail());
+        verify(orderRepository, never()).save(any(OrderDocument.class));
+    }
+
+    @Test
+    void updateCustomerEmail_afterExpiry_shouldNotResurrectReservation() {
+        // 交错：读到 RESERVED 之后到期扫描取消并回补了库存，条件更新落空
+        OrderDocument reserved = OrderDocument.builder()
+                .orderId("ORD-tok").customerEmail("buyer@example.com").status("RESERVED").reservationToken("tok-1").build();
+        OrderDocument cancelled = OrderDocument.builder()
+                .orderId("ORD-tok").customerEmail("buyer@example.com").status("CANCELLED").build();
+        when(orderRepository.findByOrderId("ORD-tok")).thenReturn(Optional.of(reserved), Optional.of(cancelled));
+        when(orderRepository.updateCustomerEmail("ORD-tok", List.of("RESERVED"), "new@example.com"))
+                .thenReturn(Optional.empty());
+
+        assertThrows(InvalidOrderStateException.class,
+                () -> orderService.updateCustomerEmail("ORD-tok", "buyer@example.com", "new@example.com"));
+        verify(orderRepository, never()).save(any(OrderDocument.class));
+    }
+
+    @Test
+    void markRefunded_shouldTransitionPaidOrCancelledOnly() {
+        OrderDocument paid = OrderDocument.builder().orderId("ORD-tok").status("PAID").build();
+        when(orderRepository.transition("ORD-tok", List.of("PAID", "CANCELLED"), "REFUNDED"))
+                .thenReturn(Optional.of(paid), Optional.empty());
+        when(orderRepository.findByOrderId("ORD-tok"))
+                .thenReturn(Optional.of(OrderDocument.builder().orderId("ORD-tok").status("REFUNDED").build()));
+
+        assertEquals("REFUNDED", orderService.markRefunded("ORD-tok").getStatus());
+        // 第二次退款：已经是 REFUNDED，拒绝
+        assertThrows(InvalidOrderStateException.class, () -> orderService.markRefunded("ORD-tok"));
+        verify(orderRepository, never()).save(any(OrderDocument.class));
+    }
+
+    @Test
+    void cancelOrder_lostToExpiry_shouldNotReleaseAgain() {
+        OrderLineItem line = OrderLineItem.builder().sku("RUG-RED").quantity(2).price(10.0).build();
+        OrderDocument cancelled = OrderDocument.builder()
+                .orderId("ORD-tok").status("CANCELLED").items(List.of(line)).build();
+        when(orderRepository.transition("ORD-tok", List.of("RESERVED", "PAID"), "CANCELLED"))
+                .thenReturn(Optional.empty());
+        when(orderRepository.findByOrderId("ORD-tok")).thenReturn(Optional.of(cancelled));
+
+        assertEquals("CANCELLED", orderService.cancelOrder("ORD-tok").getStatus());
+        verify(inventoryService, never()).releaseAll(anyString(), anyList());
+        verify(inventoryService, never()).release(anyString(), anyInt());
+        verifyNoInteractions(inventoryEventProducer);
+    }
 }
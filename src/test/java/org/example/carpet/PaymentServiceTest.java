@@ -1,5 +1,6 @@
 package org.example.carpet.service;
 
+import org.example.carpet.exception.InvalidOrderStateException;
 import org.example.carpet.kafka.PaymentEventProducer;
 import org.example.carpet.ledger.PaymentLedgerEntity;
 import org.example.carpet.model.OrderDocument;
@@ -84,14 +85,9 @@ class PaymentServiceTest {
         when(paymentRepository.save(any(PaymentRecord.class)))
                 .thenAnswer(inv -> inv.getArgument(0));
 
-        // 加载与保存订单
-        OrderDocument orderDoc = OrderDocument.builder()
-                .orderId("ORD-xyz")
-                .status("PAID")
-                .build();
-        when(orderService.getOrderByOrderId("ORD-xyz")).thenReturn(orderDoc);
-        when(orderService.saveDirect(any(OrderDocument.class)))
-                .thenAnswer(inv -> inv.getArgument(0));
+        // 订单条件流转 PAID -> REFUNDED
+        when(orderService.markRefunded("ORD-xyz"))
+                .thenReturn(OrderDocument.builder().orderId("ORD-xyz").status("REFUNDED").build());
 
         when(paymentLedgerRepository.save(any(PaymentLedgerEntity.class)))
                 .thenAnswer(inv -> inv.getArgument(0));
@@ -103,8 +99,7 @@ class PaymentServiceTest {
         assertTrue(refund.getAmount() < 0, "refund amount should be negative");
 
         // 订单应为 REFUNDED
-        assertEquals("REFUNDED", orderDoc.getStatus());
-        verify(orderService).saveDirect(orderDoc);
+        verify(orderService).markRefunded("ORD-xyz");
 
         // 账本记录为负
         verify(paymentLedgerRepository).save(argThat(e ->
@@ -160,6 +155,21 @@ class PaymentServiceTest {
         verify(paymentLedgerRepository, never()).save(any());
     }
 
+    @Test
+    void refundPayment_orderNotRefundable_shouldNotWriteRefund() {
+        PaymentRecord paidRecord = PaymentRecord.builder()
+                .orderId("ORD-twice").amount(200.00).paymentMethod("CARD").status("SUCCESS").build();
+        when(paymentRepository.findByOrderId("ORD-twice")).thenReturn(Optional.of(paidRecord));
+        // 已经退过款：条件流转落空
+        when(orderService.markRefunded("ORD-twice"))
+                .thenThrow(new InvalidOrderStateException("ORD-twice", "REFUNDED", "PAID"));
+
+        assertThrows(InvalidOrderStateException.class, () -> paymentService.refundPayment("ORD-twice", "again"));
+
+        verify(paymentRepository, never()).save(any());
+        verify(paymentLedgerRepository, never()).save(any());
+    }
+
     @Test
     void refundPayment_nonSuccessfulPayment_shouldThrowException() {
         PaymentRecord pendingRecord = PaymentRecord.builder()
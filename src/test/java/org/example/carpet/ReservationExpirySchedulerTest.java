@@ -0,0 +1,100 @@
+package org.example.carpet.expiry;
+
+import org.example.carpet.cassandra.CassandraStatements;
+import org.example.carpet.kafka.InventoryEventProducer;
+import org.example.carpet.model.OrderDocument;
+import org.example.carpet.model.OrderLineItem;
+import org.example.carpet.repository.mongo.OrderRepository;
+import org.example.carpet.service.InventoryService;
+import com.datastax.oss.driver.api.core.cql.Row;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for reservation expiry:
+ *  - due orders are claimed, their stock released by token in one batch, then cancelled
+ *  - orders that are not yet due stay in the wheel
+ *  - rebuild restores one wheel entry per order from the Cassandra scan and sweeps overdue orders from Mongo
+ */
+@ExtendWith(MockitoExtension.class)
+class ReservationExpirySchedulerTest {
+
+    @Mock OrderRepository orderRepository;
+    @Mock InventoryService inventoryService;
+    @Mock CassandraStatements cassandraStatements;
+    @Mock InventoryEventProducer inventoryEventProducer;
+
+    private ReservationExpiryScheduler scheduler(int batchSize) {
+        return new ReservationExpiryScheduler(orderRepository, inventoryService, cassandraStatements, inventoryEventProducer,
+                true, Duration.ofMinutes(15), Duration.ofMillis(10), 64, batchSize, Duration.ofMinutes(5));
+    }
+
+    private static OrderDocument reserved(String orderId, String token, String sku, int qty) {
+        return OrderDocument.builder().orderId(orderId).status("EXPIRING").reservationToken(token)
+                .items(List.of(OrderLineItem.builder().sku(sku).quantity(qty).build())).build();
+    }
+
+    @Test
+    void tick_shouldExpireDueOrdersInBatchesAndKeepFutureOnes() throws Exception {
+        ReservationExpiryScheduler scheduler = scheduler(2);
+        long now = System.currentTimeMillis();
+        scheduler.schedule("ORD-1", now - 1000);
+        scheduler.schedule("ORD-2", now - 500);
+        scheduler.schedule("ORD-3", now - 100);
+        scheduler.schedule("ORD-later", now + 3_600_000);
+
+        OrderDocument o1 = reserved("ORD-1", "t1", "RUG-RED", 2);
+        OrderDocument o2 = reserved("ORD-2", "t2", "RUG-BLUE", 1);
+        when(orderRepository.claimForExpiry(eq(List.of("ORD-1", "ORD-2")), any())).thenReturn(List.of(o1, o2));
+        when(orderRepository.claimForExpiry(eq(List.of("ORD-3")), any())).thenReturn(List.of()); // 已支付，没认领到
+        when(orderRepository.completeExpiry(List.of("ORD-1", "ORD-2"))).thenReturn(2L);
+
+        Thread.sleep(20);
+        assertEquals(2, scheduler.tick());
+
+        verify(inventoryService).releaseAll(Map.of("t1", o1.getItems(), "t2", o2.getItems()));
+        verify(orderRepository).completeExpiry(List.of("ORD-1", "ORD-2"));
+        verify(cassandraStatements).appendOrderEvent(eq("ORD-1"), anyLong(), eq("ReservationExpired"), anyString());
+        verify(inventoryEventProducer).publishInventoryReleased("ORD-2", "RUG-BLUE", 1);
+        verify(orderRepository, never()).claimForExpiry(argThat(ids -> ids.contains("ORD-later")), any());
+        assertEquals(2, scheduler.expiredCount());
+    }
+
+    @Test
+    void rebuild_shouldSweepOverdueAndScheduleOneEntryPerOrder() throws Exception {
+        ReservationExpiryScheduler scheduler = scheduler(500);
+        when(orderRepository.findExpirableOrderIds(any(), eq(500))).thenReturn(List.of("ORD-old"));
+        when(orderRepository.claimForExpiry(eq(List.of("ORD-old")), any()))
+                .thenReturn(List.of(reserved("ORD-old", "t0", "RUG-RED", 1)));
+        when(orderRepository.completeExpiry(List.of("ORD-old"))).thenReturn(1L);
+
+        // 同一订单两行预留（连续），另一个订单一行；都在 15 分钟预留期内
+        long reservedAt = System.currentTimeMillis() - 60_000;
+        List<Row> rows = List.of(row("ORD-a", reservedAt), row("ORD-a", reservedAt - 5), row("ORD-b", reservedAt));
+        when(cassandraStatements.scanReservationsByOrder(anyInt())).thenReturn(rows);
+
+        assertEquals(2, scheduler.rebuild());
+        verify(inventoryService).releaseAll(Map.of("t0", List.of(OrderLineItem.builder().sku("RUG-RED").quantity(1).build())));
+
+        Thread.sleep(20);
+        assertEquals(0, scheduler.tick());   // 还没到期
+        verify(orderRepository, times(1)).claimForExpiry(any(), any());
+    }
+
+    private static Row row(String orderId, long reservedAt) {
+        Row r = mock(Row.class);
+        when(r.getString("order_id")).thenReturn(orderId);
+        when(r.getLong("reserved_at_ts")).thenReturn(reservedAt);
+        return r;
+    }
+}
@@ -0,0 +1,167 @@
+package org.example.carpet.search;
+
+import org.example.carpet.model.ItemDocument;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the search result cache in front of ItemSearchIndex:
+ *  - equivalent queries share one normalized key
+ *  - upserts invalidate only the queries they can affect, with every cached page of that query
+ *  - stock-only changes keep the cached pages and swap in the new documents
+ *  - concurrent misses for one key compute once (single-flight)
+ *  - LRU size bound
+ */
+class SearchResultCacheTest {
+
+    /** 统计 search 调用次数，可选地在计算中阻塞 */
+    static class CountingIndex extends ItemSearchIndex {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch gate;
+
+        @Override
+        public List<ItemDocument> search(SearchQuery query, int offset, int limit) {
+            calls.incrementAndGet();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.search(query, offset, limit);
+        }
+    }
+
+    private static ItemDocument rug(String sku, String name, String color) {
+        return ItemDocument.builder().sku(sku).name(name).color(color).build();
+    }
+
+    @Test
+    void search_shouldServeEquivalentQueriesFromCache() {
+        CountingIndex index = new CountingIndex();
+        index.rebuild(List.of(rug("rug1", "Persian Rug", "red")));
+        SearchResultCache cache = new SearchResultCache(index, 10);
+
+        List<ItemDocument> first = cache.search(SearchQuery.of("Persian", null, "red", null, null), 0, 20);
+        List<ItemDocument> second = cache.search(SearchQuery.of("  persian ", null, "RED", null, null), 0, 20);
+
+        assertSame(first, second);
+        assertEquals(1, index.calls.get());
+    }
+
+    @Test
+    void onCatalogChanged_shouldInvalidateOnlyAffectedQueries() {
+        CountingIndex index = new CountingIndex();
+        SearchResultCache cache = new SearchResultCache(index, 10);
+        ItemDocument persian = rug("rug1", "Persian Rug", "red");
+        ItemDocument shag = rug("rug2", "Shag Rug", "gray");
+        index.rebuild(List.of(persian, shag));
+
+        SearchQuery persianQ = SearchQuery.of("persian", null, null, null, null);
+        SearchQuery grayQ = SearchQuery.of(null, null, "gray", null, null);
+        cache.search(persianQ, 0, 20);
+        cache.search(grayQ, 0, 20);
+
+        // 新商品命中 persian 查询：只有它失效
+        ItemDocument newPersian = rug("rug3", "Persian Runner", "blue");
+        index.upsert(newPersian);
+        cache.onCatalogChanged(null, Set.of("rug3"), false);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.search(persianQ, 0, 20).size());
+
+        // 原本在 gray 结果里的商品改色：gray 失效
+        ItemDocument recolored = rug("rug2", "Shag Rug", "white");
+        index.upsert(recolored);
+        cache.onCatalogChanged(null, Set.of("rug2"), false);
+        assertTrue(cache.search(grayQ, 0, 20).isEmpty());
+        assertEquals(4, index.calls.get());
+    }
+
+    @Test
+    void search_concurrentMisses_shouldComputeOnce() throws Exception {
+        CountingIndex index = new CountingIndex();
+        index.rebuild(List.of(rug("rug1", "Persian Rug", "red")));
+        SearchResultCache cache = new SearchResultCache(index, 10);
+        index.gate = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<List<ItemDocument>>> results = new java.util.ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(pool.submit(() -> cache.search(SearchQuery.of("persian", null, null, null, null), 0, 20)));
+            }
+            Thread.sleep(100);
+            index.gate.countDown();
+            for (Future<List<ItemDocument>> f : results) assertEquals(1, f.get(5, TimeUnit.SECONDS).size());
+        } finally {
+            pool.shutdownNow();
+        }
+        assertEquals(1, index.calls.get());
+    }
+
+    @Test
+    void search_shouldEvictLeastRecentlyUsed() {
+        CountingIndex index = new CountingIndex();
+        index.rebuild(List.of(rug("rug1", "Persian Rug", "red")));
+        SearchResultCache cache = new SearchResultCache(index, 2);
+
+        SearchQuery a = SearchQuery.of("persian", null, null, null, null);
+        SearchQuery b = SearchQuery.of("rug", null, null, null, null);
+        SearchQuery c = SearchQuery.of(null, null, "red", null, null);
+        cache.search(a, 0, 20);
+        cache.search(b, 0, 20);
+        cache.search(a, 0, 20);     // a 变成最近使用
+        cache.search(c, 0, 20);     // 淘汰 b
+
+        assertEquals(2, cache.size());
+        cache.search(a, 0, 20);
+        assertEquals(3, index.calls.get());
+        cache.search(b, 0, 20);
+        assertEquals(4, index.calls.get());
+    }
+
+    @Test
+    void onCatalogChanged_shouldInvalidateEveryPageOfAnAffectedQuery() {
+        CountingIndex index = new CountingIndex();
+        SearchResultCache cache = new SearchResultCache(index, 10);
+        index.rebuild(List.of(rug("rug1", "Persian Rug", "red"), rug("rug2", "Persian Runner", "red"),
+                rug("rug3", "Shag Rug", "gray")));
+        SearchQuery redQ = SearchQuery.of(null, null, "red", null, null);
+        assertEquals("rug1", cache.search(redQ, 0, 1).get(0).getSku());
+        assertEquals("rug2", cache.search(redQ, 1, 1).get(0).getSku());
+        assertEquals(2, cache.size());
+
+        // rug1 不再是红色：第二页虽然不含 rug1，也要跟着失效（rug2 前移到第一页）
+        index.upsert(rug("rug1", "Persian Rug", "blue"));
+        cache.onCatalogChanged(null, Set.of("rug1"), false);
+        assertEquals(0, cache.size());
+        assertEquals("rug2", cache.search(redQ, 0, 1).get(0).getSku());
+        assertTrue(cache.search(redQ, 1, 1).isEmpty());
+    }
+
+    @Test
+    void onCatalogChanged_stockOnly_shouldKeepPagesWithFreshDocuments() {
+        CountingIndex index = new CountingIndex();
+        SearchResultCache cache = new SearchResultCache(index, 10);
+        index.rebuild(List.of(rug("rug1", "Persian Rug", "red")));
+        SearchQuery persianQ = SearchQuery.of("persian", null, null, null, null);
+        cache.search(persianQ, 0, 20);
+
+        ItemDocument restocked = rug("rug1", "Persian Rug", "red");
+        restocked.setStockQuantity(9);
+        index.upsert(restocked);
+        cache.onCatalogChanged(null, Set.of("rug1"), false);
+
+        assertEquals(1, cache.size());
+        assertSame(restocked, cache.search(persianQ, 0, 20).get(0));
+        assertEquals(1, index.calls.get());
+    }
+}
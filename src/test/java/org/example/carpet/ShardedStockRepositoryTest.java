@@ -0,0 +1,145 @@
+package org.example.carpet.repository.mongo;
+
+import com.mongodb.client.result.UpdateResult;
+import org.bson.Document;
+import org.example.carpet.dto.StockMutation;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.model.ItemStockShard;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests for sharded stock counters:
+ *  - a deduct lands on one shard when any probed shard covers it, otherwise it is spread across shards
+ *  - availability is the sum over shards, never below zero, and a short SKU reports the real total
+ *  - routing follows the persisted items.stockSharded flag, not only the local config
+ *  - merging back moves open holds into items.reservationTokens instead of dropping them
+ */
+class ShardedStockRepositoryTest {
+
+    /** 用内存里的 sku#shard -> quantity 模拟 item_stock_shards 上的条件 $inc */
+    private static MongoTemplate fakeShards(Map<String, Integer> shards) {
+        MongoTemplate mongo = mock(MongoTemplate.class);
+        when(mongo.updateFirst(any(Query.class), any(UpdateDefinition.class), any(Class.class))).thenAnswer(inv -> {
+            if (inv.getArgument(2) != ItemStockShard.class) return UpdateResult.acknowledged(0, 0L, null);
+            Document q = inv.<Query>getArgument(0).getQueryObject();
+            Document inc = (Document) inv.<Update>getArgument(1).getUpdateObject().get("$inc");
+            String id = q.getString("_id");
+            int delta = inc.getInteger("quantity");
+            Document cond = (Document) q.get("quantity");
+            synchronized (shards) {
+                int cur = shards.get(id);
+                if (cond != null && cur < cond.getInteger("$gte")) return UpdateResult.acknowledged(0, 0L, null);
+                shards.put(id, cur + delta);
+                return UpdateResult.acknowledged(1, 1L, null);
+            }
+        });
+        lenient().when(mongo.exists(any(Query.class), eq(ItemDocument.class))).thenReturn(true);   // stockSharded = true
+        when(mongo.find(any(Query.class), eq(ItemStockShard.class))).thenAnswer(inv -> {
+            synchronized (shards) {
+                return shards.entrySet().stream()
+                        .map(e -> ItemStockShard.builder().id(e.getKey()).sku("HOT")
+                                .shard(Integer.parseInt(e.getKey().substring(4))).quantity(e.getValue()).build())
+                        .toList();
+            }
+        });
+        return mongo;
+    }
+
+    @Test
+    void tryDeduct_shouldUseOneShardOrSpreadAndNeverOversell() {
+        Map<String, Integer> data = new TreeMap<>(Map.of("HOT#0", 1, "HOT#1", 1, "HOT#2", 1, "HOT#3", 10));
+        ShardedStockRepository repo = new ShardedStockRepository(fakeShards(data), mock(ItemDocumentRepository.class),
+                List.of("HOT"), 4, Duration.ofMinutes(1));
+
+        assertTrue(repo.handles("HOT"));
+        assertFalse(repo.handles("COLD"));
+        assertEquals(13, repo.available("HOT"));
+
+        assertTrue(repo.tryDeduct("HOT", 3).isApplied());
+        assertTrue(repo.tryDeduct("HOT", 9).isApplied());     // 没有单个分片够 9，拆开扣
+        assertEquals(1, data.values().stream().mapToInt(Integer::intValue).sum());
+        assertTrue(data.values().stream().allMatch(q -> q >= 0));
+        assertEquals(1, repo.available("HOT"));
+
+        StockMutation rejected = repo.tryDeduct("HOT", 2);
+        assertFalse(rejected.isApplied());
+        assertEquals(1, rejected.getQuantity());
+    }
+
+    @Test
+    void tryRestock_shouldAddToOneShardAndAdjustCachedSum() {
+        Map<String, Integer> data = new TreeMap<>(Map.of("HOT#0", 0, "HOT#1", 0));
+        MongoTemplate mongo = fakeShards(data);
+        ShardedStockRepository repo = new ShardedStockRepository(mongo, mock(ItemDocumentRepository.class),
+                List.of("HOT"), 2, Duration.ofMinutes(1));
+        assertEquals(0, repo.available("HOT"));
+
+        assertTrue(repo.tryRestock("HOT", 5).isApplied());
+        assertEquals(5, repo.available("HOT"));
+        assertEquals(5, data.values().stream().mapToInt(Integer::intValue).sum());
+        verify(mongo, never()).upsert(any(Query.class), any(UpdateDefinition.class), eq(ItemStockShard.class));
+    }
+
+    @Test
+    void handles_shouldFollowPersistedFlag() {
+        MongoTemplate mongo = fakeShards(new TreeMap<>(Map.of("HOT#0", 3)));
+        when(mongo.exists(any(Query.class), eq(ItemDocument.class))).thenReturn(false);   // 已被别的实例合并回 items
+        ItemDocumentRepository items = mock(ItemDocumentRepository.class);
+        ShardedStockRepository repo = new ShardedStockRepository(mongo, items, List.of("HOT"), 1, Duration.ofMinutes(1));
+
+        assertFalse(repo.handles("HOT"));
+    }
+
+    @Test
+    void merge_shouldMoveOpenHoldsIntoItemReservationTokens() {
+        MongoTemplate mongo = mock(MongoTemplate.class);
+        when(mongo.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(ItemDocument.class)))
+                .thenReturn(UpdateResult.acknowledged(1, 1L, null));
+        ItemStockShard s0 = ItemStockShard.builder().id("HOT#0").sku("HOT").shard(0).quantity(4)
+                .holds(List.of(new ItemStockShard.Hold("t1", 2))).build();
+        ItemStockShard s1 = ItemStockShard.builder().id("HOT#1").sku("HOT").shard(1).quantity(1)
+                .holds(List.of(new ItemStockShard.Hold("t1", 1), new ItemStockShard.Hold("t2", 3))).build();
+        when(mongo.findAndRemove(any(Query.class), eq(ItemStockShard.class))).thenReturn(s0, s1, null);
+        ItemDocumentRepository items = mock(ItemDocumentRepository.class);
+        ShardedStockRepository repo = new ShardedStockRepository(mongo, items, List.of(), 2, Duration.ofMinutes(1));
+
+        repo.merge("HOT");
+
+        verify(items).tryRestock("HOT", 4);
+        verify(items).tryRestock("HOT", 1);
+        ArgumentCaptor<Query> q = ArgumentCaptor.forClass(Query.class);
+        ArgumentCaptor<UpdateDefinition> u = ArgumentCaptor.forClass(UpdateDefinition.class);
+        verify(mongo, times(2)).updateFirst(q.capture(), u.capture(), eq(ItemDocument.class));
+        assertEquals(false, ((Document) u.getAllValues().get(0).getUpdateObject().get("$set")).get("stockSharded"));
+        Document addToSet = (Document) u.getAllValues().get(1).getUpdateObject().get("$addToSet");
+        assertArrayEquals(new Object[]{"t1", "t2"}, (Object[]) ((Update.Modifier) addToSet.get("reservationTokens")).getValue());
+    }
+
+    @Test
+    void merge_whenAnotherInstanceWon_shouldLeaveShardsAlone() {
+        MongoTemplate mongo = mock(MongoTemplate.class);
+        when(mongo.updateFirst(any(Query.class), any(UpdateDefinition.class), eq(ItemDocument.class)))
+                .thenReturn(UpdateResult.acknowledged(0, 0L, null));
+        ShardedStockRepository repo = new ShardedStockRepository(mongo, mock(ItemDocumentRepository.class),
+                List.of(), 2, Duration.ofMinutes(1));
+
+        repo.merge("HOT");
+
+        verify(mongo, never()).findAndRemove(any(Query.class), eq(ItemStockShard.class));
+    }
+}
@@ -0,0 +1,44 @@
+package org.example.carpet.search;
+
+import org.example.carpet.catalog.CatalogCache;
+import org.example.carpet.model.ItemDocument;
+import org.example.carpet.repository.mongo.ItemDocumentRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the autocomplete index:
+ *  - a change that leaves an item's phrases alone (stock, price) does not repack the trie
+ *  - a phrase change repacks and is visible to suggest
+ */
+@ExtendWith(MockitoExtension.class)
+class SuggestIndexTest {
+
+    @Mock
+    ItemDocumentRepository itemRepository;
+
+    @Test
+    void onCatalogChanged_shouldRepackOnlyWhenPhrasesChange() {
+        SuggestIndex index = new SuggestIndex();
+        when(itemRepository.findAll()).thenReturn(List.of(
+                ItemDocument.builder().sku("rug1").name("Persian Silk Rug").keywords(List.of("persian")).build()));
+        CatalogCache cache = new CatalogCache(itemRepository, null, List.of(index));
+        cache.current();
+        int repacks = index.repacks();
+
+        cache.apply(ItemDocument.builder().sku("rug1").name("Persian Silk Rug").keywords(List.of("persian"))
+                .stockQuantity(3).stockAvailable(true).build());
+        assertEquals(repacks, index.repacks());
+
+        cache.apply(ItemDocument.builder().sku("rug1").name("Persian Wool Rug").keywords(List.of("persian")).build());
+        assertEquals(repacks + 1, index.repacks());
+        assertEquals(List.of("persian", "Persian Wool Rug"), index.suggest("pers", 8));
+    }
+}
@@ -0,0 +1,84 @@
+package org.example.carpet.expiry;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the hierarchical timer wheel:
+ *  - entries fire once the clock has passed them, never early, across levels and past the top level
+ *  - already-overdue entries fire on the next advance
+ *  - randomized: every entry fires exactly once, within one tick of the advance that passed it
+ */
+class TimerWheelTest {
+
+    @Test
+    void advance_shouldFireAcrossLevelsNeverEarly() {
+        // tick 10ms，每层 4 格：第 0 层 40ms，第 1 层 160ms，第 2 层 640ms；5000 超出最高层
+        TimerWheel<String> wheel = new TimerWheel<>(10, 4, 3, 0);
+        wheel.add("a", 25);
+        wheel.add("b", 95);
+        wheel.add("c", 500);
+        wheel.add("d", 5000);
+        assertEquals(4, wheel.size());
+
+        assertEquals(List.of(), fire(wheel, 20));
+        assertEquals(List.of("a"), fire(wheel, 30));
+        assertEquals(List.of(), fire(wheel, 94));
+        assertEquals(List.of("b"), fire(wheel, 100));
+        assertEquals(List.of(), fire(wheel, 499));
+        assertEquals(List.of("c"), fire(wheel, 510));
+        assertEquals(List.of(), fire(wheel, 4999));
+        assertEquals(List.of("d"), fire(wheel, 5010));
+        assertEquals(0, wheel.size());
+
+        wheel.add("late", 100);   // 已经过去的时间：下一次推进立即触发
+        assertEquals(List.of("late"), fire(wheel, 5010));
+    }
+
+    @Test
+    void advance_randomized_shouldFireEachEntryExactlyOnceOnTime() {
+        Random rnd = new Random(42);
+        long start = 1_700_000_000_123L;
+        TimerWheel<Integer> wheel = new TimerWheel<>(100, 8, 3, start);
+        Map<Integer, Long> expireAt = new HashMap<>();
+        Map<Integer, Long> addedAt = new HashMap<>();
+        Map<Integer, Long> firedAt = new HashMap<>();
+
+        long now = start;
+        int next = 0;
+        for (int step = 0; step < 2000; step++) {
+            for (int k = rnd.nextInt(20); k > 0; k--) {
+                long at = now + rnd.nextInt(200_000) - 500;   // 少量已过期，大部分跨多层，部分超出最高层
+                expireAt.put(next, at);
+                addedAt.put(next, now);
+                wheel.add(next++, at);
+            }
+            long prev = now;
+            now += rnd.nextInt(300);
+            long firedNow = now;
+            wheel.advance(now, id -> {
+                assertNull(firedAt.put(id, firedNow), "fired twice: " + id);
+                long at = expireAt.get(id);
+                assertTrue(at < firedNow, "fired early: " + id);
+                // 上一次推进时还没到期（或那时还没登记），说明没有拖过一个 tick
+                assertTrue(Math.max(at, addedAt.get(id)) >= prev - 100, "fired late: " + id);
+            });
+        }
+        wheel.advance(now + 1_000_000, id -> assertNull(firedAt.put(id, Long.MAX_VALUE)));
+        assertEquals(expireAt.keySet(), firedAt.keySet());
+        assertEquals(0, wheel.size());
+    }
+
+    private static List<String> fire(TimerWheel<String> wheel, long now) {
+        List<String> out = new ArrayList<>();
+        wheel.advance(now, out::add);
+        return out;
+    }
+}